@@ -0,0 +1,338 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A content addressed store of immutable blobs rooted in a directory under the
+ * user specific cache directory.
+ *
+ * Each blob is keyed by the lowercase hex SHA-256 digest of its contents and
+ * stored in a two level fan out of directories named after the first four hex
+ * digits of the key, such as {@code ab/cd/abcd...}, which keeps directories
+ * small even with millions of blobs. Blobs are written to a temporary file,
+ * forced to storage and atomically renamed into place, so neither readers nor
+ * a crash leave partial blobs under their final names, and
+ * storing content that already exists does not write it again. Concurrent
+ * stores of the same content within the JVM are coalesced into a single write.
+ *
+ * Reads avoid copying through the heap by using {@link
+ * FileChannel#transferTo(long, long, WritableByteChannel)} or a read only
+ * {@link MappedByteBuffer}.
+ *
+ * Instances are safe for use by multiple threads, and multiple processes may
+ * share a store.
+ */
+public final class BlobStore {
+
+    /**
+     * Create a blob store in a directory relative to the user specific cache
+     * directory.
+     *
+     * @param paths  XdgPaths instance
+     * @param parts  path components of the store relative to the cache
+     *               directory, such as the application name
+     */
+    public BlobStore(XdgPaths paths, String... parts) {
+        this(paths.cache(parts));
+    }
+
+    /**
+     * Get the root directory of the store.
+     *
+     * @return  root directory
+     */
+    public Path root() { return root; }
+
+    /**
+     * Store a blob.
+     *
+     * @param data  blob contents
+     *
+     * @return  key of the blob
+     *
+     * @throws IOException  if the blob can not be written
+     */
+    public String put(byte[] data) throws IOException {
+        final String key = hex(digest().digest(data));
+        if(Files.exists(path(key))) return key;
+
+        publish(key, ()->{
+            final Path tmp = temp();
+            try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                final ByteBuffer buf = ByteBuffer.wrap(data);
+                while(buf.hasRemaining()) ch.write(buf);
+                ch.force(true);
+            } catch(IOException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+            return tmp;
+        });
+        return key;
+    }
+
+    /**
+     * Store a blob read from a stream. The stream is read to its end but not
+     * closed.
+     *
+     * @param in  stream of blob contents
+     *
+     * @return  key of the blob
+     *
+     * @throws IOException  if the stream can not be read or the blob can not
+     *                      be written
+     */
+    public String put(InputStream in) throws IOException {
+        final MessageDigest md = digest();
+        final Path tmp = temp();
+        try {
+            try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                final byte[] b = new byte[BUFFER_SIZE];
+                int n;
+                while((n = in.read(b))>=0) {
+                    md.update(b, 0, n);
+                    final ByteBuffer buf = ByteBuffer.wrap(b, 0, n);
+                    while(buf.hasRemaining()) ch.write(buf);
+                }
+                ch.force(true);
+            }
+
+            final String key = hex(md.digest());
+            if(!Files.exists(path(key))) publish(key, ()->tmp);
+            return key;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Check whether a blob exists.
+     *
+     * @param key  blob key
+     *
+     * @return  true if the blob exists
+     */
+    public boolean contains(String key) { return Files.exists(path(key)); }
+
+    /**
+     * Get the path of a blob if it exists. The file must not be modified.
+     *
+     * @param key  blob key
+     *
+     * @return  path of the blob, or empty if it does not exist
+     */
+    public Optional<Path> find(String key) {
+        final Path path = path(key);
+        return Files.exists(path)?Optional.of(path):Optional.empty();
+    }
+
+    /**
+     * Get the path a blob is, or would be, stored at.
+     *
+     * @param key  blob key
+     *
+     * @return  path of the blob
+     *
+     * @throws IllegalArgumentException  if key is not a SHA-256 hex digest
+     */
+    public Path path(String key) {
+        if(key.length()!=64) throw new IllegalArgumentException("invalid key: " + key);
+        for(int i=0; i<key.length(); i++) {
+            final char c = key.charAt(i);
+            if(!(c>='0' && c<='9') && !(c>='a' && c<='f')) {
+                throw new IllegalArgumentException("invalid key: " + key);
+            }
+        }
+        return root.resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(key);
+    }
+
+    /**
+     * Copy a blob to a channel, letting the operating system move the bytes
+     * directly where supported.
+     *
+     * @param key     blob key
+     * @param target  channel to write to
+     *
+     * @return  number of bytes transferred
+     *
+     * @throws NoSuchFileException  if the blob does not exist
+     * @throws IOException          if the blob can not be read or written
+     */
+    public long transferTo(String key, WritableByteChannel target) throws IOException {
+        try(FileChannel ch = FileChannel.open(path(key), StandardOpenOption.READ)) {
+            final long size = ch.size();
+            long pos = 0;
+            while(pos<size) pos += ch.transferTo(pos, size-pos, target);
+            return pos;
+        }
+    }
+
+    /**
+     * Map a blob into memory read only. The mapping remains valid after the
+     * blob is deleted.
+     *
+     * @param key  blob key
+     *
+     * @return  read only buffer of the blob contents
+     *
+     * @throws NoSuchFileException  if the blob does not exist
+     * @throws IOException          if the blob can not be mapped
+     */
+    public MappedByteBuffer map(String key) throws IOException {
+        try(FileChannel ch = FileChannel.open(path(key), StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    /**
+     * Delete a blob.
+     *
+     * @param key  blob key
+     *
+     * @return  true if the blob existed
+     *
+     * @throws IOException  if the blob can not be deleted
+     */
+    public boolean delete(String key) throws IOException {
+        return Files.deleteIfExists(path(key));
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /**
+     * Create a blob store rooted in a directory.
+     *
+     * @param root  root directory of the store
+     */
+    BlobStore(Path root) {
+        this.root = root;
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Root directory of the store. */
+    private final Path root;
+
+    /** Writes in progress by key. */
+    private final ConcurrentHashMap<String,CompletableFuture<Void>> inflight = new ConcurrentHashMap<>();
+
+    /**
+     * Supplier of a temporary file holding the contents of a blob. The file is
+     * deleted if it is not moved into place.
+     */
+    private interface Writer {
+        Path write() throws IOException;
+    }
+
+    /**
+     * Move the contents produced by writer into place, unless another thread
+     * is already publishing the same key, in which case wait for it instead.
+     */
+    private void publish(String key, Writer writer) throws IOException {
+        final CompletableFuture<Void> mine = new CompletableFuture<>();
+        final CompletableFuture<Void> other = inflight.putIfAbsent(key, mine);
+        if(other!=null) {
+            await(other);
+            return;
+        }
+
+        try {
+            if(!Files.exists(path(key))) {
+                final Path tmp = writer.write();
+                final Path target = path(key);
+                try {
+                    Files.createDirectories(target.getParent());
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch(AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            mine.complete(null);
+        } catch(IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(key, mine);
+        }
+    }
+
+    private static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch(ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException)cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /** Create a temporary file on the same file system as the store. */
+    private Path temp() throws IOException {
+        final Path dir = root.resolve("tmp");
+        Files.createDirectories(dir);
+        return Files.createTempFile(dir, "blob", null);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            /* every java platform is required to support SHA-256 */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        final char[] c = new char[bytes.length*2];
+        for(int i=0; i<bytes.length; i++) {
+            c[i*2] = HEX[(bytes[i]>>4) & 0xf];
+            c[i*2+1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(c);
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File helpers shared by the caches that store values as files keyed by a
+ * relative path.
+ */
+final class CacheFiles {
+
+    /**
+     * Resolve a key against a cache root, rejecting keys that are absolute or
+     * escape the root.
+     *
+     * @param root  cache root directory
+     * @param key   relative path of the value
+     *
+     * @return  path of the value
+     *
+     * @throws IllegalArgumentException  if the key does not name a file below
+     *                                   root
+     */
+    static Path resolve(Path root, String key) {
+        final Path path = root.resolve(key).normalize();
+        if(!path.startsWith(root) || path.equals(root)) {
+            throw new IllegalArgumentException("invalid key: " + key);
+        }
+        return path;
+    }
+
+    /**
+     * Atomically replace a file with the remaining contents of a buffer by
+     * writing a temporary file in the same directory and renaming it.
+     *
+     * @param path   file to replace
+     * @param value  new contents
+     *
+     * @throws IOException  if the file can not be written
+     */
+    static void write(Path path, ByteBuffer value) throws IOException {
+        Files.createDirectories(path.getParent());
+        final Path tmp = Files.createTempFile(path.getParent(), ".tmp", null);
+        try {
+            try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while(value.hasRemaining()) ch.write(value);
+            }
+            move(tmp, path);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Rename a file over another, atomically where supported.
+     *
+     * @param source  file to rename
+     * @param target  file to replace
+     *
+     * @throws IOException  if the file can not be renamed
+     */
+    static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    private CacheFiles() { }
+
+}
@@ -0,0 +1,491 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live reloading of config files found through {@link XdgPaths#config(String...)}.
+ *
+ * A watch follows the candidate paths of one config file in preferred order,
+ * and its value is the file parsed from the first candidate that exists. Only
+ * the parent directories of the candidates are watched, or their nearest
+ * existing ancestors until those directories are created. Changes to a
+ * watch's files are coalesced until none has arrived for the debounce window,
+ * so an editor writing a file in several steps causes a single reload, and a
+ * file whose modification time, size and identity are unchanged is not read
+ * again. A higher preference file that appears shadows the current one, and
+ * the watch falls back to a lower preference file when the current one is
+ * removed.
+ *
+ * Files are parsed on the watcher's thread, and listeners are notified on a
+ * dedicated executor, so a slow listener does not delay reloads. If parsing
+ * fails, for instance because the file is still being written, the previous
+ * value is kept and the file is parsed again on its next change.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public final class ConfigWatcher implements Closeable {
+
+    /**
+     * Parses a config file.
+     *
+     * @param <T>  parsed value type
+     */
+    @FunctionalInterface
+    public interface Parser<T> {
+        /**
+         * Parse a config file.
+         *
+         * @param file  file to parse
+         *
+         * @return  parsed value, not null
+         *
+         * @throws IOException  if the file can not be read or parsed
+         */
+        T parse(Path file) throws IOException;
+    }
+
+    /**
+     * Receives reloaded config values.
+     *
+     * @param <T>  parsed value type
+     */
+    @FunctionalInterface
+    public interface Listener<T> {
+        /**
+         * Called after a watch's value changed.
+         *
+         * @param source  file the value was parsed from, or empty if no
+         *                candidate exists
+         * @param value   parsed value, or empty if no candidate exists
+         */
+        void reloaded(Optional<Path> source, Optional<T> value);
+    }
+
+    /**
+     * Create a watcher notifying listeners on its own thread.
+     *
+     * @param paths           XdgPaths instance
+     * @param debounceMillis  quiet time in milliseconds before a reload
+     *
+     * @throws IOException  if the file system can not be watched
+     */
+    public ConfigWatcher(XdgPaths paths, long debounceMillis) throws IOException {
+        this(paths, debounceMillis, null);
+    }
+
+    /**
+     * Create a watcher notifying listeners on an executor. Listeners are
+     * notified in order only if the executor runs tasks in order.
+     *
+     * @param paths           XdgPaths instance
+     * @param debounceMillis  quiet time in milliseconds before a reload
+     * @param executor        executor for listener notifications, or null
+     *                        for a dedicated thread
+     *
+     * @throws IOException  if the file system can not be watched
+     */
+    public ConfigWatcher(XdgPaths paths, long debounceMillis, Executor executor) throws IOException {
+        if(debounceMillis<0) throw new IllegalArgumentException("debounceMillis < 0");
+        this.paths = paths;
+        this.debounce = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.service = paths.home().getFileSystem().newWatchService();
+        this.owned = executor==null?Executors.newSingleThreadExecutor(r->{
+            final Thread t = new Thread(r, "xdgpaths-config-listeners");
+            t.setDaemon(true);
+            return t;
+        }):null;
+        this.executor = executor==null?owned:executor;
+        final Thread thread = new Thread(this::run, "xdgpaths-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Watch a config file, parsing it now from the first existing candidate
+     * of {@code config(parts)}.
+     *
+     * @param <T>     parsed value type
+     * @param parser  config file parser
+     * @param parts   path components of the config file
+     *
+     * @return  watch, to be closed when no longer needed
+     *
+     * @throws IOException  if the candidate directories can not be watched
+     */
+    public <T> Watch<T> watch(Parser<T> parser, String... parts) throws IOException {
+        return watch(paths.config(parts), parser);
+    }
+
+    /**
+     * A watched config file.
+     *
+     * @param <T>  parsed value type
+     */
+    public final class Watch<T> implements Closeable {
+
+        /**
+         * Get the candidate paths in preferred order.
+         *
+         * @return  candidate paths
+         */
+        public List<Path> candidates() { return candidates; }
+
+        /**
+         * Get the file the current value was parsed from.
+         *
+         * @return  source file, or empty if no candidate exists
+         */
+        public Optional<Path> source() { return Optional.ofNullable(state.source); }
+
+        /**
+         * Get the current value.
+         *
+         * @return  parsed value, or empty if no candidate exists or it has not
+         *          yet been parsed successfully
+         */
+        public Optional<T> value() { return Optional.ofNullable(state.value); }
+
+        /**
+         * Get the failure of the latest attempt to parse the source.
+         *
+         * @return  parse failure, or empty if the latest attempt succeeded
+         */
+        public Optional<Exception> error() { return Optional.ofNullable(error); }
+
+        /**
+         * Add a listener notified after each change of value.
+         *
+         * @param listener  listener
+         */
+        public void addListener(Listener<T> listener) { listeners.add(listener); }
+
+        /**
+         * Remove a listener.
+         *
+         * @param listener  listener
+         */
+        public void removeListener(Listener<T> listener) { listeners.remove(listener); }
+
+        /** Stop watching the config file. */
+        @Override
+        public void close() { unwatch(this); }
+
+        private final List<Path> candidates;
+        private final Parser<T> parser;
+        private final List<Listener<T>> listeners = new CopyOnWriteArrayList<>();
+
+        /** Current source, stamp and value, replaced by the watcher thread. */
+        private volatile State<T> state = new State<>(null, null, null);
+        private volatile Exception error;
+
+        /** Time of the pending reload, or 0 if none, guarded by the watcher. */
+        private long deadline;
+
+        private Watch(List<Path> candidates, Parser<T> parser) {
+            this.candidates = Collections.unmodifiableList(new ArrayList<>(candidates));
+            this.parser = parser;
+        }
+
+        /** Re-read the preferred candidate if it changed, then notify. */
+        private void reload() {
+            Path source = null;
+            for(Path c : candidates) {
+                if(Files.isRegularFile(c)) {
+                    source = c;
+                    break;
+                }
+            }
+            final Object stamp = stamp(source);
+            final State<T> current = state;
+            if(Objects.equals(source, current.source) && Objects.equals(stamp, current.stamp)
+               && error==null) {
+                return;
+            }
+
+            T value = null;
+            if(source!=null) {
+                try {
+                    value = Objects.requireNonNull(parser.parse(source), "parsed value");
+                } catch(IOException | RuntimeException e) {
+                    error = e;
+                    return;
+                }
+            }
+            error = null;
+            state = new State<>(source, stamp, value);
+
+            final Optional<Path> s = Optional.ofNullable(source);
+            final Optional<T> v = Optional.ofNullable(value);
+            for(Listener<T> l : listeners) executor.execute(()->l.reloaded(s, v));
+        }
+    }
+
+    /**
+     * Stop watching, and stop the listener thread if the watcher created it.
+     *
+     * @throws IOException  if the watch service can not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed) return;
+            closed = true;
+            watches.clear();
+        }
+        service.close();
+        if(owned!=null) owned.shutdown();
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /**
+     * Watch a config file with explicit candidates.
+     *
+     * @param <T>         parsed value type
+     * @param candidates  candidate paths in preferred order
+     * @param parser      config file parser
+     *
+     * @return  watch, to be closed when no longer needed
+     *
+     * @throws IOException  if the candidate directories can not be watched
+     */
+    <T> Watch<T> watch(List<Path> candidates, Parser<T> parser) throws IOException {
+        final Watch<T> w = new Watch<>(candidates, parser);
+        synchronized(this) {
+            if(closed) throw new IllegalStateException("watcher closed");
+            watches.add(w);
+            register();
+        }
+
+        /* registered before the first read, so no change is missed */
+        synchronized(w) {
+            w.reload();
+        }
+        return w;
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    private final XdgPaths paths;
+    private final long debounce;
+    private final WatchService service;
+    private final ExecutorService owned;
+    private final Executor executor;
+
+    /** Active watches, guarded by this. */
+    private final List<Watch<?>> watches = new ArrayList<>();
+
+    /** Watched directories, guarded by this. */
+    private final Map<Path,WatchKey> dirs = new HashMap<>();
+    private final Map<WatchKey,Path> keys = new HashMap<>();
+
+    private boolean closed;
+
+    /** Immutable source, stamp and value of a watch. */
+    private static final class State<T> {
+        private final Path source;
+        private final Object stamp;
+        private final T value;
+
+        private State(Path source, Object stamp, T value) {
+            this.source = source;
+            this.stamp = stamp;
+            this.value = value;
+        }
+    }
+
+    /** Identify a version of a file by its modification time, size and key. */
+    private static Object stamp(Path file) {
+        if(file==null) return null;
+        try {
+            final BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class);
+            return Arrays.asList(a.lastModifiedTime(), a.size(), a.fileKey());
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private synchronized void unwatch(Watch<?> w) {
+        if(watches.remove(w) && !closed) {
+            try {
+                register();
+            } catch(IOException e) {
+                /* only cancels keys */
+            }
+        }
+    }
+
+    /**
+     * Watch the nearest existing directory of every candidate and stop
+     * watching directories no longer needed. Must hold this.
+     */
+    private void register() throws IOException {
+        /* a directory created before its parent was registered raises no
+         * event, so look again until nothing deeper has appeared */
+        Set<Path> needed = Collections.emptySet();
+        while(true) {
+            final Set<Path> next = new HashSet<>();
+            for(Watch<?> w : watches) {
+                for(Path c : w.candidates) {
+                    Path dir = c.toAbsolutePath().getParent();
+                    while(dir!=null && !Files.isDirectory(dir)) dir = dir.getParent();
+                    if(dir!=null) next.add(dir);
+                }
+            }
+            if(next.equals(needed)) break;
+            needed = next;
+
+            for(Path dir : needed) {
+                if(dirs.containsKey(dir)) continue;
+                final WatchKey key;
+                try {
+                    key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                       StandardWatchEventKinds.ENTRY_DELETE,
+                                       StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch(NoSuchFileException e) {
+                    /* removed meanwhile; its parent's event will follow */
+                    continue;
+                }
+                dirs.put(dir, key);
+                keys.put(key, dir);
+            }
+        }
+
+        final Iterator<Map.Entry<Path,WatchKey>> it = dirs.entrySet().iterator();
+        while(it.hasNext()) {
+            final Map.Entry<Path,WatchKey> e = it.next();
+            if(needed.contains(e.getKey())) continue;
+            e.getValue().cancel();
+            keys.remove(e.getValue());
+            it.remove();
+        }
+    }
+
+    private void run() {
+        try {
+            while(true) {
+                final long wait;
+                synchronized(this) {
+                    if(closed) return;
+                    wait = nextDeadline();
+                }
+
+                WatchKey key = wait<0?service.take():service.poll(wait, TimeUnit.NANOSECONDS);
+                while(key!=null) {
+                    process(key);
+                    key = service.poll();
+                }
+
+                for(Watch<?> w : due()) {
+                    synchronized(w) {
+                        w.reload();
+                    }
+                }
+            }
+        } catch(ClosedWatchServiceException | InterruptedException e) {
+            /* closed */
+        }
+    }
+
+    /** Schedule reloads for the watches affected by a directory's events. */
+    private synchronized void process(WatchKey key) {
+        final Path dir = keys.get(key);
+        final List<WatchEvent<?>> events = key.pollEvents();
+        final boolean valid = key.reset();
+        if(dir==null) return;
+
+        final long now = System.nanoTime();
+        for(WatchEvent<?> event : events) {
+            final Path child = event.kind()==StandardWatchEventKinds.OVERFLOW?
+                               dir:dir.resolve((Path)event.context());
+            for(Watch<?> w : watches) {
+                for(Path c : w.candidates) {
+                    if(c.toAbsolutePath().startsWith(child)) {
+                        w.deadline = now + debounce;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if(!valid) {
+            dirs.remove(dir);
+            keys.remove(key);
+        }
+        try {
+            register();
+        } catch(IOException e) {
+            /* retried on the next event */
+        }
+    }
+
+    /**
+     * Get the time until the next pending reload. Must hold this.
+     *
+     * @return  nanoseconds until the next reload, or -1 if none is pending
+     */
+    private long nextDeadline() {
+        long next = Long.MAX_VALUE;
+        for(Watch<?> w : watches) {
+            if(w.deadline!=0) next = Math.min(next, w.deadline);
+        }
+        return next==Long.MAX_VALUE?-1:Math.max(0, next-System.nanoTime());
+    }
+
+    /** Take the watches whose reload is due. */
+    private synchronized List<Watch<?>> due() {
+        final long now = System.nanoTime();
+        final List<Watch<?>> due = new ArrayList<>();
+        for(Watch<?> w : watches) {
+            if(w.deadline!=0 && w.deadline-now<=0) {
+                w.deadline = 0;
+                due.add(w);
+            }
+        }
+        return due;
+    }
+
+}
@@ -0,0 +1,540 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+/**
+ * An incrementally maintained index of the desktop entries found in the
+ * {@code applications} directory of each {@link XdgPaths} data directory.
+ *
+ * Desktop file IDs are derived from the path relative to the {@code
+ * applications} directory, and an entry in a more preferred data directory
+ * shadows entries with the same ID in less preferred directories. An entry
+ * with {@code Hidden=true} hides the ID entirely.
+ *
+ * {@link #refresh()} walks the directories, comparing the modification time
+ * and size of each file with the previous refresh, and parses only new or
+ * changed files. {@link #update(Path)} applies the change of a single file,
+ * for callers that already receive file change notifications. Lookups by MIME
+ * type and category are answered from inverted maps maintained as entries
+ * change.
+ *
+ * Instances are safe for use by multiple threads.
+ *
+ * @see <a href="https://specifications.freedesktop.org/desktop-entry-spec/latest/">
+ * https://specifications.freedesktop.org/desktop-entry-spec/latest/</a>
+ */
+public final class DesktopEntries {
+
+    /**
+     * Create an empty index over the {@code applications} directory of each
+     * data directory. Call {@link #refresh()} to populate it.
+     *
+     * @param paths  XdgPaths instance supplying the search path
+     */
+    public DesktopEntries(XdgPaths paths) {
+        this.roots = paths.data("applications");
+    }
+
+    /**
+     * Get the directories indexed, in preferred order.
+     *
+     * @return  applications directories
+     */
+    public List<Path> roots() { return roots; }
+
+    /**
+     * Bring the index up to date with the file system, parsing only desktop
+     * files that were added or whose modification time or size changed since
+     * the previous refresh.
+     *
+     * @return  IDs whose visible entry was added, changed or removed
+     *
+     * @throws IOException  if a directory can not be walked
+     */
+    public Set<String> refresh() throws IOException {
+        /*
+         * walk the roots, collecting attributes without extra stat calls, and
+         * following links as update() does, since exported entries such as
+         * flatpak's are usually symbolic links
+         */
+        final Map<Path,BasicFileAttributes> found = new HashMap<>();
+        for(Path root : roots) {
+            if(!Files.isDirectory(root)) continue;
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                               new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if(attrs.isRegularFile() && isDesktopFile(file)) found.put(file, attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        lock.writeLock().lock();
+        try {
+            final Set<String> affected = new HashSet<>();
+
+            /* removed files */
+            for(Path file : new ArrayList<>(files.keySet())) {
+                if(!found.containsKey(file)) affected.add(remove(file));
+            }
+
+            /* added or changed files */
+            for(Map.Entry<Path,BasicFileAttributes> e : found.entrySet()) {
+                final String id = load(e.getKey(), e.getValue());
+                if(id!=null) affected.add(id);
+            }
+
+            return publish(affected);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apply a change to a single desktop file, which may have been added,
+     * modified or deleted.
+     *
+     * @param file  path to the desktop file
+     *
+     * @return  IDs whose visible entry was added, changed or removed
+     *
+     * @throws IOException  if the file exists but its attributes can not be
+     *                      read
+     */
+    public Set<String> update(Path file) throws IOException {
+        if(!isDesktopFile(file) || root(file)<0) return Collections.emptySet();
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if(!attrs.isRegularFile()) attrs = null;
+        } catch(NoSuchFileException e) {
+            attrs = null;
+        }
+
+        lock.writeLock().lock();
+        try {
+            final Set<String> affected = new HashSet<>();
+            if(attrs==null) {
+                if(files.containsKey(file)) affected.add(remove(file));
+            } else {
+                final String id = load(file, attrs);
+                if(id!=null) affected.add(id);
+            }
+            return publish(affected);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the visible entry for a desktop file ID.
+     *
+     * @param id  desktop file ID, such as {@code org.gnome.gedit.desktop}
+     *
+     * @return  visible entry, or empty if none
+     */
+    public Optional<DesktopEntry> get(String id) {
+        lock.readLock().lock();
+        try {
+            return Optional.ofNullable(visible.get(id));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get all visible entries ordered by ID.
+     *
+     * @return  visible entries
+     */
+    public List<DesktopEntry> all() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(new TreeMap<>(visible).values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the visible entries declaring support for a MIME type, ordered by ID.
+     *
+     * @param mimeType  MIME type, such as {@code text/plain}
+     *
+     * @return  matching entries
+     */
+    public List<DesktopEntry> byMimeType(String mimeType) {
+        return query(mimeTypes, mimeType);
+    }
+
+    /**
+     * Get the visible entries in a category, ordered by ID.
+     *
+     * @param category  category, such as {@code Utility}
+     *
+     * @return  matching entries
+     */
+    public List<DesktopEntry> byCategory(String category) {
+        return query(categories, category);
+    }
+
+    /**
+     * A parsed desktop entry. Only the {@code [Desktop Entry]} group is read;
+     * localized values are kept unparsed until first requested.
+     */
+    public static final class DesktopEntry {
+
+        /**
+         * Get the desktop file ID.
+         *
+         * @return  desktop file ID
+         */
+        public String id() { return id; }
+
+        /**
+         * Get the path of the desktop file.
+         *
+         * @return  path of the desktop file
+         */
+        public Path path() { return path; }
+
+        /**
+         * Get the unlocalized, unescaped value of a key.
+         *
+         * @param key  key name
+         *
+         * @return  value, or empty if not present
+         */
+        public Optional<String> get(String key) {
+            final String value = values.get(key);
+            return value==null?Optional.empty():Optional.of(KeyFile.unescape(value));
+        }
+
+        /**
+         * Get the value of a key for a locale, matching {@code
+         * lang_COUNTRY@MODIFIER}, {@code lang_COUNTRY}, {@code lang@MODIFIER}
+         * and {@code lang} in that order before falling back to the
+         * unlocalized value. The locale variant is used as the modifier.
+         *
+         * @param key     key name
+         * @param locale  locale
+         *
+         * @return  localized value, or empty if not present
+         */
+        public Optional<String> get(String key, Locale locale) {
+            final Map<String,String> map = localized();
+            final String lang = locale.getLanguage();
+            final String country = locale.getCountry();
+            final String modifier = locale.getVariant();
+
+            final List<String> candidates = new ArrayList<>(4);
+            if(!country.isEmpty() && !modifier.isEmpty()) candidates.add(lang+"_"+country+"@"+modifier);
+            if(!country.isEmpty()) candidates.add(lang+"_"+country);
+            if(!modifier.isEmpty()) candidates.add(lang+"@"+modifier);
+            if(!lang.isEmpty()) candidates.add(lang);
+
+            for(String candidate : candidates) {
+                final String value = map.get(key+"["+candidate+"]");
+                if(value!=null) return Optional.of(KeyFile.unescape(value));
+            }
+            return get(key);
+        }
+
+        /**
+         * Get the unlocalized {@code Name} of the entry.
+         *
+         * @return  name, or the ID if not present
+         */
+        public String name() { return get("Name").orElse(id); }
+
+        /**
+         * Get the {@code Categories} of the entry.
+         *
+         * @return  categories
+         */
+        public List<String> categories() { return categories; }
+
+        /**
+         * Get the {@code MimeType} list of the entry.
+         *
+         * @return  MIME types
+         */
+        public List<String> mimeTypes() { return mimeTypes; }
+
+        /**
+         * Check whether the entry sets {@code NoDisplay=true}.
+         *
+         * @return  true if the entry should not be displayed in menus
+         */
+        public boolean noDisplay() { return "true".equals(values.get("NoDisplay")); }
+
+        @Override
+        public String toString() { return id + " (" + path + ")"; }
+
+
+        /* private ----------------------------------------------------------*/
+        private final String id;
+        private final Path path;
+        private final Map<String,String> values;
+        private final List<String> raw;
+        private final List<String> categories;
+        private final List<String> mimeTypes;
+
+        /** Localized values, parsed from raw on first use. */
+        private volatile Map<String,String> localized;
+
+        private DesktopEntry(String id, Path path, Map<String,String> values, List<String> raw) {
+            this.id = id;
+            this.path = path;
+            this.values = values;
+            this.raw = raw;
+            this.categories = Collections.unmodifiableList(KeyFile.list(values.get("Categories"), ';'));
+            this.mimeTypes = Collections.unmodifiableList(KeyFile.list(values.get("MimeType"), ';'));
+        }
+
+        private boolean hidden() { return "true".equals(values.get("Hidden")); }
+
+        private Map<String,String> localized() {
+            Map<String,String> map = localized;
+            if(map==null) {
+                map = new HashMap<>();
+                for(String line : raw) {
+                    final int eq = line.indexOf('=');
+                    map.putIfAbsent(line.substring(0, eq).trim(), line.substring(eq+1).trim());
+                }
+                localized = map;
+            }
+            return map;
+        }
+
+        /** Parse the Desktop Entry group, stopping at the next group. */
+        private static DesktopEntry parse(String id, Path path) throws IOException {
+            final Map<String,String> values = new LinkedHashMap<>();
+            final List<String> raw = new ArrayList<>();
+            boolean inGroup = false;
+
+            try(BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while((line = reader.readLine())!=null) {
+                    final String trimmed = line.trim();
+                    if(trimmed.isEmpty() || trimmed.charAt(0)=='#') continue;
+                    if(trimmed.charAt(0)=='[') {
+                        if(inGroup) break;
+                        inGroup = "[Desktop Entry]".equals(trimmed);
+                        continue;
+                    }
+
+                    final int eq = trimmed.indexOf('=');
+                    if(!inGroup || eq<1) continue;
+                    final String key = trimmed.substring(0, eq).trim();
+                    if(key.indexOf('[')>=0) raw.add(trimmed);
+                    else values.putIfAbsent(key, trimmed.substring(eq+1).trim());
+                }
+            }
+            return inGroup?new DesktopEntry(id, path, values, raw):null;
+        }
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    /** Applications directories in preferred order. */
+    private final List<Path> roots;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** State of every known desktop file. */
+    private final Map<Path,FileState> files = new HashMap<>();
+
+    /** Known files for each ID by root index, most preferred first. */
+    private final Map<String,TreeMap<Integer,FileState>> candidates = new HashMap<>();
+
+    /** Visible entry for each ID. */
+    private final Map<String,DesktopEntry> visible = new HashMap<>();
+
+    /** Inverted map of MIME type to IDs. */
+    private final Map<String,Set<String>> mimeTypes = new HashMap<>();
+
+    /** Inverted map of category to IDs. */
+    private final Map<String,Set<String>> categories = new HashMap<>();
+
+    /** State of a desktop file as of the last refresh. */
+    private static final class FileState {
+        private final String id;
+        private final int root;
+        private final FileTime modified;
+        private final long size;
+        private final DesktopEntry entry;
+
+        private FileState(String id, int root, FileTime modified, long size, DesktopEntry entry) {
+            this.id = id;
+            this.root = root;
+            this.modified = modified;
+            this.size = size;
+            this.entry = entry;
+        }
+    }
+
+    private static boolean isDesktopFile(Path file) {
+        return file.getFileName().toString().endsWith(".desktop");
+    }
+
+    /** Index of the root containing file, or -1. */
+    private int root(Path file) {
+        for(int i=0; i<roots.size(); i++) if(file.startsWith(roots.get(i))) return i;
+        return -1;
+    }
+
+    /** Desktop file ID of a file relative to its root. */
+    private String id(int root, Path file) {
+        final Path rel = roots.get(root).relativize(file);
+        final StringBuilder sb = new StringBuilder();
+        for(Path part : rel) {
+            if(sb.length()>0) sb.append('-');
+            sb.append(part.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse a file if new or changed. Must hold the write lock.
+     *
+     * @return  ID of the file if it was (re)parsed, otherwise null
+     */
+    private String load(Path file, BasicFileAttributes attrs) {
+        final FileState old = files.get(file);
+        if(old!=null && old.modified.equals(attrs.lastModifiedTime()) && old.size==attrs.size()) {
+            return null;
+        }
+
+        final int root = root(file);
+        final String id = id(root, file);
+        DesktopEntry entry;
+        try {
+            entry = DesktopEntry.parse(id, file);
+        } catch(IOException e) {
+            /* unreadable files are indexed as invalid so they still shadow */
+            entry = null;
+        }
+
+        final FileState state = new FileState(id, root, attrs.lastModifiedTime(), attrs.size(), entry);
+        files.put(file, state);
+        candidates.computeIfAbsent(id, k->new TreeMap<>()).put(root, state);
+        return id;
+    }
+
+    /**
+     * Forget a file. Must hold the write lock.
+     *
+     * @return  ID of the removed file
+     */
+    private String remove(Path file) {
+        final FileState state = files.remove(file);
+        final TreeMap<Integer,FileState> c = candidates.get(state.id);
+        c.remove(state.root);
+        if(c.isEmpty()) candidates.remove(state.id);
+        return state.id;
+    }
+
+    /**
+     * Recompute the visible entry and inverted map entries of affected IDs.
+     * Must hold the write lock.
+     *
+     * @return  IDs whose visible entry changed
+     */
+    private Set<String> publish(Set<String> affected) {
+        final Set<String> changed = new TreeSet<>();
+        for(String id : affected) {
+            final TreeMap<Integer,FileState> c = candidates.get(id);
+            DesktopEntry entry = c==null?null:c.firstEntry().getValue().entry;
+            if(entry!=null && entry.hidden()) entry = null;
+
+            final DesktopEntry old = entry==null?visible.remove(id):visible.put(id, entry);
+            if(old==entry) continue;
+            changed.add(id);
+
+            if(old!=null) {
+                unindex(mimeTypes, old.mimeTypes, id);
+                unindex(categories, old.categories, id);
+            }
+            if(entry!=null) {
+                for(String m : entry.mimeTypes) mimeTypes.computeIfAbsent(m, k->new HashSet<>()).add(id);
+                for(String cat : entry.categories) categories.computeIfAbsent(cat, k->new HashSet<>()).add(id);
+            }
+        }
+        return changed;
+    }
+
+    private static void unindex(Map<String,Set<String>> map, List<String> keys, String id) {
+        for(String key : keys) {
+            final Set<String> ids = map.get(key);
+            if(ids==null) continue;
+            ids.remove(id);
+            if(ids.isEmpty()) map.remove(key);
+        }
+    }
+
+    private List<DesktopEntry> query(Map<String,Set<String>> map, String key) {
+        lock.readLock().lock();
+        try {
+            final Collection<String> ids = map.getOrDefault(key, Collections.emptySet());
+            return ids.stream()
+                      .sorted()
+                      .map(visible::get)
+                      .collect(Collectors.toList());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,579 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An icon lookup engine implementing the freedesktop.org Icon Theme
+ * Specification on top of the {@link XdgPaths} data directories.
+ *
+ * Icon themes are searched for in {@code $HOME/.icons} followed by the {@code
+ * icons} directory of each data directory, with the {@code pixmaps} directory
+ * of each data directory used for unthemed fallback icons. For each theme
+ * directory, a valid {@code icon-theme.cache} is memory mapped and used to
+ * answer lookups without touching the file system. Theme directories without a
+ * cache, or with a cache older than the directory, are listed once and indexed
+ * in memory. Resolved lookups are kept in a bounded least recently used cache.
+ *
+ * Instances are safe for use by multiple threads. Changes to installed themes
+ * are not detected automatically; call {@link #invalidate()} to discard all
+ * indexes and cached lookups.
+ *
+ * @see <a href="https://specifications.freedesktop.org/icon-theme-spec/latest/">
+ * https://specifications.freedesktop.org/icon-theme-spec/latest/</a>
+ */
+public final class IconThemes {
+
+    /** Name of the theme every theme implicitly inherits from. */
+    public static final String HICOLOR = "hicolor";
+
+    /** Default number of lookups kept in the least recently used cache. */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    /**
+     * Create an icon lookup engine with the default lookup cache size.
+     *
+     * @param paths  XdgPaths instance supplying the search path
+     */
+    public IconThemes(XdgPaths paths) { this(paths, DEFAULT_CACHE_SIZE); }
+
+    /**
+     * Create an icon lookup engine.
+     *
+     * @param paths      XdgPaths instance supplying the search path
+     * @param cacheSize  maximum number of lookups kept in the least recently
+     *                   used cache, zero to disable caching
+     */
+    public IconThemes(XdgPaths paths, int cacheSize) {
+        if(cacheSize<0) throw new IllegalArgumentException("cacheSize < 0");
+
+        final List<Path> bases = new ArrayList<>();
+        bases.add(paths.home(".icons"));
+        bases.addAll(paths.data("icons"));
+        this.bases = Collections.unmodifiableList(bases);
+
+        final List<Path> fallback = new ArrayList<>(bases);
+        fallback.addAll(paths.data("pixmaps"));
+        this.fallback = Collections.unmodifiableList(fallback);
+
+        this.lookups = new Lru<>(cacheSize);
+    }
+
+    /**
+     * Get the base directories searched for icon themes in preferred order.
+     *
+     * @return  base directories
+     */
+    public List<Path> bases() { return bases; }
+
+    /**
+     * Find an icon at scale 1.
+     *
+     * @param name   icon name without extension
+     * @param size   desired icon size in pixels
+     * @param theme  name of the theme to search first
+     *
+     * @return  path to the closest matching icon, or empty if not found
+     */
+    public Optional<Path> lookup(String name, int size, String theme) {
+        return lookup(name, size, 1, theme);
+    }
+
+    /**
+     * Find an icon following the lookup algorithm defined in the
+     * specification: the theme and its parents are searched for an exact size
+     * match and then for the closest size, followed by the hicolor theme and
+     * finally by unthemed icons in the base and pixmaps directories.
+     *
+     * @param name   icon name without extension
+     * @param size   desired icon size in pixels
+     * @param scale  desired icon scale
+     * @param theme  name of the theme to search first
+     *
+     * @return  path to the closest matching icon, or empty if not found
+     */
+    public Optional<Path> lookup(String name, int size, int scale, String theme) {
+        final String key = theme + '\0' + name + '\0' + size + '@' + scale;
+        Optional<Path> result = lookups.get(key);
+        if(result!=null) return result;
+
+        result = find(name, size, scale, theme);
+        lookups.put(key, result);
+        return result;
+    }
+
+    /**
+     * Discard all theme indexes, memory mapped caches and cached lookups so
+     * they are reloaded on next use.
+     */
+    public void invalidate() {
+        themes.clear();
+        lookups.clear();
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /** Image has a {@code .xpm} file. */
+    static final int FLAG_XPM = 1;
+
+    /** Image has a {@code .svg} file. */
+    static final int FLAG_SVG = 2;
+
+    /** Image has a {@code .png} file. */
+    static final int FLAG_PNG = 4;
+
+    /**
+     * Hash function used by {@code icon-theme.cache} files, operating on the
+     * UTF-8 bytes of the icon name as signed chars.
+     *
+     * @param name  UTF-8 encoded icon name
+     *
+     * @return  hash value, to be treated as unsigned
+     */
+    static int hash(byte[] name) {
+        if(name.length==0) return 0;
+        int h = name[0];
+        for(int i=1; i<name.length; i++) h = (h << 5) - h + name[i];
+        return h;
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    /** Extensions in preferred order with their image flags. */
+    private static final String[] EXTENSIONS = { ".png", ".svg", ".xpm" };
+    private static final int[] EXTENSION_FLAGS = { FLAG_PNG, FLAG_SVG, FLAG_XPM };
+
+    /** Icon theme base directories in preferred order. */
+    private final List<Path> bases;
+
+    /** Directories searched for unthemed fallback icons. */
+    private final List<Path> fallback;
+
+    /** Loaded themes by name, empty if the theme is not installed. */
+    private final ConcurrentHashMap<String,Optional<Theme>> themes = new ConcurrentHashMap<>();
+
+    /** Least recently used cache of resolved lookups. */
+    private final Lru<String,Optional<Path>> lookups;
+
+    /** Uncached implementation of the lookup algorithm. */
+    private Optional<Path> find(String name, int size, int scale, String theme) {
+        final Set<String> visited = new HashSet<>();
+        Optional<Path> path = findHelper(name, size, scale, theme, visited);
+        if(!path.isPresent() && !visited.contains(HICOLOR)) {
+            path = findHelper(name, size, scale, HICOLOR, visited);
+        }
+        if(path.isPresent()) return path;
+
+        /* unthemed fallback */
+        for(Path dir : fallback) {
+            for(String ext : EXTENSIONS) {
+                final Path p = dir.resolve(name.concat(ext));
+                if(Files.isRegularFile(p)) return Optional.of(p);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /** Search a theme and, depth first, the themes it inherits from. */
+    private Optional<Path> findHelper(String name, int size, int scale,
+                                      String themeName, Set<String> visited) {
+        if(!visited.add(themeName)) return Optional.empty();
+
+        final Optional<Theme> theme = theme(themeName);
+        if(!theme.isPresent()) return Optional.empty();
+
+        final Optional<Path> path = theme.get().lookup(name, size, scale);
+        if(path.isPresent()) return path;
+
+        for(String parent : theme.get().inherits) {
+            final Optional<Path> p = findHelper(name, size, scale, parent, visited);
+            if(p.isPresent()) return p;
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Get a loaded theme, loading it on first use. A theme that can not be
+     * read is treated as not installed.
+     */
+    private Optional<Theme> theme(String name) {
+        return themes.computeIfAbsent(name, n->{
+            try {
+                return Theme.load(n, bases);
+            } catch(IOException e) {
+                return Optional.empty();
+            }
+        });
+    }
+
+    /** A subdirectory of an icon theme as described by its index.theme. */
+    private static final class Directory {
+        private final String name;
+        private final String type;
+        private final int size;
+        private final int scale;
+        private final int minSize;
+        private final int maxSize;
+        private final int threshold;
+
+        private Directory(String name, Map<String,String> group) {
+            this.name = name;
+            this.size = integer(group.get("Size"), 0);
+            this.scale = integer(group.get("Scale"), 1);
+            this.type = group.getOrDefault("Type", "Threshold");
+            this.minSize = integer(group.get("MinSize"), size);
+            this.maxSize = integer(group.get("MaxSize"), size);
+            this.threshold = integer(group.get("Threshold"), 2);
+        }
+
+        private boolean matches(int iconSize, int iconScale) {
+            if(scale!=iconScale) return false;
+            switch(type) {
+                case "Fixed": return size==iconSize;
+                case "Scalable": return minSize<=iconSize && iconSize<=maxSize;
+                default: return size-threshold<=iconSize && iconSize<=size+threshold;
+            }
+        }
+
+        private int distance(int iconSize, int iconScale) {
+            final int want = iconSize*iconScale;
+            switch(type) {
+                case "Fixed":
+                    return Math.abs(size*scale - want);
+                case "Scalable":
+                    if(want<minSize*scale) return minSize*scale - want;
+                    if(want>maxSize*scale) return want - maxSize*scale;
+                    return 0;
+                default:
+                    if(want<(size-threshold)*scale) return (size-threshold)*scale - want;
+                    if(want>(size+threshold)*scale) return want - (size+threshold)*scale;
+                    return 0;
+            }
+        }
+
+        private static int integer(String value, int def) {
+            if(value==null) return def;
+            try {
+                return Integer.parseInt(value.trim());
+            } catch(NumberFormatException e) {
+                return def;
+            }
+        }
+    }
+
+    /** An installed icon theme and the indexes of each of its base directories. */
+    private static final class Theme {
+        private final List<String> inherits;
+        private final List<Directory> directories;
+        private final List<Path> roots;
+        private final List<IconIndex> indexes;
+
+        private Theme(List<String> inherits, List<Directory> directories,
+                      List<Path> roots, List<IconIndex> indexes) {
+            this.inherits = inherits;
+            this.directories = directories;
+            this.roots = roots;
+            this.indexes = indexes;
+        }
+
+        private static Optional<Theme> load(String name, List<Path> bases) throws IOException {
+            /* the first index.theme found describes the theme */
+            KeyFile index = null;
+            final List<Path> roots = new ArrayList<>();
+            for(Path base : bases) {
+                final Path root = base.resolve(name);
+                if(!Files.isDirectory(root)) continue;
+                roots.add(root);
+                final Path file = root.resolve("index.theme");
+                if(index==null && Files.isRegularFile(file)) index = KeyFile.parse(file);
+            }
+            if(index==null) return Optional.empty();
+
+            final String group = "Icon Theme";
+            final List<String> names = new ArrayList<>(
+                    KeyFile.list(index.get(group, "Directories"), ','));
+            names.addAll(KeyFile.list(index.get(group, "ScaledDirectories"), ','));
+
+            final List<Directory> directories = new ArrayList<>(names.size());
+            for(String dir : names) {
+                final Map<String,String> g = index.group(dir);
+                if(g.containsKey("Size")) directories.add(new Directory(dir, g));
+            }
+
+            final List<IconIndex> indexes = new ArrayList<>(roots.size());
+            for(Path root : roots) {
+                final Optional<IconIndex> cache = CacheIndex.open(root, names);
+                indexes.add(cache.isPresent()?cache.get():ScanIndex.build(root, names));
+            }
+
+            return Optional.of(new Theme(
+                    Collections.unmodifiableList(KeyFile.list(index.get(group, "Inherits"), ',')),
+                    Collections.unmodifiableList(directories),
+                    Collections.unmodifiableList(roots),
+                    Collections.unmodifiableList(indexes)));
+        }
+
+        private Optional<Path> lookup(String name, int size, int scale) {
+            /* gather image flags by directory name for each root */
+            final List<Map<String,Integer>> images = new ArrayList<>(indexes.size());
+            boolean any = false;
+            for(IconIndex index : indexes) {
+                final Map<String,Integer> m = index.images(name);
+                images.add(m);
+                any |= !m.isEmpty();
+            }
+            if(!any) return Optional.empty();
+
+            /* exact match in directory order */
+            for(Directory dir : directories) {
+                if(!dir.matches(size, scale)) continue;
+                final Optional<Path> p = file(dir, name, images);
+                if(p.isPresent()) return p;
+            }
+
+            /* closest match */
+            Path best = null;
+            int min = Integer.MAX_VALUE;
+            for(Directory dir : directories) {
+                final int distance = dir.distance(size, scale);
+                if(distance>=min) continue;
+                final Optional<Path> p = file(dir, name, images);
+                if(p.isPresent()) {
+                    best = p.get();
+                    min = distance;
+                }
+            }
+            return Optional.ofNullable(best);
+        }
+
+        private Optional<Path> file(Directory dir, String name, List<Map<String,Integer>> images) {
+            for(int i=0; i<roots.size(); i++) {
+                final Integer flags = images.get(i).get(dir.name);
+                if(flags==null) continue;
+                for(int e=0; e<EXTENSIONS.length; e++) {
+                    if((flags & EXTENSION_FLAGS[e])!=0) {
+                        return Optional.of(roots.get(i).resolve(dir.name)
+                                                       .resolve(name.concat(EXTENSIONS[e])));
+                    }
+                }
+            }
+            return Optional.empty();
+        }
+    }
+
+    /** Index of the icons available in one base directory of a theme. */
+    private interface IconIndex {
+        /**
+         * Get the image flags of an icon by theme subdirectory name.
+         *
+         * @param name  icon name
+         *
+         * @return  map of subdirectory name to image flags, empty if absent
+         */
+        Map<String,Integer> images(String name);
+    }
+
+    /** Index built by listing each theme subdirectory once. */
+    private static final class ScanIndex implements IconIndex {
+        private final Map<String,Map<String,Integer>> icons;
+
+        private ScanIndex(Map<String,Map<String,Integer>> icons) { this.icons = icons; }
+
+        private static IconIndex build(Path root, List<String> directories) throws IOException {
+            final Map<String,Map<String,Integer>> icons = new HashMap<>();
+            for(String dir : directories) {
+                final Path path = root.resolve(dir);
+                if(!Files.isDirectory(path)) continue;
+                try(DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                    for(Path file : stream) {
+                        final String fname = file.getFileName().toString();
+                        for(int e=0; e<EXTENSIONS.length; e++) {
+                            if(!fname.endsWith(EXTENSIONS[e])) continue;
+                            final String icon = fname.substring(0, fname.length()-EXTENSIONS[e].length());
+                            icons.computeIfAbsent(icon, k->new HashMap<>(4))
+                                 .merge(dir, EXTENSION_FLAGS[e], (a,b)->a|b);
+                        }
+                    }
+                }
+            }
+            return new ScanIndex(icons);
+        }
+
+        @Override
+        public Map<String,Integer> images(String name) {
+            return icons.getOrDefault(name, Collections.emptyMap());
+        }
+    }
+
+    /**
+     * Index backed by a memory mapped icon-theme.cache file. Every offset and
+     * count read from the file is checked against its size, and a cache found
+     * corrupt during a lookup is replaced by scanning the theme directories.
+     */
+    private static final class CacheIndex implements IconIndex {
+        private static final int NONE = 0xffffffff;
+
+        /** Smallest icon entry: next icon, name and image list offsets. */
+        private static final int ICON_SIZE = 12;
+
+        private final ByteBuffer buffer;
+        private final String[] directories;
+        private final Path root;
+        private final List<String> names;
+
+        /** Index used instead once the cache turned out corrupt. */
+        private volatile IconIndex fallback;
+
+        private CacheIndex(ByteBuffer buffer, String[] directories, Path root, List<String> names) {
+            this.buffer = buffer;
+            this.directories = directories;
+            this.root = root;
+            this.names = names;
+        }
+
+        /**
+         * Open the cache of a theme directory if it exists, has a supported
+         * version and is not older than the directory.
+         */
+        private static Optional<IconIndex> open(Path root, List<String> names) {
+            final Path file = root.resolve("icon-theme.cache");
+            try {
+                if(!Files.isRegularFile(file)) return Optional.empty();
+                if(Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(root))<0) {
+                    return Optional.empty();
+                }
+
+                final ByteBuffer buffer;
+                try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                }
+                if(buffer.capacity()<12 || buffer.getShort(0)!=1) return Optional.empty();
+
+                /* the hash table and directory list must lie within the file */
+                final int hashOffset = buffer.getInt(4);
+                check(buffer, hashOffset, 4);
+                check(buffer, hashOffset+4, 4L*buffer.getInt(hashOffset));
+                final int list = buffer.getInt(8);
+                check(buffer, list, 4);
+                final int count = buffer.getInt(list);
+                check(buffer, list+4, 4L*count);
+                final String[] dirs = new String[count];
+                for(int i=0; i<dirs.length; i++) dirs[i] = string(buffer, buffer.getInt(list+4+4*i));
+                return Optional.of(new CacheIndex(buffer, dirs, root, names));
+            } catch(IOException | RuntimeException e) {
+                /* unreadable or corrupt cache, fall back to scanning */
+                return Optional.empty();
+            }
+        }
+
+        @Override
+        public Map<String,Integer> images(String name) {
+            final IconIndex f = fallback;
+            if(f!=null) return f.images(name);
+            try {
+                return cached(name);
+            } catch(IndexOutOfBoundsException e) {
+                /* corrupt cache, scan the directories instead */
+                return fallback().images(name);
+            }
+        }
+
+        private Map<String,Integer> cached(String name) {
+            final byte[] key = name.getBytes(StandardCharsets.UTF_8);
+            final int hashOffset = buffer.getInt(4);
+            final int buckets = buffer.getInt(hashOffset);
+            if(buckets==0) return Collections.emptyMap();
+
+            /* a chain longer than the file can hold icons loops */
+            final int bucket = Integer.remainderUnsigned(hash(key), buckets);
+            int icon = buffer.getInt(hashOffset+4+4*bucket);
+            for(int steps=buffer.capacity()/ICON_SIZE; icon!=NONE; steps--) {
+                if(steps==0) throw new IndexOutOfBoundsException("icon chain loops");
+                check(buffer, icon, ICON_SIZE);
+                if(equals(buffer.getInt(icon+4), key)) {
+                    final int list = buffer.getInt(icon+8);
+                    check(buffer, list, 4);
+                    final int n = buffer.getInt(list);
+                    check(buffer, list+4, 8L*n);
+                    final Map<String,Integer> images = new HashMap<>(n*2);
+                    for(int i=0; i<n; i++) {
+                        final int dir = buffer.getShort(list+4+8*i) & 0xffff;
+                        final int flags = buffer.getShort(list+6+8*i) & 0xffff;
+                        if(dir<directories.length) images.merge(directories[dir], flags, (a,b)->a|b);
+                    }
+                    return images;
+                }
+                icon = buffer.getInt(icon);
+            }
+            return Collections.emptyMap();
+        }
+
+        private synchronized IconIndex fallback() {
+            if(fallback==null) {
+                try {
+                    fallback = ScanIndex.build(root, names);
+                } catch(IOException e) {
+                    fallback = new ScanIndex(Collections.emptyMap());
+                }
+            }
+            return fallback;
+        }
+
+        /** Compare the NUL terminated string at offset with key. */
+        private boolean equals(int offset, byte[] key) {
+            check(buffer, offset, key.length+1L);
+            for(int i=0; i<key.length; i++) {
+                if(buffer.get(offset+i)!=key[i]) return false;
+            }
+            return buffer.get(offset+key.length)==0;
+        }
+
+        /** Check that a range of bytes lies within the cache. */
+        private static void check(ByteBuffer buffer, int offset, long length) {
+            if(offset<0 || length<0 || offset+length>buffer.capacity()) {
+                throw new IndexOutOfBoundsException("corrupt icon-theme.cache");
+            }
+        }
+
+        private static String string(ByteBuffer buffer, int offset) {
+            int end = offset;
+            while(buffer.get(end)!=0) end++;
+            final byte[] bytes = new byte[end-offset];
+            for(int i=0; i<bytes.length; i++) bytes[i] = buffer.get(offset+i);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+}
@@ -0,0 +1,562 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Disk usage of each application under the user specific cache, config and
+ * data directories.
+ *
+ * Each entry directly below a scanned root, normally an application's
+ * directory, is reported with the total size, number of files and oldest and
+ * newest file modification times of the files below it. Directories are
+ * walked in parallel on a fork-join pool, and each application is reported
+ * to a listener as soon as its walk completes. A root may itself be a
+ * symbolic link, but links below it are counted as files and not followed. Files and directories that can not be read, for
+ * lack of permission or otherwise, are left out of the totals and counted as
+ * {@link Usage#skipped() skipped}, and the scan continues.
+ *
+ * A scan may persist a snapshot of every directory it walked under the cache
+ * directory. The next scan then reuses the file totals of each directory
+ * whose modification time is unchanged instead of listing it and reading the
+ * attributes of its files, still descending into its subdirectories. Since a
+ * directory's modification time changes only when entries are added, removed
+ * or renamed in it, files modified in place are not noticed until their
+ * directory changes.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public final class Inventory {
+
+    /** Directories an inventory can scan. */
+    public enum Root {
+        /** The user specific cache directory. */
+        CACHE,
+
+        /** The user specific config directory. */
+        USERCONFIG,
+
+        /** The user specific data directory. */
+        USERDATA;
+
+        /**
+         * Get the directory of this root.
+         *
+         * @param paths  XdgPaths instance
+         *
+         * @return  root directory
+         */
+        public Path path(XdgPaths paths) {
+            switch(this) {
+                case CACHE: return paths.cache();
+                case USERCONFIG: return paths.userconfig();
+                default: return paths.userdata();
+            }
+        }
+    }
+
+    /** Disk usage of an entry directly below a root. */
+    public static final class Usage {
+
+        /** @return  root the entry is below */
+        public Root root() { return root; }
+
+        /** @return  name of the entry, normally the application name */
+        public String name() { return path.getFileName().toString(); }
+
+        /** @return  path of the entry */
+        public Path path() { return path; }
+
+        /** @return  total size of the files, in bytes */
+        public long bytes() { return bytes; }
+
+        /** @return  number of files */
+        public long files() { return files; }
+
+        /** @return  modification time of the oldest file, or empty if none */
+        public Optional<FileTime> oldest() {
+            return files==0?Optional.empty():Optional.of(FileTime.fromMillis(oldest));
+        }
+
+        /** @return  modification time of the newest file, or empty if none */
+        public Optional<FileTime> newest() {
+            return files==0?Optional.empty():Optional.of(FileTime.fromMillis(newest));
+        }
+
+        /**
+         * @return  number of files and directories that could not be read,
+         *          whose contents are missing from the totals
+         */
+        public long skipped() { return skipped; }
+
+        @Override
+        public String toString() {
+            if(skipped==0) return String.format("%s %s: %d bytes, %d files", root, path, bytes, files);
+            return String.format("%s %s: %d bytes, %d files, %d skipped", root, path, bytes, files, skipped);
+        }
+
+        private final Root root;
+        private final Path path;
+        private final long bytes;
+        private final long files;
+        private final long oldest;
+        private final long newest;
+        private final long skipped;
+
+        private Usage(Root root, Path path, Totals t) {
+            this.root = root;
+            this.path = path;
+            this.bytes = t.bytes;
+            this.files = t.files;
+            this.oldest = t.oldest;
+            this.newest = t.newest;
+            this.skipped = t.skipped;
+        }
+    }
+
+    /**
+     * Create a builder for an inventory of the directories of an XdgPaths
+     * instance.
+     *
+     * @param paths  XdgPaths instance
+     *
+     * @return  builder
+     */
+    public static Builder builder(XdgPaths paths) { return new Builder(paths); }
+
+    /** Builder for {@link Inventory} instances. */
+    public static final class Builder {
+
+        /**
+         * Set the roots to scan. The default is every root.
+         *
+         * @param roots  roots to scan
+         *
+         * @return  this builder
+         */
+        public Builder roots(Root... roots) {
+            this.roots = Arrays.asList(roots.clone());
+            return this;
+        }
+
+        /**
+         * Set the number of threads walking directories. The default is
+         * twice the number of processors, and at least 4, as the walk waits
+         * mostly on the file system.
+         *
+         * @param threads  number of threads
+         *
+         * @return  this builder
+         */
+        public Builder parallelism(int threads) {
+            if(threads<1) throw new IllegalArgumentException("threads < 1");
+            this.parallelism = threads;
+            return this;
+        }
+
+        /**
+         * Set whether scans read and write a snapshot under the cache
+         * directory. The default is false.
+         *
+         * @param snapshot  true to use a snapshot
+         *
+         * @return  this builder
+         */
+        public Builder snapshot(boolean snapshot) {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        /**
+         * Create the inventory.
+         *
+         * @return  new inventory
+         */
+        public Inventory build() { return new Inventory(this); }
+
+        private final XdgPaths paths;
+        private List<Root> roots = Arrays.asList(Root.values());
+        private int parallelism = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        private boolean snapshot;
+
+        private Builder(XdgPaths paths) { this.paths = paths; }
+    }
+
+    /**
+     * Get the path of the snapshot.
+     *
+     * @return  snapshot file
+     */
+    public Path snapshotPath() { return snapshot; }
+
+    /**
+     * Scan the roots.
+     *
+     * @return  usage of each entry below the roots, by root and name
+     *
+     * @throws IOException  if a root can not be listed
+     */
+    public List<Usage> scan() throws IOException { return scan(u->{ }); }
+
+    /**
+     * Scan the roots, reporting each entry below them as soon as its walk
+     * completes. The listener is called from the walking threads.
+     *
+     * @param listener  listener of partial results
+     *
+     * @return  usage of each entry below the roots, by root and name
+     *
+     * @throws IOException  if a root can not be listed
+     */
+    public List<Usage> scan(Consumer<? super Usage> listener) throws IOException {
+        final Scan scan = new Scan(useSnapshot?load():Collections.<String,Dir>emptyMap());
+        final List<Usage> result = Collections.synchronizedList(new ArrayList<>());
+        final List<RecursiveAction> tasks = new ArrayList<>();
+
+        for(Root root : roots) {
+            final Path dir = root.path(paths);
+            /* a root linked elsewhere, such as a cache on tmpfs, is still scanned */
+            if(!Files.isDirectory(dir)) continue;
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for(Path entry : stream) {
+                    tasks.add(new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute() {
+                            final Totals t = scan.entry(entry);
+                            if(t==null) return;
+                            final Usage u = new Usage(root, entry, t);
+                            result.add(u);
+                            listener.accept(u);
+                        }
+                    });
+                }
+            }
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() { invokeAll(tasks); }
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        if(useSnapshot) save(scan);
+        listed = scan.listed.sum();
+        reused = scan.reused.sum();
+
+        final List<Usage> sorted = new ArrayList<>(result);
+        sorted.sort(Comparator.comparing(Usage::root).thenComparing(Usage::name));
+        return sorted;
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /**
+     * Get the number of directories listed by the last scan.
+     *
+     * @return  directories listed
+     */
+    long listed() { return listed; }
+
+    /**
+     * Get the number of directories reused from the snapshot by the last
+     * scan.
+     *
+     * @return  directories reused
+     */
+    long reused() { return reused; }
+
+
+    /* private --------------------------------------------------------------*/
+    private static final int MAGIC = 0x58444955;
+    private static final int VERSION = 1;
+
+    /**
+     * Directories modified this close to the start of a scan are not reused
+     * by the next, as a later change within the file system's timestamp
+     * granularity would leave the modification time unchanged.
+     */
+    private static final long UNSTABLE_MILLIS = 2000;
+
+    private final XdgPaths paths;
+    private final List<Root> roots;
+    private final int parallelism;
+    private final boolean useSnapshot;
+    private final Path snapshot;
+    private volatile long listed;
+    private volatile long reused;
+
+    /** File totals of a directory or tree. */
+    private static final class Totals {
+        private long bytes;
+        private long files;
+        private long oldest = Long.MAX_VALUE;
+        private long newest = Long.MIN_VALUE;
+
+        /** Entries that could not be read, never stored in a snapshot. */
+        private long skipped;
+
+        private void file(BasicFileAttributes a) {
+            final long m = a.lastModifiedTime().toMillis();
+            bytes += a.size();
+            files++;
+            oldest = Math.min(oldest, m);
+            newest = Math.max(newest, m);
+        }
+
+        private void add(Totals t) {
+            bytes += t.bytes;
+            files += t.files;
+            oldest = Math.min(oldest, t.oldest);
+            newest = Math.max(newest, t.newest);
+            skipped += t.skipped;
+        }
+    }
+
+    /** Snapshot of a directory: its own files and its subdirectories. */
+    private static final class Dir {
+        private final long modified;
+        private final Totals own;
+        private final List<String> subdirs;
+
+        private Dir(long modified, Totals own, List<String> subdirs) {
+            this.modified = modified;
+            this.own = own;
+            this.subdirs = subdirs;
+        }
+    }
+
+    /** State of a single scan. */
+    private static final class Scan {
+        private final Map<String,Dir> previous;
+        private final Map<String,Dir> next = new ConcurrentHashMap<>();
+        private final long stable = System.currentTimeMillis() - UNSTABLE_MILLIS;
+        private final LongAdder listed = new LongAdder();
+        private final LongAdder reused = new LongAdder();
+
+        private Scan(Map<String,Dir> previous) { this.previous = previous; }
+
+        /** Total an entry directly below a root, or null if it vanished. */
+        private Totals entry(Path entry) {
+            final Totals t = new Totals();
+            final BasicFileAttributes a;
+            try {
+                a = attributes(entry);
+            } catch(IOException e) {
+                t.skipped++;
+                return t;
+            }
+            if(a==null) return null;
+            if(!a.isDirectory()) {
+                t.file(a);
+                return t;
+            }
+            return new Walk(this, entry, a).compute();
+        }
+    }
+
+    /** Walk of a directory tree, forking a walk per subdirectory. */
+    private static final class Walk extends RecursiveTask<Totals> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Scan scan;
+        private final transient Path dir;
+        private final transient BasicFileAttributes attrs;
+
+        private Walk(Scan scan, Path dir, BasicFileAttributes attrs) {
+            this.scan = scan;
+            this.dir = dir;
+            this.attrs = attrs;
+        }
+
+        @Override
+        protected Totals compute() {
+            final String key = dir.toString();
+            final long modified = attrs.lastModifiedTime().toMillis();
+            final Dir prev = scan.previous.get(key);
+
+            Totals own;
+            List<String> subdirs;
+            if(prev!=null && prev.modified==modified) {
+                own = prev.own;
+                subdirs = prev.subdirs;
+                scan.reused.increment();
+            } else {
+                own = new Totals();
+                subdirs = new ArrayList<>();
+                try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for(Path p : stream) {
+                        final BasicFileAttributes a;
+                        try {
+                            a = attributes(p);
+                        } catch(IOException e) {
+                            own.skipped++;
+                            continue;
+                        }
+                        if(a==null) continue;
+                        if(a.isDirectory()) subdirs.add(p.getFileName().toString());
+                        else own.file(a);
+                    }
+                } catch(NoSuchFileException e) {
+                    return new Totals();
+                } catch(IOException | DirectoryIteratorException e) {
+                    /* unreadable, leave the whole subtree out */
+                    final Totals t = new Totals();
+                    t.skipped++;
+                    return t;
+                }
+                scan.listed.increment();
+            }
+
+            final Totals total = new Totals();
+            total.add(own);
+
+            final List<Walk> walks = new ArrayList<>(subdirs.size());
+            for(String name : subdirs) {
+                final Path p = dir.resolve(name);
+                try {
+                    final BasicFileAttributes a = attributes(p);
+                    if(a!=null && a.isDirectory()) walks.add(new Walk(scan, p, a));
+                } catch(IOException e) {
+                    total.skipped++;
+                }
+            }
+            invokeAll(walks);
+            for(Walk w : walks) total.add(w.join());
+
+            /* a directory with unreadable entries is listed again next time */
+            if(own.skipped==0) scan.next.put(key, new Dir(modified<scan.stable?modified:-1, own, subdirs));
+            return total;
+        }
+    }
+
+    private Inventory(Builder b) {
+        this.paths = b.paths;
+        this.roots = Collections.unmodifiableList(new ArrayList<>(b.roots));
+        this.parallelism = b.parallelism;
+        this.useSnapshot = b.snapshot;
+        this.snapshot = paths.cache("xdgpaths", "inventory");
+    }
+
+    /** Read the attributes of a path, or return null if it vanished. */
+    private static BasicFileAttributes attributes(Path p) throws IOException {
+        try {
+            return Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch(NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /** Read the snapshot, or return an empty one if missing or unreadable. */
+    private Map<String,Dir> load() {
+        final Map<String,Dir> dirs = new HashMap<>();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if(in.readInt()!=MAGIC || in.readInt()!=VERSION) return dirs;
+            for(int n=in.readInt(); n>0; n--) {
+                final String key = in.readUTF();
+                final long modified = in.readLong();
+                final Totals own = new Totals();
+                own.bytes = in.readLong();
+                own.files = in.readLong();
+                own.oldest = in.readLong();
+                own.newest = in.readLong();
+                /* counts from a damaged file must not size anything, a short
+                 * file ends in an EOFException instead */
+                final int count = in.readInt();
+                if(count<0) return new HashMap<>();
+                final List<String> subdirs = new ArrayList<>();
+                for(int i=0; i<count; i++) subdirs.add(in.readUTF());
+                dirs.put(key, new Dir(modified, own, subdirs));
+            }
+            return dirs;
+        } catch(IOException | RuntimeException e) {
+            /* missing or damaged, scan everything */
+            return new HashMap<>();
+        }
+    }
+
+    /** Write the snapshot, keeping entries of roots not scanned. */
+    private void save(Scan scan) throws IOException {
+        final Map<String,Dir> dirs = new HashMap<>(scan.next);
+        for(Map.Entry<String,Dir> e : scan.previous.entrySet()) {
+            if(!scanned(paths.fileSystem().getPath(e.getKey()))) dirs.putIfAbsent(e.getKey(), e.getValue());
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dirs.size());
+            for(Map.Entry<String,Dir> e : dirs.entrySet()) {
+                final Dir d = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(d.modified);
+                out.writeLong(d.own.bytes);
+                out.writeLong(d.own.files);
+                out.writeLong(d.own.oldest);
+                out.writeLong(d.own.newest);
+                out.writeInt(d.subdirs.size());
+                for(String s : d.subdirs) out.writeUTF(s);
+            }
+        }
+        CacheFiles.write(snapshot, ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    private boolean scanned(Path dir) {
+        for(Root root : roots) {
+            if(dir.startsWith(root.path(paths))) return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal parser for the group/key/value files used throughout the
+ * freedesktop.org specifications, such as {@code index.theme} and {@code
+ * .desktop} files.
+ *
+ * Values are stored as they appear in the file; {@link #unescape(String)} and
+ * {@link #list(String, char)} may be used to interpret them.
+ *
+ * @see <a href="https://specifications.freedesktop.org/desktop-entry-spec/latest/">
+ * https://specifications.freedesktop.org/desktop-entry-spec/latest/</a>
+ */
+final class KeyFile {
+
+    /**
+     * Parse a key file.
+     *
+     * @param file  path to the key file
+     *
+     * @return  parsed key file
+     *
+     * @throws IOException  if the file can not be read
+     */
+    static KeyFile parse(Path file) throws IOException {
+        try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return parse(reader);
+        }
+    }
+
+    /**
+     * Parse a key file from a reader.
+     *
+     * @param reader  reader positioned at the start of the key file
+     *
+     * @return  parsed key file
+     *
+     * @throws IOException  if the reader fails
+     */
+    static KeyFile parse(BufferedReader reader) throws IOException {
+        final Map<String,Map<String,String>> groups = new LinkedHashMap<>();
+        Map<String,String> group = null;
+
+        String line;
+        while((line = reader.readLine())!=null) {
+            final String trimmed = line.trim();
+
+            /* skip blank lines and comments */
+            if(trimmed.isEmpty() || trimmed.charAt(0)=='#') continue;
+
+            /* group header */
+            if(trimmed.charAt(0)=='[' && trimmed.charAt(trimmed.length()-1)==']') {
+                final String name = trimmed.substring(1, trimmed.length()-1);
+                group = groups.computeIfAbsent(name, k->new LinkedHashMap<>());
+                continue;
+            }
+
+            /* key=value, ignoring entries before the first group */
+            final int eq = trimmed.indexOf('=');
+            if(group==null || eq<1) continue;
+            group.putIfAbsent(trimmed.substring(0, eq).trim(),
+                              trimmed.substring(eq+1).trim());
+        }
+
+        return new KeyFile(groups);
+    }
+
+    /**
+     * Get the keys and raw values of a group.
+     *
+     * @param name  group name
+     *
+     * @return  unmodifiable map of keys to raw values, empty if the group does
+     *          not exist
+     */
+    Map<String,String> group(String name) {
+        final Map<String,String> group = groups.get(name);
+        if(group==null) return Collections.emptyMap();
+        return Collections.unmodifiableMap(group);
+    }
+
+    /**
+     * Get the raw value of a key.
+     *
+     * @param group  group name
+     * @param key    key name
+     *
+     * @return  raw value, or null if not present
+     */
+    String get(String group, String key) {
+        return group(group).get(key);
+    }
+
+    /**
+     * Get the names of all groups in file order.
+     *
+     * @return  group names
+     */
+    Iterable<String> groups() { return groups.keySet(); }
+
+    /**
+     * Replace the escape sequences defined for string values ({@code \s},
+     * {@code \n}, {@code \t}, {@code \r} and {@code \\}).
+     *
+     * @param value  raw value
+     *
+     * @return  unescaped value
+     */
+    static String unescape(String value) {
+        if(value.indexOf('\\')<0) return value;
+
+        final StringBuilder sb = new StringBuilder(value.length());
+        for(int i=0; i<value.length(); i++) {
+            final char c = value.charAt(i);
+            if(c!='\\' || i+1>=value.length()) { sb.append(c); continue; }
+            final char n = value.charAt(++i);
+            switch(n) {
+                case 's': sb.append(' '); break;
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                default: sb.append(n); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Split a raw list value on the given separator, honouring escaped
+     * separators and dropping empty elements.
+     *
+     * @param value  raw value, may be null
+     * @param sep    list separator, {@code ;} for desktop entries and {@code ,}
+     *               for icon themes
+     *
+     * @return  list of unescaped elements
+     */
+    static List<String> list(String value, char sep) {
+        if(value==null || value.isEmpty()) return Collections.emptyList();
+
+        final List<String> list = new ArrayList<>();
+        final StringBuilder sb = new StringBuilder();
+        for(int i=0; i<value.length(); i++) {
+            final char c = value.charAt(i);
+            if(c=='\\' && i+1<value.length() && value.charAt(i+1)==sep) {
+                sb.append(sep);
+                i++;
+            } else if(c==sep) {
+                if(sb.length()>0) list.add(unescape(sb.toString().trim()));
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        if(sb.toString().trim().length()>0) list.add(unescape(sb.toString().trim()));
+        return list;
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    /** Groups in file order, each with keys in file order. */
+    private final Map<String,Map<String,String>> groups;
+
+    private KeyFile(Map<String,Map<String,String>> groups) {
+        this.groups = groups;
+    }
+
+}
@@ -0,0 +1,841 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded key-value store kept in the user specific data directory, for
+ * persistent application state that changes a little at a time.
+ *
+ * Every update is appended to a log of segment files rather than rewriting
+ * the state, and an in-memory index maps each key to the location of its
+ * latest value. Appended records are visible to readers immediately and are
+ * forced to disk in batches every sync interval, or on every update if the
+ * interval is zero; {@link #sync()} forces them at any time. When enough of
+ * the sealed segments hold overwritten or removed values, a background thread
+ * copies their live values into a single segment which replaces them. Records carry a checksum, and a torn record at the end of the log
+ * left by a crash is discarded when the store is opened.
+ *
+ * Updates are serialized, while reads and {@link #snapshot() snapshots}
+ * proceed concurrently with them. A snapshot sees the store as it was when it
+ * was taken. Only one process may open a store at a time.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public final class KeyValueStore implements Closeable {
+
+    /**
+     * Create a builder for a store in {@code userdata(parts)}.
+     *
+     * @param paths  XdgPaths instance
+     * @param parts  path parts relative to the user data directory
+     *
+     * @return  new builder
+     */
+    public static Builder builder(XdgPaths paths, String... parts) {
+        return new Builder(paths.userdata(parts));
+    }
+
+    /** Builder for {@link KeyValueStore} instances. */
+    public static final class Builder {
+
+        /**
+         * Set the interval between forcing appended records to disk. Zero
+         * forces every update before it returns. The default is 100
+         * milliseconds.
+         *
+         * @param millis  sync interval in milliseconds
+         *
+         * @return  this builder
+         */
+        public Builder syncInterval(long millis) {
+            if(millis<0) throw new IllegalArgumentException("millis < 0");
+            this.syncInterval = millis;
+            return this;
+        }
+
+        /**
+         * Set the size at which a segment is sealed and a new one started.
+         * The default is 16 MiB.
+         *
+         * @param bytes  segment size in bytes
+         *
+         * @return  this builder
+         */
+        public Builder segmentSize(long bytes) {
+            if(bytes<=HEADER_SIZE) throw new IllegalArgumentException("bytes <= " + HEADER_SIZE);
+            this.segmentSize = bytes;
+            return this;
+        }
+
+        /**
+         * Set the fraction of the sealed segments holding overwritten or
+         * removed values at which background compaction starts. Garbage in
+         * the segment receiving appends counts once it is sealed. The default
+         * is 0.5.
+         *
+         * @param ratio  garbage ratio between 0 and 1
+         *
+         * @return  this builder
+         */
+        public Builder compactionRatio(double ratio) {
+            if(!(ratio>0 && ratio<=1)) throw new IllegalArgumentException("ratio not in (0, 1]");
+            this.compactionRatio = ratio;
+            return this;
+        }
+
+        /**
+         * Open the store, creating it if necessary.
+         *
+         * @return  open store
+         *
+         * @throws IOException  if the store can not be created or read, or is
+         *                      open in another process
+         */
+        public KeyValueStore build() throws IOException { return new KeyValueStore(this); }
+
+        private final Path root;
+        private long syncInterval = 100;
+        private long segmentSize = 16L * 1024 * 1024;
+        private double compactionRatio = 0.5;
+
+        private Builder(Path root) { this.root = root; }
+    }
+
+    /** A consistent, read only view of the store at a point in time. */
+    public final class Snapshot implements Closeable {
+
+        /**
+         * Get the value of a key as of the snapshot.
+         *
+         * @param key  key
+         *
+         * @return  value, or empty if not present
+         *
+         * @throws IOException  if the value can not be read
+         */
+        public Optional<byte[]> get(String key) throws IOException {
+            if(closed) throw new IllegalStateException("snapshot closed");
+            final Location loc = index.get(key);
+            return loc==null?Optional.empty():Optional.of(read(loc));
+        }
+
+        /**
+         * Get the keys present as of the snapshot.
+         *
+         * @return  unmodifiable set of keys
+         */
+        public Set<String> keys() { return Collections.unmodifiableSet(index.keySet()); }
+
+        /**
+         * Release the segments held by the snapshot. Closing an already
+         * closed snapshot has no effect.
+         *
+         * @throws IOException  if a released segment can not be closed
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized(this) {
+                if(closed) return;
+                closed = true;
+            }
+            for(Segment s : segments) s.release();
+        }
+
+        private final Map<String,Location> index;
+        private final List<Segment> segments;
+        private volatile boolean closed;
+
+        private Snapshot(Map<String,Location> index, List<Segment> segments) {
+            this.index = index;
+            this.segments = segments;
+        }
+    }
+
+    /**
+     * Get the directory holding the log.
+     *
+     * @return  store directory
+     */
+    public Path root() { return root; }
+
+    /**
+     * Get the latest value of a key.
+     *
+     * @param key  key
+     *
+     * @return  value, or empty if not present
+     *
+     * @throws IOException  if the value can not be read
+     */
+    public Optional<byte[]> get(String key) throws IOException {
+        lock.readLock().lock();
+        try {
+            final Location loc = index.get(key);
+            return loc==null?Optional.empty():Optional.of(read(loc));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check whether a key is present.
+     *
+     * @param key  key
+     *
+     * @return  true if present
+     */
+    public boolean contains(String key) { return index.containsKey(key); }
+
+    /**
+     * Get the keys currently present.
+     *
+     * @return  copy of the keys
+     */
+    public Set<String> keys() { return new HashSet<>(index.keySet()); }
+
+    /**
+     * Get the number of keys currently present.
+     *
+     * @return  number of keys
+     */
+    public int size() { return index.size(); }
+
+    /**
+     * Set the value of a key.
+     *
+     * @param key    key
+     * @param value  value
+     *
+     * @throws IOException  if the update can not be appended, or an earlier
+     *                      background sync failed
+     */
+    public synchronized void put(String key, byte[] value) throws IOException {
+        append(key, value);
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param key  key
+     *
+     * @return  true if the key was present
+     *
+     * @throws IOException  if the update can not be appended, or an earlier
+     *                      background sync failed
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        if(!index.containsKey(key)) return false;
+        append(key, null);
+        return true;
+    }
+
+    /**
+     * Take a snapshot of the store. The segments it reads from are kept
+     * until it is closed.
+     *
+     * @return  snapshot, to be closed when done
+     */
+    public synchronized Snapshot snapshot() {
+        ensureOpen();
+        final List<Segment> held = new ArrayList<>(sealed.values());
+        held.add(active);
+        for(Segment s : held) s.retain();
+        return new Snapshot(new HashMap<>(index), held);
+    }
+
+    /**
+     * Force appended records to disk.
+     *
+     * @throws IOException  if the log can not be forced, or an earlier
+     *                      background sync failed
+     */
+    public void sync() throws IOException {
+        final Segment s;
+        synchronized(this) {
+            ensureOpen();
+            s = active;
+        }
+        s.channel.force(false);
+        rethrow();
+    }
+
+    /**
+     * Seal the current segment and compact all sealed segments into one,
+     * waiting until done.
+     *
+     * @throws IOException  if the compacted segment can not be written
+     */
+    public void compact() throws IOException {
+        synchronized(this) {
+            ensureOpen();
+            if(active.size>HEADER_SIZE) roll();
+        }
+        compactSealed();
+    }
+
+    /**
+     * Force appended records to disk, stop the background thread and close
+     * the log. Open snapshots remain readable until closed.
+     *
+     * @throws IOException  if the log can not be forced or closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed) return;
+            closed = true;
+        }
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized(compactor) {
+            lock.writeLock().lock();
+            try {
+                active.channel.force(false);
+                for(Segment s : sealed.values()) s.release();
+                active.release();
+            } finally {
+                lock.writeLock().unlock();
+                fileLock.channel().close();
+            }
+        }
+        rethrow();
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /**
+     * Get the number of segment files in use.
+     *
+     * @return  number of segments
+     */
+    synchronized int segments() { return sealed.size()+1; }
+
+    /**
+     * Get the total size of the segment files.
+     *
+     * @return  bytes in the log
+     */
+    synchronized long logBytes() { return sealedBytes + active.size; }
+
+    /**
+     * Get the size of the records holding the current values.
+     *
+     * @return  live bytes in the log
+     */
+    synchronized long liveBytes() { return liveBytes; }
+
+    /**
+     * Get the number of compactions that wrote a segment.
+     *
+     * @return  compactions
+     */
+    synchronized long compactions() { return compactions; }
+
+
+    /* private --------------------------------------------------------------*/
+    private static final int MAGIC = 0x58444b56; /* "XDKV" */
+    private static final int VERSION = 1;
+
+    /** Segment header: magic, version and the lowest segment id it covers. */
+    private static final int HEADER_SIZE = 16;
+
+    /** Record header: checksum, key length and value length (-1 if removed). */
+    private static final int RECORD_HEADER = 12;
+
+    private static final String SUFFIX = ".log";
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private final Path root;
+    private final long syncInterval;
+    private final long segmentSize;
+    private final double compactionRatio;
+
+    /** Guards segment channels against being closed while read. */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Serializes compactions. */
+    private final Object compactor = new Object();
+
+    /** Latest location of each key, updated while holding this. */
+    private final ConcurrentHashMap<String,Location> index = new ConcurrentHashMap<>();
+
+    /** Sealed segments by id, guarded by this. */
+    private final TreeMap<Long,Segment> sealed = new TreeMap<>();
+
+    /** Segment receiving appends, guarded by this. */
+    private Segment active;
+
+    /**
+     * Sizes of the sealed segments, of the live records and of the live
+     * records in the active segment, guarded by this.
+     */
+    private long sealedBytes;
+    private long liveBytes;
+    private long activeLiveBytes;
+    private long compactions;
+
+    private boolean closed;
+    private boolean compactionQueued;
+
+    private final FileLock fileLock;
+    private final ScheduledExecutorService background;
+
+    /** First background sync or compaction failure. */
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    /** A log segment file, closed once neither the store nor a snapshot uses it. */
+    private static final class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private long size;
+        private int refs = 1;
+        private boolean delete;
+
+        private Segment(long id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        private synchronized void retain() { refs++; }
+
+        private synchronized void release() throws IOException {
+            if(--refs>0) return;
+            channel.close();
+            if(delete) Files.deleteIfExists(path);
+        }
+    }
+
+    /** Location of a value and the size of the record holding it. */
+    private static final class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final int record;
+
+        private Location(Segment segment, long offset, int length, int record) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.record = record;
+        }
+    }
+
+    private KeyValueStore(Builder b) throws IOException {
+        this.root = b.root;
+        this.syncInterval = b.syncInterval;
+        this.segmentSize = b.segmentSize;
+        this.compactionRatio = b.compactionRatio;
+
+        Files.createDirectories(root);
+        final FileChannel lockChannel = FileChannel.open(root.resolve("lock"),
+                                                         StandardOpenOption.CREATE,
+                                                         StandardOpenOption.WRITE);
+        try {
+            this.fileLock = lockChannel.tryLock();
+        } catch(IOException | OverlappingFileLockException e) {
+            lockChannel.close();
+            throw new IOException("store in use: " + root, e);
+        }
+        if(fileLock==null) {
+            lockChannel.close();
+            throw new IOException("store in use: " + root);
+        }
+
+        try {
+            recover();
+        } catch(IOException | RuntimeException e) {
+            for(Segment s : sealed.values()) s.channel.close();
+            lockChannel.close();
+            throw e;
+        }
+
+        this.background = Executors.newSingleThreadScheduledExecutor(r->{
+            final Thread t = new Thread(r, "xdgpaths-kv-" + root.getFileName());
+            t.setDaemon(true);
+            return t;
+        });
+        if(syncInterval>0) {
+            background.scheduleWithFixedDelay(this::backgroundSync, syncInterval, syncInterval,
+                                              TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void ensureOpen() {
+        if(closed) throw new IllegalStateException("store closed: " + root);
+    }
+
+    private void rethrow() throws IOException {
+        final IOException e = failure.getAndSet(null);
+        if(e!=null) throw e;
+    }
+
+    private static Path segmentPath(Path root, long id) {
+        return root.resolve(String.format("%016x", id).concat(SUFFIX));
+    }
+
+    /**
+     * Open the existing segments, drop those superseded by a compacted
+     * segment, replay them into the index and start a new active segment.
+     */
+    private void recover() throws IOException {
+        final TreeMap<Long,Long> floors = new TreeMap<>();
+        try(DirectoryStream<Path> dir = Files.newDirectoryStream(root)) {
+            for(Path p : dir) {
+                final String name = p.getFileName().toString();
+                if(name.endsWith(COMPACT_SUFFIX)) {
+                    /* interrupted compaction */
+                    Files.deleteIfExists(p);
+                } else if(name.endsWith(SUFFIX)) {
+                    final long id;
+                    try {
+                        id = Long.parseUnsignedLong(name.substring(0, name.length()-SUFFIX.length()), 16);
+                    } catch(NumberFormatException e) {
+                        continue;
+                    }
+                    floors.put(id, floor(p, id));
+                }
+            }
+        }
+
+        /* a compacted segment replaces every segment from its floor up */
+        final Set<Long> superseded = new HashSet<>();
+        for(Map.Entry<Long,Long> e : floors.entrySet()) {
+            superseded.addAll(floors.subMap(e.getValue(), e.getKey()).keySet());
+        }
+        for(Long id : superseded) {
+            Files.deleteIfExists(segmentPath(root, id));
+            floors.remove(id);
+        }
+
+        for(Long id : floors.keySet()) {
+            final Segment s = replay(segmentPath(root, id), id);
+            if(s.size>HEADER_SIZE) {
+                sealed.put(id, s);
+                sealedBytes += s.size;
+            } else {
+                /* nothing left to replay, and nothing older it supersedes */
+                s.delete = true;
+                s.release();
+            }
+        }
+
+        final long next = floors.isEmpty()?1:floors.lastKey()+1;
+        active = create(segmentPath(root, next), next, next);
+    }
+
+    /** Read the floor of a segment, or its own id if the header is missing. */
+    private static long floor(Path p, long id) throws IOException {
+        try(FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while(header.hasRemaining() && ch.read(header)>=0);
+            if(header.hasRemaining() || header.getInt(0)!=MAGIC) return id;
+            return Math.min(header.getLong(8), id);
+        }
+    }
+
+    /** Replay a segment into the index, truncating a torn tail. */
+    private Segment replay(Path p, long id) throws IOException {
+        final FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final Segment s = new Segment(id, p, ch, 0);
+        long good = HEADER_SIZE;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(ch.position(0)), 64 * 1024));
+            if(in.readInt()!=MAGIC || in.readInt()!=VERSION) throw new IOException("not a log segment: " + p);
+            in.readLong();
+
+            final CRC32 crc = new CRC32();
+            final long size = ch.size();
+            while(true) {
+                final int sum = in.readInt();
+                final int keyLength = in.readInt();
+                final int valueLength = in.readInt();
+
+                /* lengths from a torn or garbage header must not size the
+                 * buffers beyond what the segment can hold */
+                if(keyLength<0 || valueLength<-1) break;
+                if((long)keyLength + Math.max(valueLength, 0)>size - good - RECORD_HEADER) break;
+                final byte[] key = new byte[keyLength];
+                final byte[] value = new byte[Math.max(valueLength, 0)];
+                in.readFully(key);
+                in.readFully(value);
+
+                crc.reset();
+                crc.update(ByteBuffer.allocate(8).putInt(keyLength).putInt(valueLength).array());
+                crc.update(key);
+                crc.update(value);
+                if((int)crc.getValue()!=sum) break;
+
+                final int record = RECORD_HEADER + key.length + value.length;
+                apply(new String(key, StandardCharsets.UTF_8),
+                      valueLength<0?null:new Location(s, good+RECORD_HEADER+keyLength, valueLength, record));
+                good += record;
+            }
+        } catch(EOFException e) {
+            /* end of segment, possibly torn */
+        } catch(IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+
+        if(ch.size()>good) ch.truncate(good);
+        s.size = good;
+        return s;
+    }
+
+    /** Create an empty segment. */
+    private static Segment create(Path p, long id, long floor) throws IOException {
+        final FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE_NEW,
+                                                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(floor).flip();
+            write(ch, header, 0);
+            return new Segment(id, p, ch, HEADER_SIZE);
+        } catch(IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private static void write(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while(buf.hasRemaining()) position += ch.write(buf, position);
+    }
+
+    private static ByteBuffer record(byte[] key, byte[] value) {
+        final int valueLength = value==null?-1:value.length;
+        final ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + key.length
+                                                   + (value==null?0:value.length));
+        buf.putInt(0).putInt(key.length).putInt(valueLength).put(key);
+        if(value!=null) buf.put(value);
+
+        final CRC32 crc = new CRC32();
+        crc.update(buf.array(), 4, buf.capacity()-4);
+        buf.putInt(0, (int)crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    /** Point a key at a new location, or remove it. Must hold this. */
+    private void apply(String key, Location loc) {
+        final Location old = loc==null?index.remove(key):index.put(key, loc);
+        if(old!=null) {
+            liveBytes -= old.record;
+            if(old.segment==active) activeLiveBytes -= old.record;
+        }
+        if(loc!=null) {
+            liveBytes += loc.record;
+            if(loc.segment==active) activeLiveBytes += loc.record;
+        }
+    }
+
+    private byte[] read(Location loc) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(loc.length);
+        long position = loc.offset;
+        while(buf.hasRemaining()) {
+            final int n = loc.segment.channel.read(buf, position);
+            if(n<0) throw new EOFException("truncated segment: " + loc.segment.path);
+            position += n;
+        }
+        return buf.array();
+    }
+
+    /** Append an update to the active segment. Must hold this. */
+    private void append(String key, byte[] value) throws IOException {
+        ensureOpen();
+        rethrow();
+        if(active.size>=segmentSize) roll();
+
+        final byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buf = record(k, value);
+        final long position = active.size;
+        final int record = buf.remaining();
+        write(active.channel, buf, position);
+        active.size += record;
+        if(syncInterval==0) active.channel.force(false);
+
+        apply(key, value==null?null:new Location(active, position+RECORD_HEADER+k.length,
+                                                 value.length, record));
+
+        /* removals leave their tombstone behind as garbage too; only the
+         * garbage of sealed segments counts, as only they are compacted */
+        final long garbage = sealedBytes - (liveBytes - activeLiveBytes);
+        if(!compactionQueued && !sealed.isEmpty() && sealedBytes>=segmentSize
+           && garbage>compactionRatio*sealedBytes) {
+            compactionQueued = true;
+            background.execute(this::backgroundCompact);
+        }
+    }
+
+    /** Seal the active segment and start a new one. Must hold this. */
+    private void roll() throws IOException {
+        active.channel.force(false);
+        final long next = active.id+1;
+        final Segment s = create(segmentPath(root, next), next, next);
+        sealed.put(active.id, active);
+        sealedBytes += active.size;
+        activeLiveBytes = 0;
+        active = s;
+    }
+
+    private void backgroundSync() {
+        try {
+            final Segment s;
+            synchronized(this) {
+                if(closed) return;
+                s = active;
+            }
+            s.channel.force(false);
+        } catch(IOException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void backgroundCompact() {
+        try {
+            compactSealed();
+        } catch(IOException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            synchronized(this) {
+                compactionQueued = false;
+            }
+        }
+    }
+
+    /**
+     * Copy the live values of the sealed segments into one segment, which
+     * takes the id of the newest of them and replaces it atomically.
+     */
+    private void compactSealed() throws IOException {
+        synchronized(compactor) {
+            final List<Segment> inputs;
+            synchronized(this) {
+                if(closed) return;
+                inputs = new ArrayList<>(sealed.values());
+            }
+            if(inputs.isEmpty()) return;
+            final Segment first = inputs.get(0);
+            final Segment last = inputs.get(inputs.size()-1);
+            if(inputs.size()==1) {
+                synchronized(this) {
+                    if(last.size==HEADER_SIZE) return;
+                }
+            }
+            final Set<Segment> covered = new HashSet<>(inputs);
+
+            /* only this thread moves keys into sealed segments, so every
+             * such key is already in the index */
+            final Path tmp = root.resolve(String.format("%016x", last.id).concat(COMPACT_SUFFIX));
+            Files.deleteIfExists(tmp);
+            final Segment out = create(tmp, last.id, first.id);
+            final Map<String,Location[]> moved = new HashMap<>();
+            try {
+                for(Map.Entry<String,Location> e : index.entrySet()) {
+                    final Location old = e.getValue();
+                    if(!covered.contains(old.segment)) continue;
+
+                    final byte[] k = e.getKey().getBytes(StandardCharsets.UTF_8);
+                    final ByteBuffer buf = record(k, read(old));
+                    final long position = out.size;
+                    final int record = buf.remaining();
+                    write(out.channel, buf, position);
+                    out.size += record;
+                    moved.put(e.getKey(), new Location[] {
+                        old, new Location(out, position+RECORD_HEADER+k.length, old.length, record)
+                    });
+                }
+                out.channel.force(false);
+                Files.move(tmp, last.path, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch(IOException | RuntimeException e) {
+                out.channel.close();
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+            final Segment compacted = new Segment(last.id, last.path, out.channel, out.size);
+
+            synchronized(this) {
+                lock.writeLock().lock();
+                try {
+                    for(Map.Entry<String,Location[]> e : moved.entrySet()) {
+                        final Location[] m = e.getValue();
+
+                        /* keys updated meanwhile already point past the sealed segments */
+                        if(index.get(e.getKey())==m[0]) {
+                            apply(e.getKey(), new Location(compacted, m[1].offset, m[1].length, m[1].record));
+                        }
+                    }
+                    for(Segment s : inputs) {
+                        sealed.remove(s.id);
+                        sealedBytes -= s.size;
+                        s.delete = s!=last;
+                    }
+                    sealed.put(compacted.id, compacted);
+                    sealedBytes += compacted.size;
+                    compactions++;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            for(Segment s : inputs) s.release();
+        }
+    }
+
+}
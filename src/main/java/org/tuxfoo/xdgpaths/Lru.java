@@ -0,0 +1,90 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Synchronized, size bounded least recently used map, shared by the caches
+ * that keep parsed or resolved values in memory.
+ *
+ * @param <K>  key type
+ * @param <V>  value type
+ */
+final class Lru<K,V> {
+
+    /**
+     * Create a map holding at most the given number of entries.
+     *
+     * @param capacity  maximum number of entries, zero to hold none
+     */
+    Lru(int capacity) {
+        this.capacity = capacity;
+        this.map = new LinkedHashMap<K,V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+                return size()>Lru.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the value of a key, marking it most recently used.
+     *
+     * @param key  key
+     *
+     * @return  value, or null if absent
+     */
+    synchronized V get(K key) { return map.get(key); }
+
+    /**
+     * Put a value, evicting the least recently used entry if full.
+     *
+     * @param key    key
+     * @param value  value
+     */
+    synchronized void put(K key, V value) {
+        if(capacity>0) map.put(key, value);
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param key  key
+     */
+    synchronized void remove(K key) { map.remove(key); }
+
+    /** Remove every entry. */
+    synchronized void clear() { map.clear(); }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return  entries
+     */
+    synchronized int size() { return map.size(); }
+
+
+    /* private --------------------------------------------------------------*/
+    private final int capacity;
+    private final LinkedHashMap<K,V> map;
+
+}
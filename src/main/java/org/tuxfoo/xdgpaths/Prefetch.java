@@ -0,0 +1,307 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel prefetch of the config and data files an application reads at
+ * startup.
+ *
+ * The manifest lists each file in the form accepted by {@link
+ * XdgPaths#get(String, String...)}, such as {@code "%config/myapp/app.conf"}
+ * or {@code "%data/myapp/mime.db"}. Every entry is resolved and its
+ * candidates probed in parallel, and the first existing candidate, the one a
+ * reader would pick, is read into memory. Files larger than the read limit are
+ * read through and discarded instead, which leaves them in the page cache for
+ * the real reader.
+ *
+ * Readers then ask for an entry by the same name, waiting only for that entry
+ * if it is still being fetched. Prefetched contents are handed out once and
+ * then dropped, and are not used if the file was modified since it was read;
+ * in either case the file is read from disk again. If the prefetched file was
+ * removed since, the candidates are probed again, giving the same answer as a
+ * lookup without prefetching.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public final class Prefetch {
+
+    /** Default largest file kept in memory, in bytes. */
+    public static final int DEFAULT_READ_LIMIT = 1024 * 1024;
+
+    /**
+     * Start prefetching a manifest on a dedicated pool of threads, which
+     * exit when done.
+     *
+     * @param paths     XdgPaths instance
+     * @param manifest  entries to prefetch
+     *
+     * @return  running prefetch
+     */
+    public static Prefetch start(XdgPaths paths, Collection<String> manifest) {
+        final int threads = Math.max(1, Math.min(manifest.size(), MAX_THREADS));
+        final AtomicInteger n = new AtomicInteger();
+        final ExecutorService pool = Executors.newFixedThreadPool(threads, r->{
+            final Thread t = new Thread(r, "xdgpaths-prefetch-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        final Prefetch prefetch = new Prefetch(paths, manifest, DEFAULT_READ_LIMIT, pool);
+        prefetch.done().whenComplete((v, e)->pool.shutdown());
+        return prefetch;
+    }
+
+    /**
+     * Start prefetching a manifest on an executor.
+     *
+     * @param paths      XdgPaths instance
+     * @param manifest   entries to prefetch
+     * @param readLimit  largest file kept in memory, in bytes
+     * @param executor   executor running the reads
+     *
+     * @return  running prefetch
+     */
+    public static Prefetch start(XdgPaths paths, Collection<String> manifest, int readLimit,
+                                 Executor executor) {
+        if(readLimit<0) throw new IllegalArgumentException("readLimit < 0");
+        return new Prefetch(paths, manifest, readLimit, executor);
+    }
+
+    /**
+     * Get a future completing once every entry has been fetched.
+     *
+     * @return  completion of the prefetch
+     */
+    public CompletableFuture<Void> done() {
+        return CompletableFuture.allOf(entries.values().toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Find the preferred existing file of an entry, waiting for it to be
+     * probed if it is in the manifest.
+     *
+     * @param entry  manifest entry
+     *
+     * @return  first existing candidate, or empty if none exists
+     *
+     * @throws IOException  if the candidates can not be probed
+     */
+    public Optional<Path> find(String entry) throws IOException {
+        final Fetched f = await(entry);
+        if(f!=null && (f.source==null || Files.isRegularFile(f.source))) return Optional.ofNullable(f.source);
+        return Optional.ofNullable(probe(paths.get(entry)));
+    }
+
+    /**
+     * Read the preferred existing file of an entry, using the prefetched
+     * contents if they are still current.
+     *
+     * @param entry  manifest entry
+     *
+     * @return  file contents, or empty if no candidate exists
+     *
+     * @throws IOException  if the file can not be read
+     */
+    public Optional<byte[]> read(String entry) throws IOException {
+        final Fetched f = await(entry);
+        if(f==null) return readFirst(paths.get(entry));
+        if(f.source==null) return Optional.empty();
+
+        final byte[] data = f.take();
+        try {
+            if(data!=null) {
+                final BasicFileAttributes a = Files.readAttributes(f.source, BasicFileAttributes.class);
+                if(a.lastModifiedTime().equals(f.modified) && a.size()==data.length) {
+                    return Optional.of(data);
+                }
+            }
+            return Optional.of(Files.readAllBytes(f.source));
+        } catch(NoSuchFileException e) {
+            /* removed since prefetched, a later candidate may now apply */
+            return readFirst(paths.get(entry));
+        }
+    }
+
+    /**
+     * Open the preferred existing file of an entry, using the prefetched
+     * contents if they are still current.
+     *
+     * @param entry  manifest entry
+     *
+     * @return  stream of the file contents, or empty if no candidate exists
+     *
+     * @throws IOException  if the file can not be read
+     */
+    public Optional<InputStream> open(String entry) throws IOException {
+        return read(entry).map(ByteArrayInputStream::new);
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /**
+     * Check whether an entry's contents are held in memory.
+     *
+     * @param entry  manifest entry
+     *
+     * @return  true if prefetched contents have not yet been handed out
+     */
+    boolean cached(String entry) {
+        final CompletableFuture<Fetched> future = entries.get(entry);
+        return future!=null && future.isDone() && !future.isCompletedExceptionally()
+               && future.join().held();
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    /** Most threads started for a prefetch; reads are I/O bound. */
+    private static final int MAX_THREADS = 16;
+
+    private final XdgPaths paths;
+    private final int readLimit;
+    private final Map<String,CompletableFuture<Fetched>> entries = new LinkedHashMap<>();
+
+    /** An entry's preferred file, and its contents until handed out. */
+    private static final class Fetched {
+        private final Path source;
+        private final FileTime modified;
+        private byte[] data;
+
+        private Fetched(Path source, FileTime modified, byte[] data) {
+            this.source = source;
+            this.modified = modified;
+            this.data = data;
+        }
+
+        private synchronized boolean held() { return data!=null; }
+
+        private synchronized byte[] take() {
+            final byte[] d = data;
+            data = null;
+            return d;
+        }
+    }
+
+    private Prefetch(XdgPaths paths, Collection<String> manifest, int readLimit, Executor executor) {
+        this.paths = paths;
+        this.readLimit = readLimit;
+        for(String entry : manifest) {
+            if(entries.containsKey(entry)) continue;
+            entries.put(entry, CompletableFuture.supplyAsync(()->{
+                try {
+                    return fetch(paths.get(entry));
+                } catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+    }
+
+    /** Wait for an entry in the manifest, or return null if not in it. */
+    private Fetched await(String entry) throws IOException {
+        final CompletableFuture<Fetched> future = entries.get(entry);
+        if(future==null) return null;
+        try {
+            return future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for " + entry);
+        } catch(ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof UncheckedIOException) throw ((UncheckedIOException)cause).getCause();
+            if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /** Return the first regular file among candidates, or null. */
+    private static Path probe(List<Path> candidates) {
+        for(Path c : candidates) {
+            if(Files.isRegularFile(c)) return c;
+        }
+        return null;
+    }
+
+    /** Read the first existing candidate from disk. */
+    private static Optional<byte[]> readFirst(List<Path> candidates) throws IOException {
+        for(Path c : candidates) {
+            try {
+                if(Files.isRegularFile(c)) return Optional.of(Files.readAllBytes(c));
+            } catch(NoSuchFileException e) {
+                /* removed meanwhile */
+            }
+        }
+        return Optional.empty();
+    }
+
+    /** Probe the candidates and read the first existing one. */
+    private Fetched fetch(List<Path> candidates) throws IOException {
+        for(Path c : candidates) {
+            final BasicFileAttributes a;
+            try {
+                a = Files.readAttributes(c, BasicFileAttributes.class);
+            } catch(NoSuchFileException e) {
+                continue;
+            }
+            if(!a.isRegularFile()) continue;
+
+            try {
+                if(a.size()<=readLimit) {
+                    return new Fetched(c, a.lastModifiedTime(), Files.readAllBytes(c));
+                }
+                readThrough(c);
+                return new Fetched(c, a.lastModifiedTime(), null);
+            } catch(NoSuchFileException e) {
+                /* removed meanwhile */
+            }
+        }
+        return new Fetched(null, null, null);
+    }
+
+    /** Read a file sequentially without keeping it, to populate the page cache. */
+    private static void readThrough(Path file) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            while(ch.read(buf)>=0) buf.clear();
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * A cache placement policy that keeps small, frequently used and rebuildable
+ * entries in the user specific runtime directory, which is usually a RAM
+ * backed tmpfs, and everything else in the user specific cache directory.
+ *
+ * An entry lives in exactly one of the two directories. Entries no larger than
+ * the maximum entry size are placed in the runtime directory while the total
+ * size of the entries there stays within the RAM budget; when it would not,
+ * the least recently used runtime entries are {@link Pressure#DEMOTE demoted}
+ * to the cache directory or {@link Pressure#DROP dropped}. Small entries read
+ * from the cache directory are promoted back. If the runtime directory is not
+ * set, every entry is placed in the cache directory.
+ *
+ * The cache keeps its entries in {@code cache} subdirectories of the
+ * application's runtime and cache directories, apart from the lock files,
+ * shared segments and sockets other components keep in the runtime
+ * directory, and only ever evicts entries below its own subdirectory.
+ * Entries already present there, left by an earlier cache of the same
+ * application in the same login session, are counted against the budget
+ * when the cache is created.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public final class RuntimeCache {
+
+    /** What to do with runtime entries evicted to stay within the budget. */
+    public enum Pressure {
+        /** Move the entry to the cache directory. */
+        DEMOTE,
+
+        /** Delete the entry; it will be rebuilt by the caller when needed. */
+        DROP
+    }
+
+    /**
+     * Create a cache for an application, placing entries in {@code
+     * runtime(app, "cache")} and {@code cache(app, "cache")}.
+     *
+     * @param paths         XdgPaths instance
+     * @param app           application name
+     * @param budget        maximum total size of the runtime entries in bytes
+     * @param maxEntrySize  largest entry placed in the runtime directory
+     * @param pressure      handling of entries evicted from the runtime
+     *                      directory
+     *
+     * @throws IOException  if existing runtime entries can not be listed
+     */
+    public RuntimeCache(XdgPaths paths, String app, long budget, int maxEntrySize,
+                        Pressure pressure) throws IOException {
+        this(paths.runtime(app, DIRECTORY), paths.cache(app, DIRECTORY), budget, maxEntrySize, pressure);
+    }
+
+    /**
+     * Check whether entries are being placed in the runtime directory.
+     *
+     * @return  true if the runtime directory is set
+     */
+    public boolean hasRuntime() { return runtime.isPresent(); }
+
+    /**
+     * Get the total size of the entries in the runtime directory.
+     *
+     * @return  bytes used in the runtime directory
+     */
+    public synchronized long runtimeBytes() { return used; }
+
+    /**
+     * Store an entry, placing it in the runtime directory if it is small
+     * enough, otherwise in the cache directory.
+     *
+     * @param key    relative path of the entry
+     * @param value  entry contents
+     *
+     * @return  path the entry was written to
+     *
+     * @throws IOException  if the entry can not be written
+     */
+    public synchronized Path put(String key, byte[] value) throws IOException {
+        final Path disk = CacheFiles.resolve(cache, key);
+        if(!fits(value.length)) {
+            CacheFiles.write(disk, ByteBuffer.wrap(value));
+            removeRuntime(key);
+            return disk;
+        }
+
+        final Path ram = CacheFiles.resolve(runtime.get(), key);
+        CacheFiles.write(ram, ByteBuffer.wrap(value));
+        account(key, value.length);
+        Files.deleteIfExists(disk);
+        relieve(key);
+        return ram;
+    }
+
+    /**
+     * Find the path of an entry in whichever directory it is placed. Unlike
+     * {@link #get(String)}, this does not promote the entry.
+     *
+     * @param key  relative path of the entry
+     *
+     * @return  path of the entry, or empty if not present
+     */
+    public Optional<Path> find(String key) {
+        if(runtime.isPresent()) {
+            final Path ram = CacheFiles.resolve(runtime.get(), key);
+            synchronized(this) {
+                if(entries.get(key)!=null) return Optional.of(ram);
+            }
+        }
+        final Path disk = CacheFiles.resolve(cache, key);
+        return Files.exists(disk)?Optional.of(disk):Optional.empty();
+    }
+
+    /**
+     * Read an entry from whichever directory it is placed, promoting a small
+     * entry from the cache directory to the runtime directory.
+     *
+     * @param key  relative path of the entry
+     *
+     * @return  entry contents, or empty if not present
+     *
+     * @throws IOException  if the entry can not be read
+     */
+    public Optional<byte[]> get(String key) throws IOException {
+        final Path disk = CacheFiles.resolve(cache, key);
+        if(runtime.isPresent()) {
+            final Path ram = CacheFiles.resolve(runtime.get(), key);
+            synchronized(this) {
+                entries.get(key); /* touch */
+            }
+            try {
+                return Optional.of(Files.readAllBytes(ram));
+            } catch(NoSuchFileException e) {
+                /* not placed in the runtime directory, or being demoted */
+            }
+        }
+
+        final byte[] value;
+        try {
+            value = Files.readAllBytes(disk);
+        } catch(NoSuchFileException e) {
+            return Optional.empty();
+        }
+
+        if(fits(value.length)) promote(key, value);
+        return Optional.of(value);
+    }
+
+    /**
+     * Remove an entry from both directories.
+     *
+     * @param key  relative path of the entry
+     *
+     * @throws IOException  if the entry can not be deleted
+     */
+    public synchronized void remove(String key) throws IOException {
+        removeRuntime(key);
+        Files.deleteIfExists(CacheFiles.resolve(cache, key));
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /**
+     * Create a cache over explicit directories.
+     *
+     * @param runtime       runtime directory, or empty if not available
+     * @param cache         cache directory
+     * @param budget        maximum total size of the runtime entries in bytes
+     * @param maxEntrySize  largest entry placed in the runtime directory
+     * @param pressure      handling of entries evicted from the runtime
+     *                      directory
+     *
+     * @throws IOException  if existing runtime entries can not be listed
+     */
+    RuntimeCache(Optional<Path> runtime, Path cache, long budget, int maxEntrySize,
+                 Pressure pressure) throws IOException {
+        if(budget<0) throw new IllegalArgumentException("budget < 0");
+        if(maxEntrySize<0) throw new IllegalArgumentException("maxEntrySize < 0");
+        this.runtime = runtime;
+        this.cache = cache;
+        this.budget = budget;
+        this.maxEntrySize = maxEntrySize;
+        this.pressure = pressure;
+        if(runtime.isPresent()) scan(runtime.get());
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    /** Subdirectory of the application's directories holding the entries. */
+    private static final String DIRECTORY = "cache";
+
+    private final Optional<Path> runtime;
+    private final Path cache;
+    private final long budget;
+    private final int maxEntrySize;
+    private final Pressure pressure;
+
+    /** Runtime entries and their sizes, least recently used first. */
+    private final LinkedHashMap<String,Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Total size of the runtime entries. */
+    private long used;
+
+    private boolean fits(long size) {
+        return runtime.isPresent() && size<=maxEntrySize && size<=budget;
+    }
+
+    /**
+     * Record existing runtime entries, oldest first. The root is the cache's
+     * own subdirectory, so every file below it was written by a cache.
+     */
+    private void scan(Path root) throws IOException {
+        if(!Files.isDirectory(root)) return;
+
+        final List<Path> files = new ArrayList<>();
+        try(Stream<Path> stream = Files.walk(root)) {
+            stream.filter(Files::isRegularFile)
+                  .filter(p->!p.getFileName().toString().startsWith(".tmp"))
+                  .forEach(files::add);
+        }
+
+        final Map<Path,BasicFileAttributes> attrs = new LinkedHashMap<>();
+        for(Path p : files) {
+            try {
+                attrs.put(p, Files.readAttributes(p, BasicFileAttributes.class));
+            } catch(NoSuchFileException e) {
+                /* removed while scanning */
+            }
+        }
+
+        attrs.entrySet().stream()
+             .sorted(Comparator.comparing(e->e.getValue().lastModifiedTime()))
+             .forEach(e->{
+                 final StringBuilder key = new StringBuilder();
+                 for(Path part : root.relativize(e.getKey())) {
+                     if(key.length()>0) key.append('/');
+                     key.append(part);
+                 }
+                 account(key.toString(), e.getValue().size());
+             });
+    }
+
+    /** Record a runtime entry's size. Must hold the lock. */
+    private void account(String key, long size) {
+        final Long old = entries.put(key, size);
+        if(old!=null) used -= old;
+        used += size;
+    }
+
+    /** Move a small entry from the cache directory to the runtime directory. */
+    private synchronized void promote(String key, byte[] value) throws IOException {
+        final Path disk = CacheFiles.resolve(cache, key);
+        if(entries.containsKey(key) || !Files.exists(disk)) return;
+
+        CacheFiles.write(CacheFiles.resolve(runtime.get(), key), ByteBuffer.wrap(value));
+        account(key, value.length);
+        Files.deleteIfExists(disk);
+        relieve(key);
+    }
+
+    /**
+     * Evict least recently used runtime entries other than keep until the
+     * budget is met. Must hold the lock.
+     */
+    private void relieve(String keep) throws IOException {
+        final Iterator<Map.Entry<String,Long>> it = entries.entrySet().iterator();
+        while(used>budget && it.hasNext()) {
+            final Map.Entry<String,Long> e = it.next();
+            if(e.getKey().equals(keep)) continue;
+
+            final Path ram = CacheFiles.resolve(runtime.get(), e.getKey());
+            if(pressure==Pressure.DEMOTE) {
+                /* write the disk copy before removing the runtime copy so
+                 * concurrent readers always find one of them */
+                try {
+                    CacheFiles.write(CacheFiles.resolve(cache, e.getKey()),
+                                     ByteBuffer.wrap(Files.readAllBytes(ram)));
+                } catch(NoSuchFileException ex) {
+                    /* removed by someone else */
+                }
+            }
+            Files.deleteIfExists(ram);
+            used -= e.getValue();
+            it.remove();
+        }
+    }
+
+    /** Delete the runtime copy of an entry. Must hold the lock. */
+    private void removeRuntime(String key) throws IOException {
+        if(!runtime.isPresent()) return;
+        final Long size = entries.remove(key);
+        if(size!=null) used -= size;
+        Files.deleteIfExists(CacheFiles.resolve(runtime.get(), key));
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+
+/**
+ * A small memory mapped segment of counters and leases shared by the
+ * processes of the same user, stored in the user specific runtime directory.
+ *
+ * The segment is an array of slots. Each slot holds either a counter or a
+ * lease, which records an owner token and an expiry time and lets exactly one
+ * process at a time claim a piece of work. Updates lock the slot's byte range
+ * of the file, after first taking an in-JVM lock so that threads of the same
+ * JVM do not collide on the file lock, and then modify the shared mapping, so
+ * other processes observe them without any system call.
+ *
+ * The segment file is created in {@code runtime(app)}, or in {@code
+ * cache(app)} if the runtime directory is not set, and is sized on first open.
+ * All processes must agree on the number of slots and on what each slot is
+ * used for.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public final class SharedSegment implements Closeable {
+
+    /**
+     * Open, creating if necessary, a shared segment for an application.
+     *
+     * @param paths  XdgPaths instance
+     * @param app    application name
+     * @param name   segment name
+     * @param slots  number of slots
+     *
+     * @return  open segment
+     *
+     * @throws IOException  if the segment file can not be created or mapped
+     */
+    public static SharedSegment open(XdgPaths paths, String app, String name, int slots)
+            throws IOException {
+        final String file = name.concat(".shm");
+        return open(paths.runtime(app, file).orElseGet(()->paths.cache(app, file)), slots);
+    }
+
+    /**
+     * Get the number of slots.
+     *
+     * @return  number of slots
+     */
+    public int slots() { return slots; }
+
+    /**
+     * Get the token identifying this instance as a lease owner.
+     *
+     * @return  non-zero owner token
+     */
+    public long owner() { return owner; }
+
+    /**
+     * Read a counter without locking.
+     *
+     * @param slot  slot index
+     *
+     * @return  current value
+     */
+    public long get(int slot) { return buffer.getLong(offset(slot)); }
+
+    /**
+     * Atomically add to a counter.
+     *
+     * @param slot   slot index
+     * @param delta  amount to add
+     *
+     * @return  updated value
+     *
+     * @throws IOException  if the slot can not be locked
+     */
+    public long addAndGet(int slot, long delta) throws IOException {
+        final int off = offset(slot);
+        synchronized(stripe(slot)) {
+            final FileLock lock = channel.lock(off, SLOT_SIZE, false);
+            try {
+                final long value = buffer.getLong(off) + delta;
+                buffer.putLong(off, value);
+                return value;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Atomically set a counter if it has the expected value.
+     *
+     * @param slot    slot index
+     * @param expect  expected value
+     * @param update  new value
+     *
+     * @return  true if the value was updated
+     *
+     * @throws IOException  if the slot can not be locked
+     */
+    public boolean compareAndSet(int slot, long expect, long update) throws IOException {
+        final int off = offset(slot);
+        synchronized(stripe(slot)) {
+            final FileLock lock = channel.lock(off, SLOT_SIZE, false);
+            try {
+                if(buffer.getLong(off)!=expect) return false;
+                buffer.putLong(off, update);
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Claim or renew the lease in a slot. The lease is granted if it is free,
+     * expired, or already owned by this instance.
+     *
+     * @param slot        slot index
+     * @param ttlMillis  lease duration in milliseconds
+     *
+     * @return  true if this instance now holds the lease
+     *
+     * @throws IOException  if the slot can not be locked
+     */
+    public boolean tryLease(int slot, long ttlMillis) throws IOException {
+        final int off = offset(slot);
+        synchronized(stripe(slot)) {
+            final FileLock lock = channel.lock(off, SLOT_SIZE, false);
+            try {
+                final long holder = buffer.getLong(off);
+                final long expiry = buffer.getLong(off+8);
+                final long now = System.currentTimeMillis();
+                if(holder!=0 && holder!=owner && expiry>now) return false;
+                buffer.putLong(off, owner);
+                buffer.putLong(off+8, now+ttlMillis);
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Release the lease in a slot if this instance holds it.
+     *
+     * @param slot  slot index
+     *
+     * @return  true if the lease was held and released
+     *
+     * @throws IOException  if the slot can not be locked
+     */
+    public boolean releaseLease(int slot) throws IOException {
+        final int off = offset(slot);
+        synchronized(stripe(slot)) {
+            final FileLock lock = channel.lock(off, SLOT_SIZE, false);
+            try {
+                if(buffer.getLong(off)!=owner) return false;
+                buffer.putLong(off, 0);
+                buffer.putLong(off+8, 0);
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Close the segment file. The mapping remains valid until garbage
+     * collected, but no further updates may be made.
+     *
+     * @throws IOException  if the file can not be closed
+     */
+    @Override
+    public void close() throws IOException { channel.close(); }
+
+
+    /* package private ------------------------------------------------------*/
+    /**
+     * Open, creating if necessary, a shared segment file.
+     *
+     * @param file   segment file
+     * @param slots  number of slots
+     *
+     * @return  open segment
+     *
+     * @throws IOException  if the segment file can not be created or mapped
+     */
+    static SharedSegment open(Path file, int slots) throws IOException {
+        if(slots<1) throw new IllegalArgumentException("slots < 1");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        final FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                                                StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE);
+        try {
+            final long size = HEADER_SIZE + (long)slots*SLOT_SIZE;
+            final MappedByteBuffer buffer;
+
+            /* initialize the header under a lock on the header bytes */
+            synchronized(SharedSegment.class) {
+                final FileLock lock = ch.lock(0, HEADER_SIZE, false);
+                try {
+                    if(ch.size()<HEADER_SIZE) {
+                        buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                        buffer.putInt(0, MAGIC);
+                        buffer.putInt(4, slots);
+                    } else {
+                        buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, ch.size()));
+                        if(buffer.getInt(0)!=MAGIC) throw new IOException("not a shared segment: " + file);
+                        if(buffer.getInt(4)!=slots) {
+                            throw new IOException("segment " + file + " has " + buffer.getInt(4)
+                                                  + " slots, not " + slots);
+                        }
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+            return new SharedSegment(file.toAbsolutePath().normalize(), ch, buffer, slots);
+        } catch(IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    private static final int MAGIC = 0x58444753; /* "XDGS" */
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 16;
+    private static final int STRIPES = 64;
+
+    /** In-JVM locks shared by all instances, chosen by file and slot. */
+    private static final Object[] LOCKS = new Object[STRIPES];
+    static {
+        for(int i=0; i<LOCKS.length; i++) LOCKS[i] = new Object();
+    }
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final long owner;
+
+    private SharedSegment(Path file, FileChannel channel, MappedByteBuffer buffer, int slots) {
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.slots = slots;
+
+        long token;
+        do {
+            token = RANDOM.nextLong();
+        } while(token==0);
+        this.owner = token;
+    }
+
+    private int offset(int slot) {
+        if(slot<0 || slot>=slots) throw new IndexOutOfBoundsException("slot " + slot);
+        return HEADER_SIZE + slot*SLOT_SIZE;
+    }
+
+    private Object stripe(int slot) {
+        return LOCKS[((file.hashCode()*31 + slot) & 0x7fffffff) % STRIPES];
+    }
+
+}
@@ -0,0 +1,674 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Thumbnail cache following the freedesktop.org thumbnail managing standard,
+ * rooted in the {@code thumbnails} directory under the user specific cache
+ * directory.
+ *
+ * A thumbnail is a PNG file named after the lowercase hex MD5 digest of the
+ * URI of the original, such as {@code normal/c6ee772d9e49320e97ec29a7eb5b1697.png}
+ * for {@code file:///home/jens/photos/me.png}, in a directory for its {@link
+ * Size size}. It carries the URI and modification time of the original in
+ * {@code Thumb::URI} and {@code Thumb::MTime} text chunks, and is valid while
+ * the modification time matches the original's.
+ *
+ * Thumbnails are written to a temporary file and atomically renamed into
+ * place, readable only by the user. Concurrent requests within the JVM for a
+ * thumbnail that is not yet cached run its generator once. The text chunks of
+ * recently used thumbnails are parsed once and kept in a bounded index by the
+ * thumbnail's own modification time and size, so validating a cached
+ * thumbnail costs one {@code stat}. Thumbnails may be pruned by age and
+ * total size, periodically on a background thread.
+ *
+ * Instances are safe for use by multiple threads, and multiple processes may
+ * share the cache.
+ */
+public final class Thumbnails implements Closeable {
+
+    /** Default number of thumbnails whose text chunks are kept in the index. */
+    public static final int DEFAULT_INDEX_SIZE = 4096;
+
+    /** Thumbnail sizes and their directories. */
+    public enum Size {
+        /** At most 128x128 pixels. */
+        NORMAL("normal", 128),
+
+        /** At most 256x256 pixels. */
+        LARGE("large", 256),
+
+        /** At most 512x512 pixels. */
+        X_LARGE("x-large", 512),
+
+        /** At most 1024x1024 pixels. */
+        XX_LARGE("xx-large", 1024);
+
+        /**
+         * Get the name of the directory of this size.
+         *
+         * @return  directory name
+         */
+        public String directory() { return directory; }
+
+        /**
+         * Get the largest width and height of this size.
+         *
+         * @return  size in pixels
+         */
+        public int pixels() { return pixels; }
+
+        private final String directory;
+        private final int pixels;
+
+        private Size(String directory, int pixels) {
+            this.directory = directory;
+            this.pixels = pixels;
+        }
+    }
+
+    /** Generator of thumbnails not yet cached. */
+    @FunctionalInterface
+    public interface Generator {
+        /**
+         * Generate a thumbnail.
+         *
+         * @param uri   URI of the original
+         * @param size  thumbnail size
+         *
+         * @return  PNG image
+         *
+         * @throws IOException  if the thumbnail can not be generated
+         */
+        byte[] generate(URI uri, Size size) throws IOException;
+    }
+
+    /**
+     * Create a builder for a thumbnail cache in the {@code thumbnails}
+     * directory under the user specific cache directory.
+     *
+     * @param paths  XdgPaths instance
+     *
+     * @return  builder
+     */
+    public static Builder builder(XdgPaths paths) {
+        return new Builder(paths.cache("thumbnails"));
+    }
+
+    /** Builder for {@link Thumbnails} instances. */
+    public static final class Builder {
+
+        /**
+         * Set the age after which thumbnails are pruned. The default is 0,
+         * which keeps thumbnails regardless of age.
+         *
+         * @param millis  maximum age in milliseconds
+         *
+         * @return  this builder
+         */
+        public Builder maxAge(long millis) {
+            if(millis<0) throw new IllegalArgumentException("millis < 0");
+            this.maxAge = millis;
+            return this;
+        }
+
+        /**
+         * Set the total size above which the oldest thumbnails are pruned. The
+         * default is 0, which does not limit the size.
+         *
+         * @param bytes  maximum total size in bytes
+         *
+         * @return  this builder
+         */
+        public Builder maxBytes(long bytes) {
+            if(bytes<0) throw new IllegalArgumentException("bytes < 0");
+            this.maxBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Set the interval of background pruning. The default is 0, which
+         * prunes only when {@link Thumbnails#prune()} is called.
+         *
+         * @param millis  interval in milliseconds
+         *
+         * @return  this builder
+         */
+        public Builder pruneInterval(long millis) {
+            if(millis<0) throw new IllegalArgumentException("millis < 0");
+            this.pruneInterval = millis;
+            return this;
+        }
+
+        /**
+         * Set the number of thumbnails whose parsed text chunks are kept in
+         * the least recently used index. The default is {@link
+         * Thumbnails#DEFAULT_INDEX_SIZE}.
+         *
+         * @param entries  maximum number of indexed thumbnails, zero to parse
+         *                 the text chunks on every lookup
+         *
+         * @return  this builder
+         */
+        public Builder indexSize(int entries) {
+            if(entries<0) throw new IllegalArgumentException("entries < 0");
+            this.indexSize = entries;
+            return this;
+        }
+
+        /**
+         * Create the thumbnail cache.
+         *
+         * @return  new thumbnail cache
+         */
+        public Thumbnails build() { return new Thumbnails(this); }
+
+        private final Path root;
+        private long maxAge;
+        private long maxBytes;
+        private long pruneInterval;
+        private int indexSize = DEFAULT_INDEX_SIZE;
+
+        private Builder(Path root) { this.root = root; }
+    }
+
+    /**
+     * Get the name of the thumbnail of a URI.
+     *
+     * @param uri  URI of the original
+     *
+     * @return  file name of the thumbnail
+     */
+    public static String name(URI uri) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch(NoSuchAlgorithmException e) {
+            /* every java platform is required to support MD5 */
+            throw new IllegalStateException(e);
+        }
+        final byte[] digest = md.digest(uri.toASCIIString().getBytes(StandardCharsets.US_ASCII));
+        final char[] c = new char[digest.length*2];
+        for(int i=0; i<digest.length; i++) {
+            c[i*2] = HEX[(digest[i]>>4) & 0xf];
+            c[i*2+1] = HEX[digest[i] & 0xf];
+        }
+        return new String(c).concat(".png");
+    }
+
+    /**
+     * Get the root directory of the cache.
+     *
+     * @return  root directory
+     */
+    public Path root() { return root; }
+
+    /**
+     * Get the path of the thumbnail of a URI, whether or not it exists.
+     *
+     * @param uri   URI of the original
+     * @param size  thumbnail size
+     *
+     * @return  path of the thumbnail
+     */
+    public Path path(URI uri, Size size) {
+        return root.resolve(size.directory()).resolve(name(uri));
+    }
+
+    /**
+     * Find a valid thumbnail of a URI.
+     *
+     * @param uri    URI of the original
+     * @param mtime  modification time of the original
+     * @param size   thumbnail size
+     *
+     * @return  path of the thumbnail, or empty if it does not exist or is
+     *          out of date
+     *
+     * @throws IOException  if the thumbnail can not be read
+     */
+    public Optional<Path> find(URI uri, FileTime mtime, Size size) throws IOException {
+        final Path path = path(uri, size);
+        final Meta meta = meta(path);
+        if(meta==null || !uri.toASCIIString().equals(meta.uri)
+                      || meta.mtime!=mtime.to(TimeUnit.SECONDS)) {
+            return Optional.empty();
+        }
+        return Optional.of(path);
+    }
+
+    /**
+     * Get a valid thumbnail of a URI, generating it if needed. Concurrent
+     * calls for the same thumbnail wait for a single generation.
+     *
+     * @param uri        URI of the original
+     * @param mtime      modification time of the original
+     * @param size       thumbnail size
+     * @param generator  generator of the thumbnail if not cached
+     *
+     * @return  path of the thumbnail
+     *
+     * @throws IOException  if the thumbnail can not be read, generated or
+     *                      written
+     */
+    public Path get(URI uri, FileTime mtime, Size size, Generator generator) throws IOException {
+        final Optional<Path> found = find(uri, mtime, size);
+        if(found.isPresent()) return found.get();
+
+        final Path path = path(uri, size);
+        final CompletableFuture<Path> mine = new CompletableFuture<>();
+        final CompletableFuture<Path> other = inflight.putIfAbsent(path, mine);
+        if(other!=null) return await(other);
+
+        try {
+            /* another thread may have finished between find and putIfAbsent */
+            if(!find(uri, mtime, size).isPresent()) {
+                put(uri, mtime, size, generator.generate(uri, size));
+            }
+            mine.complete(path);
+            return path;
+        } catch(IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(path, mine);
+        }
+    }
+
+    /**
+     * Store a thumbnail of a URI, replacing any existing one. The {@code
+     * Thumb::URI} and {@code Thumb::MTime} text chunks are added to the image.
+     *
+     * @param uri    URI of the original
+     * @param mtime  modification time of the original
+     * @param size   thumbnail size
+     * @param png    PNG image
+     *
+     * @throws IOException  if the image is not a PNG image or can not be
+     *                      written
+     */
+    public void put(URI uri, FileTime mtime, Size size, byte[] png) throws IOException {
+        final Map<String,String> text = new HashMap<>();
+        text.put(URI_KEY, uri.toASCIIString());
+        text.put(MTIME_KEY, Long.toString(mtime.to(TimeUnit.SECONDS)));
+
+        final Path path = path(uri, size);
+        directory(path.getParent());
+        CacheFiles.write(path, ByteBuffer.wrap(withText(png, text)));
+        index.remove(path);
+    }
+
+    /**
+     * Remove the thumbnails of a URI in every size.
+     *
+     * @param uri  URI of the original
+     *
+     * @return  true if a thumbnail was removed
+     *
+     * @throws IOException  if a thumbnail can not be removed
+     */
+    public boolean remove(URI uri) throws IOException {
+        boolean removed = false;
+        for(Size size : Size.values()) {
+            final Path path = path(uri, size);
+            index.remove(path);
+            removed |= Files.deleteIfExists(path);
+        }
+        return removed;
+    }
+
+    /**
+     * Remove thumbnails older than the maximum age, then the oldest
+     * thumbnails until the total size is within the maximum.
+     *
+     * @return  number of thumbnails removed
+     *
+     * @throws IOException  if the cache can not be listed
+     */
+    public int prune() throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        for(Size size : Size.values()) {
+            final Path dir = root.resolve(size.directory());
+            if(!Files.isDirectory(dir)) continue;
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.png")) {
+                for(Path p : stream) {
+                    try {
+                        entries.add(new Entry(p, Files.readAttributes(p, BasicFileAttributes.class)));
+                    } catch(NoSuchFileException e) {
+                        /* removed meanwhile */
+                    }
+                }
+            }
+        }
+        entries.sort(Comparator.comparing(e->e.modified));
+
+        long total = 0;
+        for(Entry e : entries) total += e.size;
+        final long cutoff = maxAge>0?System.currentTimeMillis() - maxAge:Long.MIN_VALUE;
+
+        int removed = 0;
+        for(Entry e : entries) {
+            final boolean old = e.modified.toMillis()<cutoff;
+            final boolean over = maxBytes>0 && total>maxBytes;
+            if(!old && !over) break;
+            index.remove(e.path);
+            if(Files.deleteIfExists(e.path)) removed++;
+            total -= e.size;
+        }
+        return removed;
+    }
+
+    /** Stop background pruning. */
+    @Override
+    public void close() {
+        if(pruner!=null) pruner.shutdownNow();
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /** Get the number of thumbnails in the index. */
+    int indexed() { return index.size(); }
+
+    /**
+     * Replace the text chunks of a PNG image with the given keywords, placing
+     * the new chunks after the image header.
+     *
+     * @param png   PNG image
+     * @param text  text by keyword
+     *
+     * @return  new PNG image
+     *
+     * @throws IOException  if the image is not a PNG image
+     */
+    static byte[] withText(byte[] png, Map<String,String> text) throws IOException {
+        final ByteBuffer in = ByteBuffer.wrap(png);
+        if(png.length<PNG_SIGNATURE.length+CHUNK_OVERHEAD) throw new IOException("not a PNG image");
+        for(byte b : PNG_SIGNATURE) {
+            if(in.get()!=b) throw new IOException("not a PNG image");
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(png.length + 256);
+        out.write(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
+        boolean header = true;
+        while(in.hasRemaining()) {
+            if(in.remaining()<CHUNK_OVERHEAD) throw new IOException("truncated PNG image");
+            final int start = in.position();
+            final int length = in.getInt();
+            final int type = in.getInt();
+            if(length<0 || length>in.remaining()-4) throw new IOException("truncated PNG image");
+
+            final boolean replaced = type==TEXT && text.containsKey(keyword(png, in.position(), length));
+            in.position(in.position() + length + 4);
+            if(!replaced) out.write(png, start, in.position() - start);
+
+            if(header) {
+                if(type!=IHDR) throw new IOException("PNG image does not start with IHDR");
+                for(Map.Entry<String,String> e : text.entrySet()) chunk(out, e.getKey(), e.getValue());
+                header = false;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Read the text chunks of a PNG file, skipping over the image data.
+     *
+     * @param file  PNG file
+     *
+     * @return  text by keyword
+     *
+     * @throws IOException  if the file can not be read or is not a PNG image
+     */
+    static Map<String,String> readText(Path file) throws IOException {
+        final Map<String,String> text = new HashMap<>();
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer head = ByteBuffer.allocate(8);
+            if(!readFully(ch, head) || head.getLong(0)!=ByteBuffer.wrap(PNG_SIGNATURE).getLong()) {
+                throw new IOException("not a PNG image: " + file);
+            }
+            while(true) {
+                head.clear();
+                if(!readFully(ch, head)) throw new IOException("truncated PNG image: " + file);
+                final int length = head.getInt(0);
+                final int type = head.getInt(4);
+                if(length<0) throw new IOException("invalid PNG image: " + file);
+                if(type==IEND) return text;
+
+                if(type==TEXT) {
+                    /* the chunk and its CRC must fit in the rest of the file */
+                    if(length>ch.size() - ch.position() - 4) throw new IOException("truncated PNG image: " + file);
+                    final ByteBuffer data = ByteBuffer.allocate(length);
+                    if(!readFully(ch, data)) throw new IOException("truncated PNG image: " + file);
+                    final byte[] b = data.array();
+                    int nul = 0;
+                    while(nul<b.length && b[nul]!=0) nul++;
+                    if(nul<b.length) {
+                        text.put(new String(b, 0, nul, StandardCharsets.ISO_8859_1),
+                                 new String(b, nul+1, b.length-nul-1, StandardCharsets.ISO_8859_1));
+                    }
+                    ch.position(ch.position() + 4);
+                } else {
+                    ch.position(ch.position() + length + 4);
+                }
+            }
+        }
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final byte[] PNG_SIGNATURE = {
+        (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    /** Length, type and CRC of a chunk. */
+    private static final int CHUNK_OVERHEAD = 12;
+
+    private static final int IHDR = 0x49484452;
+    private static final int TEXT = 0x74455874;
+    private static final int IEND = 0x49454e44;
+
+    private static final String URI_KEY = "Thumb::URI";
+    private static final String MTIME_KEY = "Thumb::MTime";
+
+    private final Path root;
+    private final long maxAge;
+    private final long maxBytes;
+
+    /** Background pruner, null if pruning is not periodic. */
+    private final ScheduledExecutorService pruner;
+
+    /** Generations in progress by thumbnail path. */
+    private final ConcurrentHashMap<Path,CompletableFuture<Path>> inflight = new ConcurrentHashMap<>();
+
+    /** Parsed text chunks by thumbnail path. */
+    private final Lru<Path,Meta> index;
+
+    /** Text chunks of a thumbnail, and the attributes of the file they were read from. */
+    private static final class Meta {
+        private final FileTime modified;
+        private final long size;
+        private final String uri;
+        private final long mtime;
+
+        private Meta(FileTime modified, long size, String uri, long mtime) {
+            this.modified = modified;
+            this.size = size;
+            this.uri = uri;
+            this.mtime = mtime;
+        }
+    }
+
+    /** A thumbnail considered for pruning. */
+    private static final class Entry {
+        private final Path path;
+        private final FileTime modified;
+        private final long size;
+
+        private Entry(Path path, BasicFileAttributes a) {
+            this.path = path;
+            this.modified = a.lastModifiedTime();
+            this.size = a.size();
+        }
+    }
+
+    private Thumbnails(Builder b) {
+        this.root = b.root;
+        this.maxAge = b.maxAge;
+        this.maxBytes = b.maxBytes;
+        this.index = new Lru<>(b.indexSize);
+        if(b.pruneInterval>0) {
+            this.pruner = Executors.newSingleThreadScheduledExecutor(r->{
+                final Thread t = new Thread(r, "xdgpaths-thumbnail-prune");
+                t.setDaemon(true);
+                return t;
+            });
+            pruner.scheduleWithFixedDelay(()->{
+                try {
+                    prune();
+                } catch(IOException e) {
+                    /* retried at the next interval */
+                }
+            }, b.pruneInterval, b.pruneInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.pruner = null;
+        }
+    }
+
+    /** Get the text chunks of a thumbnail, parsing the file only if it changed. */
+    private Meta meta(Path path) throws IOException {
+        final BasicFileAttributes a;
+        try {
+            a = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch(NoSuchFileException e) {
+            index.remove(path);
+            return null;
+        }
+
+        final Meta cached = index.get(path);
+        if(cached!=null && cached.modified.equals(a.lastModifiedTime()) && cached.size==a.size()) {
+            return cached;
+        }
+
+        Meta meta;
+        try {
+            final Map<String,String> text = readText(path);
+            meta = new Meta(a.lastModifiedTime(), a.size(), text.get(URI_KEY), parse(text.get(MTIME_KEY)));
+        } catch(NoSuchFileException e) {
+            index.remove(path);
+            return null;
+        } catch(IOException e) {
+            /* a damaged thumbnail is invalid until replaced */
+            meta = new Meta(a.lastModifiedTime(), a.size(), null, -1);
+        }
+        index.put(path, meta);
+        return meta;
+    }
+
+    private static long parse(String mtime) {
+        try {
+            return mtime!=null?Long.parseLong(mtime.trim()):-1;
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String keyword(byte[] png, int offset, int length) {
+        int end = offset;
+        while(end<offset+length && png[end]!=0) end++;
+        return new String(png, offset, end-offset, StandardCharsets.ISO_8859_1);
+    }
+
+    /** Write a tEXt chunk. */
+    private static void chunk(ByteArrayOutputStream out, String keyword, String value) {
+        final byte[] k = keyword.getBytes(StandardCharsets.ISO_8859_1);
+        final byte[] v = value.getBytes(StandardCharsets.ISO_8859_1);
+        final ByteBuffer b = ByteBuffer.allocate(CHUNK_OVERHEAD + k.length + 1 + v.length);
+        b.putInt(k.length + 1 + v.length).putInt(TEXT).put(k).put((byte)0).put(v);
+        final CRC32 crc = new CRC32();
+        crc.update(b.array(), 4, b.position() - 4);
+        b.putInt((int)crc.getValue());
+        out.write(b.array(), 0, b.capacity());
+    }
+
+    private static boolean readFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()) {
+            if(ch.read(buf)<0) return false;
+        }
+        return true;
+    }
+
+    /** Create a thumbnail directory, accessible only by the user. */
+    private static void directory(Path dir) throws IOException {
+        if(Files.isDirectory(dir)) return;
+        if(dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(dir);
+        }
+    }
+
+    private static Path await(CompletableFuture<Path> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch(ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException)cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IOException(cause);
+        }
+    }
+
+}
@@ -0,0 +1,553 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A two tier cache with a bounded memory tier in front of files in a
+ * directory under the user specific cache directory.
+ *
+ * Keys are relative paths within the cache directory, so existing cache files
+ * are served as is. Values held by the memory tier are stored in direct
+ * buffers outside the garbage collected heap, and are returned as read only
+ * views without copying. The memory tier is bounded by the total size of its
+ * values; an {@link Admission} policy decides which values read from disk are
+ * worth keeping and an {@link Eviction} policy decides which values make room
+ * for them.
+ *
+ * In {@link WriteMode#WRITE_THROUGH} mode, {@link #put(String, ByteBuffer)}
+ * returns once the value is on disk. In {@link WriteMode#WRITE_BEHIND} mode
+ * the value is written by a background thread and reads see the pending value
+ * until it is written; {@link #flush()} waits for pending writes.
+ *
+ * The memory tier does not observe changes made to the files by other
+ * processes; use {@link #invalidate(String)} to drop a stale value.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public final class TieredCache implements Closeable {
+
+    /** Policy for writing values to the disk tier. */
+    public enum WriteMode {
+        /** Write values to disk before put returns. */
+        WRITE_THROUGH,
+
+        /** Write values to disk asynchronously after put returns. */
+        WRITE_BEHIND
+    }
+
+    /** Policy for admitting values read from disk into the memory tier. */
+    public enum Admission {
+        /** Admit every value that fits. */
+        ALWAYS,
+
+        /**
+         * Admit a value only when it is read from disk a second time within
+         * the recent history, keeping one hit wonders out of memory.
+         */
+        SECOND_HIT
+    }
+
+    /** Policy for choosing values to evict from the memory tier. */
+    public enum Eviction {
+        /** Evict the least recently used value. */
+        LRU,
+
+        /** Evict the value admitted first. */
+        FIFO
+    }
+
+    /**
+     * Create a builder for a cache in a directory relative to the user
+     * specific cache directory.
+     *
+     * @param paths  XdgPaths instance
+     * @param parts  path components of the cache relative to the cache
+     *               directory, such as the application name
+     *
+     * @return  builder
+     */
+    public static Builder builder(XdgPaths paths, String... parts) {
+        return new Builder(paths.cache(parts));
+    }
+
+    /** Builder for {@link TieredCache} instances. */
+    public static final class Builder {
+
+        /**
+         * Set the maximum total size of the values in the memory tier. The
+         * default is 64 MiB.
+         *
+         * @param bytes  capacity in bytes
+         *
+         * @return  this builder
+         */
+        public Builder memoryCapacity(long bytes) {
+            if(bytes<0) throw new IllegalArgumentException("bytes < 0");
+            this.memoryCapacity = bytes;
+            return this;
+        }
+
+        /**
+         * Set the size of the largest value admitted to the memory tier. The
+         * default is 1 MiB.
+         *
+         * @param bytes  maximum value size in bytes
+         *
+         * @return  this builder
+         */
+        public Builder maxEntrySize(int bytes) {
+            if(bytes<0) throw new IllegalArgumentException("bytes < 0");
+            this.maxEntrySize = bytes;
+            return this;
+        }
+
+        /**
+         * Set the admission policy. The default is {@link Admission#ALWAYS}.
+         *
+         * @param admission  admission policy
+         *
+         * @return  this builder
+         */
+        public Builder admission(Admission admission) {
+            this.admission = admission;
+            return this;
+        }
+
+        /**
+         * Set the eviction policy. The default is {@link Eviction#LRU}.
+         *
+         * @param eviction  eviction policy
+         *
+         * @return  this builder
+         */
+        public Builder eviction(Eviction eviction) {
+            this.eviction = eviction;
+            return this;
+        }
+
+        /**
+         * Set the write mode. The default is {@link WriteMode#WRITE_THROUGH}.
+         *
+         * @param writeMode  write mode
+         *
+         * @return  this builder
+         */
+        public Builder writeMode(WriteMode writeMode) {
+            this.writeMode = writeMode;
+            return this;
+        }
+
+        /**
+         * Create the cache.
+         *
+         * @return  new cache
+         */
+        public TieredCache build() { return new TieredCache(this); }
+
+        private final Path root;
+        private long memoryCapacity = 64L * 1024 * 1024;
+        private int maxEntrySize = 1024 * 1024;
+        private Admission admission = Admission.ALWAYS;
+        private Eviction eviction = Eviction.LRU;
+        private WriteMode writeMode = WriteMode.WRITE_THROUGH;
+
+        private Builder(Path root) { this.root = root; }
+    }
+
+    /** Point in time statistics of a cache. */
+    public static final class Stats {
+
+        /** @return  lookups answered by the memory tier */
+        public long memoryHits() { return memoryHits; }
+
+        /** @return  lookups not answered by the memory tier */
+        public long memoryMisses() { return memoryMisses; }
+
+        /** @return  lookups answered by the disk tier */
+        public long diskHits() { return diskHits; }
+
+        /** @return  lookups not answered by either tier */
+        public long diskMisses() { return diskMisses; }
+
+        /** @return  values evicted from the memory tier */
+        public long evictions() { return evictions; }
+
+        /** @return  number of values in the memory tier */
+        public long memoryEntries() { return memoryEntries; }
+
+        /** @return  total size of the values in the memory tier */
+        public long memoryBytes() { return memoryBytes; }
+
+        /** @return  fraction of lookups answered by the memory tier */
+        public double memoryHitRatio() { return ratio(memoryHits, memoryMisses); }
+
+        /** @return  fraction of lookups reaching the disk tier answered by it */
+        public double diskHitRatio() { return ratio(diskHits, diskMisses); }
+
+        @Override
+        public String toString() {
+            return String.format("memory %d/%d (%.3f), disk %d/%d (%.3f), "
+                                 + "%d entries, %d bytes, %d evictions",
+                                 memoryHits, memoryHits+memoryMisses, memoryHitRatio(),
+                                 diskHits, diskHits+diskMisses, diskHitRatio(),
+                                 memoryEntries, memoryBytes, evictions);
+        }
+
+        private final long memoryHits;
+        private final long memoryMisses;
+        private final long diskHits;
+        private final long diskMisses;
+        private final long evictions;
+        private final long memoryEntries;
+        private final long memoryBytes;
+
+        private Stats(long memoryHits, long memoryMisses, long diskHits, long diskMisses,
+                      long evictions, long memoryEntries, long memoryBytes) {
+            this.memoryHits = memoryHits;
+            this.memoryMisses = memoryMisses;
+            this.diskHits = diskHits;
+            this.diskMisses = diskMisses;
+            this.evictions = evictions;
+            this.memoryEntries = memoryEntries;
+            this.memoryBytes = memoryBytes;
+        }
+
+        private static double ratio(long hits, long misses) {
+            return hits+misses==0?0.0:(double)hits/(hits+misses);
+        }
+    }
+
+    /**
+     * Get the root directory of the disk tier.
+     *
+     * @return  root directory
+     */
+    public Path root() { return root; }
+
+    /**
+     * Get a value, from the memory tier if present, otherwise from the disk
+     * tier.
+     *
+     * @param key  relative path of the value within the cache directory
+     *
+     * @return  read only view of the value, or empty if not cached
+     *
+     * @throws IOException  if the value can not be read from disk
+     */
+    public Optional<ByteBuffer> get(String key) throws IOException {
+        final Path path = CacheFiles.resolve(root, key);
+
+        ByteBuffer value = memoryGet(key);
+        if(value!=null) {
+            memoryHits.increment();
+            return Optional.of(value.asReadOnlyBuffer());
+        }
+        memoryMisses.increment();
+
+        value = pending.get(key);
+        if(value==null) value = read(path, admit(key));
+        if(value==null) {
+            diskMisses.increment();
+            return Optional.empty();
+        }
+        diskHits.increment();
+
+        if(value.isDirect()) memoryPut(key, value, false);
+        return Optional.of(value.asReadOnlyBuffer());
+    }
+
+    /**
+     * Put a value in both tiers. The buffer's remaining bytes are copied.
+     *
+     * @param key    relative path of the value within the cache directory
+     * @param value  value
+     *
+     * @throws IOException  if the value can not be written in write through
+     *                      mode
+     */
+    public void put(String key, ByteBuffer value) throws IOException {
+        final Path path = CacheFiles.resolve(root, key);
+
+        final ByteBuffer copy = value.remaining()<=maxEntrySize?
+                                ByteBuffer.allocateDirect(value.remaining()):
+                                ByteBuffer.allocate(value.remaining());
+        copy.put(value.duplicate()).flip();
+        if(copy.isDirect()) memoryPut(key, copy, true);
+        else memoryRemove(key);
+
+        if(writeMode==WriteMode.WRITE_THROUGH) {
+            CacheFiles.write(path, copy.duplicate());
+            return;
+        }
+
+        pending.put(key, copy);
+        writer.execute(()->{
+            final ByteBuffer v = pending.get(key);
+            if(v==null) return;
+            try {
+                CacheFiles.write(path, v.duplicate());
+            } catch(IOException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                pending.remove(key, v);
+            }
+        });
+    }
+
+    /**
+     * Put a value in both tiers.
+     *
+     * @param key    relative path of the value within the cache directory
+     * @param value  value
+     *
+     * @throws IOException  if the value can not be written in write through
+     *                      mode
+     */
+    public void put(String key, byte[] value) throws IOException {
+        put(key, ByteBuffer.wrap(value));
+    }
+
+    /**
+     * Drop a value from the memory tier, so the next read comes from disk.
+     *
+     * @param key  relative path of the value within the cache directory
+     */
+    public void invalidate(String key) {
+        CacheFiles.resolve(root, key);
+        memoryRemove(key);
+    }
+
+    /**
+     * Remove a value from both tiers.
+     *
+     * @param key  relative path of the value within the cache directory
+     *
+     * @throws IOException  if the file can not be deleted
+     */
+    public void remove(String key) throws IOException {
+        final Path path = CacheFiles.resolve(root, key);
+        memoryRemove(key);
+        flush();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Wait for all pending write behind writes to reach disk.
+     *
+     * @throws IOException  if a write behind write failed since the last
+     *                      flush
+     */
+    public void flush() throws IOException {
+        if(writeMode==WriteMode.WRITE_BEHIND) {
+            try {
+                writer.submit(()->{}).get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch(ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        final IOException e = failure.getAndSet(null);
+        if(e!=null) throw e;
+    }
+
+    /**
+     * Get the current statistics.
+     *
+     * @return  statistics
+     */
+    public Stats stats() {
+        final long entries, bytes;
+        synchronized(memory) {
+            entries = memory.size();
+            bytes = memoryBytes;
+        }
+        return new Stats(memoryHits.sum(), memoryMisses.sum(), diskHits.sum(),
+                         diskMisses.sum(), evictions.sum(), entries, bytes);
+    }
+
+    /**
+     * Flush pending writes, stop the write behind thread and release the
+     * memory tier.
+     *
+     * @throws IOException  if a pending write failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if(writer!=null) {
+                writer.shutdown();
+                try {
+                    writer.awaitTermination(1, TimeUnit.MINUTES);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized(memory) {
+                memory.clear();
+                memoryBytes = 0;
+            }
+        }
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    /** Number of key hashes remembered by the second hit admission policy. */
+    private static final int HISTORY_SIZE = 16 * 1024;
+
+    private final Path root;
+    private final long memoryCapacity;
+    private final int maxEntrySize;
+    private final Admission admission;
+    private final WriteMode writeMode;
+
+    /** Memory tier, guarded by itself. */
+    private final LinkedHashMap<String,ByteBuffer> memory;
+
+    /** Total size of the values in the memory tier, guarded by memory. */
+    private long memoryBytes;
+
+    /** Key hashes recently read from disk, guarded by itself. */
+    private final LinkedHashMap<Integer,Boolean> history;
+
+    /** Values waiting to be written in write behind mode. */
+    private final ConcurrentHashMap<String,ByteBuffer> pending = new ConcurrentHashMap<>();
+
+    /** Background writer, null in write through mode. */
+    private final ExecutorService writer;
+
+    /** First write behind failure since the last flush. */
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder memoryMisses = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder diskMisses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private TieredCache(Builder b) {
+        this.root = b.root;
+        this.memoryCapacity = b.memoryCapacity;
+        this.maxEntrySize = (int)Math.min(b.maxEntrySize, b.memoryCapacity);
+        this.admission = b.admission;
+        this.writeMode = b.writeMode;
+        this.memory = new LinkedHashMap<>(16, 0.75f, b.eviction==Eviction.LRU);
+        this.history = new LinkedHashMap<Integer,Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer,Boolean> eldest) {
+                return size()>HISTORY_SIZE;
+            }
+        };
+        this.writer = writeMode==WriteMode.WRITE_BEHIND?
+                      Executors.newSingleThreadExecutor(r->{
+                          final Thread t = new Thread(r, "xdgpaths-write-behind");
+                          t.setDaemon(true);
+                          return t;
+                      }):null;
+    }
+
+    /** Decide whether a value read from disk should enter the memory tier. */
+    private boolean admit(String key) {
+        if(admission==Admission.ALWAYS) return true;
+        synchronized(history) {
+            return history.put(key.hashCode(), Boolean.TRUE)!=null;
+        }
+    }
+
+    private ByteBuffer memoryGet(String key) {
+        synchronized(memory) {
+            return memory.get(key);
+        }
+    }
+
+    /**
+     * Put a direct buffer in the memory tier, evicting as needed. Unless
+     * replace is set, an existing value is kept.
+     */
+    private void memoryPut(String key, ByteBuffer value, boolean replace) {
+        synchronized(memory) {
+            final ByteBuffer old = replace?memory.put(key, value):memory.putIfAbsent(key, value);
+            if(old!=null && !replace) return;
+            if(old!=null) memoryBytes -= old.capacity();
+            memoryBytes += value.capacity();
+
+            final Iterator<Map.Entry<String,ByteBuffer>> it = memory.entrySet().iterator();
+            while(memoryBytes>memoryCapacity && it.hasNext()) {
+                final Map.Entry<String,ByteBuffer> e = it.next();
+                memoryBytes -= e.getValue().capacity();
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private void memoryRemove(String key) {
+        synchronized(memory) {
+            final ByteBuffer old = memory.remove(key);
+            if(old!=null) memoryBytes -= old.capacity();
+        }
+    }
+
+    /**
+     * Read a file into a direct buffer if it is small enough and direct is
+     * set, otherwise into a heap buffer.
+     *
+     * @return  value, or null if the file does not exist
+     */
+    private ByteBuffer read(Path path, boolean direct) throws IOException {
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = ch.size();
+            if(size>Integer.MAX_VALUE) throw new IOException("too large: " + path);
+            final ByteBuffer buf = direct && size<=maxEntrySize?
+                                   ByteBuffer.allocateDirect((int)size):
+                                   ByteBuffer.allocate((int)size);
+            while(buf.hasRemaining() && ch.read(buf)>=0) { /* fill */ }
+            buf.flip();
+            return buf;
+        } catch(NoSuchFileException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cached view of the {@code user-dirs.dirs} file written by xdg-user-dirs,
+ * which maps well known user directories such as {@code XDG_DOWNLOAD_DIR} to
+ * paths.
+ *
+ * The file is parsed on first use and the result kept as an immutable map.
+ * Each lookup compares the modification time of the file with that of the
+ * parsed copy and reparses only if it changed. Lookups never block; if several
+ * threads observe a change at once, each may parse the file but only one
+ * result is published.
+ *
+ * @see <a href="https://www.freedesktop.org/wiki/Software/xdg-user-dirs/">
+ * https://www.freedesktop.org/wiki/Software/xdg-user-dirs/</a>
+ */
+final class UserDirs {
+
+    /**
+     * Create a user directory lookup for a {@code user-dirs.dirs} file.
+     *
+     * @param file  path to the user-dirs.dirs file
+     * @param home  user home directory used to expand {@code $HOME}
+     */
+    UserDirs(Path file, Path home) {
+        this.file = file;
+        this.home = home;
+    }
+
+    /**
+     * Get all user directories defined in the file.
+     *
+     * @return  unmodifiable map of variable name, such as {@code
+     *          XDG_DOWNLOAD_DIR}, to path
+     */
+    Map<String,Path> all() { return current().dirs; }
+
+    /**
+     * Get a user directory by name. The name may be given as the variable
+     * name ({@code XDG_DOWNLOAD_DIR}) or the short name ({@code DOWNLOAD} or
+     * {@code download}).
+     *
+     * @param name  user directory name
+     *
+     * @return  path of the user directory, or empty if not defined
+     */
+    Optional<Path> get(String name) {
+        return Optional.ofNullable(all().get(key(name)));
+    }
+
+    /**
+     * Convert a short user directory name to its variable name.
+     *
+     * @param name  short or variable name
+     *
+     * @return  variable name
+     */
+    static String key(String name) {
+        final String upper = name.toUpperCase(Locale.ROOT);
+        if(upper.startsWith("XDG_") && upper.endsWith("_DIR")) return upper;
+        return "XDG_".concat(upper).concat("_DIR");
+    }
+
+    /**
+     * Parse the contents of a user-dirs.dirs file. Only lines of the form
+     * {@code XDG_NAME_DIR="$HOME/path"} or {@code XDG_NAME_DIR="/path"} are
+     * recognized, as described in the file's header comment.
+     *
+     * @param reader  reader for the file contents
+     * @param home    user home directory used to expand {@code $HOME}
+     *
+     * @return  map of variable name to path
+     *
+     * @throws IOException  if the reader fails
+     */
+    static Map<String,Path> parse(BufferedReader reader, Path home) throws IOException {
+        final Map<String,Path> dirs = new LinkedHashMap<>();
+        String line;
+        while((line = reader.readLine())!=null) {
+            line = line.trim();
+            if(line.isEmpty() || line.charAt(0)=='#') continue;
+
+            final int eq = line.indexOf('=');
+            if(eq<1) continue;
+            final String key = line.substring(0, eq).trim();
+            String value = line.substring(eq+1).trim();
+
+            /* strip quotes and shell escapes */
+            if(value.length()<2 || value.charAt(0)!='"' || value.charAt(value.length()-1)!='"') continue;
+            value = unquote(value.substring(1, value.length()-1));
+
+            if(value.equals("$HOME")) {
+                dirs.put(key, home);
+            } else if(value.startsWith("$HOME/")) {
+                dirs.put(key, home.resolve(value.substring(6)));
+            } else if(value.startsWith("/")) {
+                dirs.put(key, home.getFileSystem().getPath(value));
+            }
+        }
+        return dirs;
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    /** Path to the user-dirs.dirs file. */
+    private final Path file;
+
+    /** User home directory. */
+    private final Path home;
+
+    /** Most recently parsed contents, null until first use. */
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+    /** Parsed contents and the modification time they were parsed at. */
+    private static final class Snapshot {
+        private final FileTime modified;
+        private final Map<String,Path> dirs;
+
+        private Snapshot(FileTime modified, Map<String,Path> dirs) {
+            this.modified = modified;
+            this.dirs = dirs;
+        }
+    }
+
+    /** Get an up to date snapshot, reparsing if the file changed. */
+    private Snapshot current() {
+        final Snapshot cur = snapshot.get();
+        final FileTime modified = modified();
+        if(cur!=null && Objects.equals(cur.modified, modified)) return cur;
+
+        final Snapshot next = load(modified);
+        /* a concurrent reload may have won; either result is current */
+        snapshot.compareAndSet(cur, next);
+        return next;
+    }
+
+    /** Modification time of the file, or null if it does not exist. */
+    private FileTime modified() {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private Snapshot load(FileTime modified) {
+        if(modified==null) return new Snapshot(null, Collections.emptyMap());
+        try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return new Snapshot(modified, Collections.unmodifiableMap(parse(reader, home)));
+        } catch(IOException e) {
+            /* missing or unreadable, retry on next lookup if the file exists */
+            return new Snapshot(null, Collections.emptyMap());
+        }
+    }
+
+    private static String unquote(String value) {
+        if(value.indexOf('\\')<0) return value;
+        final StringBuilder sb = new StringBuilder(value.length());
+        for(int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            if(c=='\\' && i+1<value.length()) c = value.charAt(++i);
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+}
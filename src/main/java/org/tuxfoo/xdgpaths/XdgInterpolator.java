@@ -0,0 +1,195 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Expands the tokens recognized by {@link XdgPaths#get(String, String...)}
+ * anywhere in text, such as the values of a config file.
+ *
+ * Each of {@code %cache}, {@code %config}, {@code %data}, {@code %home},
+ * {@code %runtime}, {@code %userconfig} and {@code %userdata} is replaced by
+ * the corresponding directory, so {@code %cache/myapp/tmp} becomes {@code
+ * /home/user/.cache/myapp/tmp}. Tokens naming a list of directories, {@code
+ * %config} and {@code %data}, are replaced by the preferred one, the user
+ * specific directory. A token must not be followed by a letter, digit or
+ * underscore, so {@code %cachedir} is left as is, as is {@code %runtime} when
+ * the runtime directory is not set. {@code %%} is replaced by a single
+ * {@code %}.
+ *
+ * The directories are resolved once, when the interpolator is created, and
+ * text is expanded in a single pass without regular expressions, so large
+ * files can be streamed through {@link #expand(Reader, Writer)}.
+ *
+ * Instances are immutable and safe for use by multiple threads.
+ */
+public final class XdgInterpolator {
+
+    /**
+     * Create an interpolator for the directories of an XdgPaths instance.
+     *
+     * @param paths  XdgPaths instance
+     */
+    public XdgInterpolator(XdgPaths paths) {
+        final List<String> n = new ArrayList<>();
+        final List<String> v = new ArrayList<>();
+        add(n, v, "cache", paths.cache());
+        add(n, v, "config", paths.config().get(0));
+        add(n, v, "data", paths.data().get(0));
+        add(n, v, "home", paths.home());
+        final Optional<Path> runtime = paths.runtime();
+        if(runtime.isPresent()) add(n, v, "runtime", runtime.get());
+        add(n, v, "userconfig", paths.userconfig());
+        add(n, v, "userdata", paths.userdata());
+
+        this.names = new char[n.size()][];
+        this.values = v.toArray(new String[0]);
+        int longest = 0;
+        for(int i=0; i<names.length; i++) {
+            names[i] = n.get(i).toCharArray();
+            longest = Math.max(longest, names[i].length);
+        }
+        this.longest = longest;
+    }
+
+    /**
+     * Expand the tokens in text.
+     *
+     * @param text  text to expand
+     *
+     * @return  expanded text
+     */
+    public String expand(CharSequence text) {
+        final char[] chars = text.toString().toCharArray();
+        final StringWriter out = new StringWriter(chars.length + 64);
+        try {
+            expand(chars, 0, chars.length, true, out);
+        } catch(IOException e) {
+            /* not thrown by StringWriter */
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Expand the tokens in a stream of text. The reader is read to its end;
+     * neither the reader nor the writer is closed.
+     *
+     * @param in   text to expand
+     * @param out  destination of the expanded text
+     *
+     * @throws IOException  if the text can not be read or written
+     */
+    public void expand(Reader in, Writer out) throws IOException {
+        final char[] buf = new char[BUFFER_SIZE];
+        int len = 0;
+        boolean last = false;
+        while(!last) {
+            final int n = in.read(buf, len, buf.length - len);
+            if(n<0) last = true; else len += n;
+
+            /* keep a possibly partial token for the next read */
+            final int done = expand(buf, 0, len, last, out);
+            System.arraycopy(buf, done, buf, 0, len - done);
+            len -= done;
+        }
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Token names without the leading %, and their replacements. */
+    private final char[][] names;
+    private final String[] values;
+
+    /** Length of the longest token name. */
+    private final int longest;
+
+    private static void add(List<String> names, List<String> values, String name, Path path) {
+        names.add(name);
+        values.add(path.toString());
+    }
+
+    /**
+     * Expand the tokens in a range of characters, stopping early at a % too
+     * close to the end to tell whether it starts a token unless this is the
+     * last range.
+     *
+     * @return  index of the first character not expanded
+     */
+    private int expand(char[] b, int off, int end, boolean last, Writer out) throws IOException {
+        /* %, name, and the character after it */
+        final int lookahead = longest + 2;
+        int run = off;
+        int i = off;
+        while(i<end) {
+            if(b[i]!='%') {
+                i++;
+                continue;
+            }
+            if(!last && end-i<lookahead) break;
+
+            out.write(b, run, i - run);
+            if(i+1<end && b[i+1]=='%') {
+                out.write('%');
+                i += 2;
+            } else {
+                final int limit = Math.min(end, i + lookahead);
+                int j = i + 1;
+                while(j<limit && identifier(b[j])) j++;
+                final String value = j-i-1<=longest?lookup(b, i+1, j-i-1):null;
+                if(value!=null) {
+                    out.write(value);
+                    i = j;
+                } else {
+                    out.write('%');
+                    i++;
+                }
+            }
+            run = i;
+        }
+        out.write(b, run, i - run);
+        return i;
+    }
+
+    private String lookup(char[] b, int off, int len) {
+        for(int t=0; t<names.length; t++) {
+            final char[] name = names[t];
+            if(name.length!=len) continue;
+            int k = 0;
+            while(k<len && name[k]==b[off+k]) k++;
+            if(k==len) return values[t];
+        }
+        return null;
+    }
+
+    private static boolean identifier(char c) {
+        return (c>='a' && c<='z') || (c>='A' && c<='Z') || (c>='0' && c<='9') || c=='_';
+    }
+
+}
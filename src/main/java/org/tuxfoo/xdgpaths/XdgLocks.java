@@ -0,0 +1,318 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Named locks shared by the threads of this JVM and by other processes of the
+ * same user, backed by lock files in the user specific runtime directory.
+ *
+ * Acquiring a lock first takes an in-JVM lock of its own for the lock file,
+ * so threads of the same JVM queue in memory rather than on the operating
+ * system lock, and only then takes an exclusive {@link FileChannel#lock()
+ * file lock}. In-JVM locks exist only while a thread holds or waits for them,
+ * and different names never share one. Locks are reentrant for the thread
+ * holding them. As with any locks, nested locks of different names should be
+ * acquired in a consistent order.
+ *
+ * Lock files live in {@code runtime(app, "locks")}, or in {@code cache(app,
+ * "locks")} if the runtime directory is not set. They are never deleted, as
+ * deleting a lock file races with processes waiting on it.
+ *
+ * Instances are safe for use by multiple threads, and any number of instances
+ * may share a directory.
+ */
+public final class XdgLocks {
+
+    /**
+     * Create named locks for an application.
+     *
+     * @param paths  XdgPaths instance
+     * @param app    application name
+     */
+    public XdgLocks(XdgPaths paths, String app) {
+        this(paths.runtime(app, "locks").orElseGet(()->paths.cache(app, "locks")));
+    }
+
+    /**
+     * Get the directory holding the lock files.
+     *
+     * @return  lock directory
+     */
+    public Path root() { return root; }
+
+    /**
+     * Acquire a named lock, waiting as long as necessary.
+     *
+     * @param name  lock name
+     *
+     * @return  held lock, to be closed by the same thread to release it
+     *
+     * @throws IOException  if the lock file can not be locked
+     */
+    public Lock lock(String name) throws IOException {
+        final Path file = file(name);
+        final ReentrantLock local = reference(file);
+        local.lock();
+        try {
+            return acquire(file, local, false);
+        } catch(IOException | RuntimeException e) {
+            local.unlock();
+            dereference(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Acquire a named lock if it is not held by another thread or process.
+     *
+     * @param name  lock name
+     *
+     * @return  held lock, to be closed by the same thread to release it, or
+     *          empty if the lock is held elsewhere
+     *
+     * @throws IOException  if the lock file can not be opened
+     */
+    public Optional<Lock> tryLock(String name) throws IOException {
+        final Path file = file(name);
+        final ReentrantLock local = reference(file);
+        if(!local.tryLock()) {
+            dereference(file);
+            return Optional.empty();
+        }
+        try {
+            final Lock lock = acquire(file, local, true);
+            if(lock==null) {
+                local.unlock();
+                dereference(file);
+            }
+            return Optional.ofNullable(lock);
+        } catch(IOException | RuntimeException e) {
+            local.unlock();
+            dereference(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Claim the single instance of a named service for this process. The
+     * claim is held until the returned lock is closed or the process exits,
+     * and the lock file records the process id of the holder.
+     *
+     * @param name  instance name
+     *
+     * @return  held claim, or empty if another process or thread holds it
+     *
+     * @throws IOException  if the lock file can not be opened or written
+     */
+    public Optional<Lock> acquireSingleInstance(String name) throws IOException {
+        final Optional<Lock> lock = tryLock(name.concat(".instance"));
+        if(lock.isPresent()) {
+            final FileChannel ch = lock.get().held.channel;
+            ch.truncate(0);
+            ch.write(ByteBuffer.wrap(pid().concat("\n").getBytes(StandardCharsets.UTF_8)), 0);
+        }
+        return lock;
+    }
+
+    /**
+     * Get the process id recorded by the last holder of a single instance
+     * claim.
+     *
+     * @param name  instance name
+     *
+     * @return  recorded process id, or empty if none was recorded
+     *
+     * @throws IOException  if the lock file can not be read
+     */
+    public Optional<String> singleInstanceOwner(String name) throws IOException {
+        final Path file = file(name.concat(".instance"));
+
+        /* closing any channel on a locked file may release the locks this
+         * JVM holds on it, so only read it while no thread here can lock it */
+        final ReentrantLock local = reference(file);
+        local.lock();
+        try {
+            if(HELD.containsKey(file)) return Optional.of(pid());
+            if(!Files.exists(file)) return Optional.empty();
+            final String pid = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            return pid.isEmpty()?Optional.empty():Optional.of(pid);
+        } finally {
+            local.unlock();
+            dereference(file);
+        }
+    }
+
+    /** A held lock, released by closing it. */
+    public static final class Lock implements AutoCloseable {
+
+        /**
+         * Release the lock. Must be called by the thread that acquired it;
+         * closing an already closed lock has no effect.
+         *
+         * @throws IOException  if the file lock can not be released
+         */
+        @Override
+        public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            try {
+                if(--held.count==0) {
+                    HELD.remove(held.file);
+                    try {
+                        held.lock.release();
+                    } finally {
+                        held.channel.close();
+                    }
+                }
+            } finally {
+                local.unlock();
+                dereference(held.file);
+            }
+        }
+
+        private final Held held;
+        private final ReentrantLock local;
+        private boolean closed;
+
+        private Lock(Held held, ReentrantLock local) {
+            this.held = held;
+            this.local = local;
+        }
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /**
+     * Create named locks with lock files in a directory.
+     *
+     * @param root  lock directory
+     */
+    XdgLocks(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Get the id of this process.
+     *
+     * @return  process id, or the JVM name if it can not be determined
+     */
+    static String pid() {
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        final int at = name.indexOf('@');
+        return at>0?name.substring(0, at):name;
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    /**
+     * In-JVM locks shared by all instances, by lock file, with the number of
+     * threads holding or waiting for each.
+     */
+    private static final ConcurrentHashMap<Path,Local> LOCKS = new ConcurrentHashMap<>();
+
+    /** File locks held by this JVM, accessed only while holding the file's in-JVM lock. */
+    private static final ConcurrentHashMap<Path,Held> HELD = new ConcurrentHashMap<>();
+
+    /** Lock directory. */
+    private final Path root;
+
+    /** An operating system lock held by this JVM. */
+    private static final class Held {
+        private final Path file;
+        private final FileChannel channel;
+        private final FileLock lock;
+        private int count;
+
+        private Held(Path file, FileChannel channel, FileLock lock) {
+            this.file = file;
+            this.channel = channel;
+            this.lock = lock;
+        }
+    }
+
+    /** An in-JVM lock, and its references, which are counted in LOCKS.compute. */
+    private static final class Local {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int references;
+    }
+
+    private Path file(String name) {
+        if(name.isEmpty() || name.indexOf('/')>=0 || name.indexOf('\\')>=0 || name.startsWith(".")) {
+            throw new IllegalArgumentException("invalid lock name: " + name);
+        }
+        return root.resolve(name.concat(".lock")).toAbsolutePath().normalize();
+    }
+
+    /** Get the in-JVM lock of a file, counting a reference to it. */
+    private static ReentrantLock reference(Path file) {
+        return LOCKS.compute(file, (f, local)->{
+            final Local l = local!=null?local:new Local();
+            l.references++;
+            return l;
+        }).lock;
+    }
+
+    /** Drop a reference to the in-JVM lock of a file, removing it when unused. */
+    private static void dereference(Path file) {
+        LOCKS.computeIfPresent(file, (f, local)->--local.references==0?null:local);
+    }
+
+    /**
+     * Take the file lock, or join the hold of the current thread. Must hold
+     * the file's in-JVM lock.
+     *
+     * @return  lock, or null if trylock is set and the file is locked elsewhere
+     */
+    private static Lock acquire(Path file, ReentrantLock local, boolean trylock) throws IOException {
+        Held held = HELD.get(file);
+        if(held==null) {
+            Files.createDirectories(file.getParent());
+            final FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE);
+            try {
+                final FileLock lock = trylock?ch.tryLock():ch.lock();
+                if(lock==null) {
+                    ch.close();
+                    return null;
+                }
+                held = new Held(file, ch, lock);
+            } catch(IOException | RuntimeException e) {
+                ch.close();
+                throw e;
+            }
+            HELD.put(file, held);
+        }
+        held.count++;
+        return new Lock(held, local);
+    }
+
+}
@@ -0,0 +1,835 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * File lookup over a search path, such as the config or data directories,
+ * with an in-memory layer in front of the directories.
+ *
+ * Files are named relative to the search path roots using {@code /} as the
+ * separator, as in {@code "myapp/app.conf"}. The in-memory layer holds files
+ * put into it or {@link #preload(String) preloaded} from the roots, and may
+ * hide files of the roots. In {@link Mode#OVERLAY overlay} mode a lookup
+ * consults the in-memory layer and then each root in preferred order; in
+ * {@link Mode#ISOLATED isolated} mode it consults only the in-memory layer,
+ * so lookups never touch the disk once the files they need are preloaded.
+ *
+ * The roots may belong to any file system; see {@link
+ * XdgPaths#withFileSystem(java.nio.file.FileSystem)}. Defaults bundled with
+ * an application, in a jar or zip file or on the classpath, can be {@link
+ * #attach(Path, String) attached} after the roots. Attached roots are indexed
+ * once when attached, so a name missing from the roots is resolved against
+ * them with a map lookup rather than a scan of the archive.
+ *
+ * Symbolic links below the roots are followed wherever files are listed. A
+ * directory that can not be listed completely, because a subdirectory is
+ * unreadable or links form a loop, is not indexed or filtered, and its files
+ * are looked up directly instead.
+ *
+ * Lookups may also {@link #filter(int) filter} the roots: each root is
+ * scanned once into a Bloom filter of the names below it, and a root whose
+ * filter rules a name out is skipped without a call to the file system.
+ * Files created in a root after the scan are not found until the name, or
+ * the filters, are {@link #invalidate(String) invalidated}.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public final class XdgLookup implements Closeable {
+
+    /** Whether lookups fall through to the roots. */
+    public enum Mode {
+        /** Consult the in-memory layer, then the roots. */
+        OVERLAY,
+
+        /** Consult only the in-memory layer. */
+        ISOLATED
+    }
+
+    /**
+     * Create a lookup over the config directories.
+     *
+     * @param paths  XdgPaths instance
+     * @param mode   lookup mode
+     *
+     * @return  new lookup
+     */
+    public static XdgLookup config(XdgPaths paths, Mode mode) {
+        return new XdgLookup(paths.config(), mode);
+    }
+
+    /**
+     * Create a lookup over the data directories.
+     *
+     * @param paths  XdgPaths instance
+     * @param mode   lookup mode
+     *
+     * @return  new lookup
+     */
+    public static XdgLookup data(XdgPaths paths, Mode mode) {
+        return new XdgLookup(paths.data(), mode);
+    }
+
+    /**
+     * Create a lookup over a search path.
+     *
+     * @param roots  root directories in preferred order
+     * @param mode   lookup mode
+     */
+    public XdgLookup(List<Path> roots, Mode mode) {
+        this.roots = Collections.unmodifiableList(new ArrayList<>(roots));
+        this.mode = mode;
+    }
+
+    /**
+     * Get the root directories.
+     *
+     * @return  root directories in preferred order
+     */
+    public List<Path> roots() { return roots; }
+
+    /**
+     * Get the attached roots.
+     *
+     * @return  attached roots in preferred order, after {@link #roots()}
+     */
+    public List<Path> attached() {
+        final List<Path> list = new ArrayList<>(attached.size());
+        for(Attached a : attached) list.add(a.root);
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Get the lookup mode.
+     *
+     * @return  lookup mode
+     */
+    public Mode mode() { return mode; }
+
+    /** A file found by a lookup. */
+    public static final class Resource {
+
+        /**
+         * Get the name the file was looked up by.
+         *
+         * @return  relative name
+         */
+        public String name() { return name; }
+
+        /**
+         * Get the path of the file in its root.
+         *
+         * @return  path, or empty if the file is in memory
+         */
+        public Optional<Path> path() { return Optional.ofNullable(path); }
+
+        /**
+         * Check whether the file is held in memory.
+         *
+         * @return  true if the file is in the in-memory layer
+         */
+        public boolean inMemory() { return data!=null; }
+
+        /**
+         * Read the contents of the file.
+         *
+         * @return  file contents
+         *
+         * @throws IOException  if the file can not be read
+         */
+        public byte[] read() throws IOException {
+            return data!=null?data.clone():Files.readAllBytes(path);
+        }
+
+        /**
+         * Open the file for reading.
+         *
+         * @return  input stream
+         *
+         * @throws IOException  if the file can not be opened
+         */
+        public InputStream open() throws IOException {
+            return data!=null?new ByteArrayInputStream(data):Files.newInputStream(path);
+        }
+
+        @Override
+        public String toString() { return data!=null?"memory:".concat(name):path.toString(); }
+
+        private final String name;
+        private final Path path;
+        private final byte[] data;
+
+        private Resource(String name, Path path, byte[] data) {
+            this.name = name;
+            this.path = path;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Attach a directory, or a directory of a jar or zip file, after the
+     * roots and any previously attached roots. The files below it are
+     * indexed now; files added to it later are not found, unless the
+     * directory could not be listed completely and so is not indexed.
+     *
+     * @param archive  directory, or jar or zip file
+     * @param dir      relative name of the directory within the archive
+     *                 corresponding to the roots, or an empty string for its
+     *                 top level
+     *
+     * @return  this lookup
+     *
+     * @throws IOException  if the archive can not be opened or indexed
+     */
+    public XdgLookup attach(Path archive, String dir) throws IOException {
+        if(Files.isDirectory(archive)) return attach(archive, dir, null);
+
+        final FileSystem fs = FileSystems.newFileSystem(archive, (ClassLoader)null);
+        try {
+            return attach(fs.getPath("/"), dir, fs);
+        } catch(IOException | RuntimeException e) {
+            fs.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Attach a directory of the classpath after the roots and any previously
+     * attached roots, as found by {@link ClassLoader#getResource(String)}.
+     * The files below it are indexed now. A directory in a jar file is only
+     * found if the jar has an entry for it, as those written by the jar tool
+     * do.
+     *
+     * @param loader  class loader
+     * @param dir     resource name of the directory, such as
+     *                {@code "org/example/defaults"}
+     *
+     * @return  this lookup
+     *
+     * @throws IOException  if the directory is not found or can not be indexed
+     */
+    public XdgLookup attach(ClassLoader loader, String dir) throws IOException {
+        final String name = normalize(dir);
+        final URL url = loader.getResource(name);
+        if(url==null) throw new FileNotFoundException("resource not found: " + name);
+
+        final URI uri;
+        try {
+            uri = url.toURI();
+        } catch(URISyntaxException e) {
+            throw new IOException("invalid resource url: " + url, e);
+        }
+        if(!"jar".equals(uri.getScheme())) return attach(Paths.get(uri), "", null);
+
+        /* a jar already opened as a file system is shared, not owned */
+        FileSystem fs;
+        try {
+            fs = FileSystems.newFileSystem(uri, Collections.<String,Object>emptyMap());
+        } catch(FileSystemAlreadyExistsException e) {
+            fs = null;
+        }
+        try {
+            final Path root = fs!=null?fs.provider().getPath(uri):Paths.get(uri);
+            return attach(root, "", fs);
+        } catch(IOException | RuntimeException e) {
+            if(fs!=null) fs.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Close the file systems opened for attached jar and zip files.
+     *
+     * @throws IOException  if a file system can not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for(Attached a : attached) {
+            if(a.owned==null) continue;
+            try {
+                a.owned.close();
+            } catch(IOException e) {
+                if(error==null) error = e; else error.addSuppressed(e);
+            }
+        }
+        attached.clear();
+        if(error!=null) throw error;
+    }
+
+    /**
+     * Put a file in the in-memory layer, shadowing the roots.
+     *
+     * @param name      relative name
+     * @param contents  file contents
+     */
+    public void put(String name, byte[] contents) {
+        memory.put(normalize(name), contents.clone());
+    }
+
+    /**
+     * Hide a file of the roots, as if it did not exist.
+     *
+     * @param name  relative name
+     */
+    public void hide(String name) { memory.put(normalize(name), HIDDEN); }
+
+    /**
+     * Remove a file, or a hidden marker, from the in-memory layer.
+     *
+     * @param name  relative name
+     */
+    public void reset(String name) { memory.remove(normalize(name)); }
+
+    /** Remove every file and hidden marker from the in-memory layer. */
+    public void clear() { memory.clear(); }
+
+    /**
+     * Copy the files below a directory of the roots and attached roots into
+     * the in-memory layer, replacing existing entries. Where several roots
+     * hold a file, the preferred one is copied.
+     *
+     * @param dir  relative name of the directory
+     *
+     * @return  number of files copied
+     *
+     * @throws IOException  if a file can not be read
+     */
+    public int preload(String dir) throws IOException {
+        final String prefix = dir.isEmpty()?"":normalize(dir);
+        final Map<String,byte[]> found = new HashMap<>();
+        for(int i=attached.size()-1; i>=0; i--) {
+            final Attached a = attached.get(i);
+            final Map<String,Path> index = a.index!=null?a.index:files(a.root, a.root);
+            for(Map.Entry<String,Path> e : index.entrySet()) {
+                if(prefix.isEmpty() || e.getKey().startsWith(prefix + "/")) {
+                    found.put(e.getKey(), Files.readAllBytes(e.getValue()));
+                }
+            }
+        }
+        for(int i=roots.size()-1; i>=0; i--) {
+            final Path root = roots.get(i);
+            final Path base = prefix.isEmpty()?root:root.resolve(prefix);
+            if(!Files.isDirectory(base)) continue;
+
+            for(Map.Entry<String,Path> e : files(root, base).entrySet()) {
+                found.put(e.getKey(), Files.readAllBytes(e.getValue()));
+            }
+        }
+        memory.putAll(found);
+        return found.size();
+    }
+
+    /**
+     * Find the preferred file of a name.
+     *
+     * @param name  relative name
+     *
+     * @return  file, or empty if not found or hidden
+     */
+    public Optional<Resource> find(String name) {
+        final String n = normalize(name);
+        final byte[] data = memory.get(n);
+        if(data==HIDDEN) return Optional.empty();
+        if(data!=null) return Optional.of(new Resource(n, null, data));
+        if(mode==Mode.ISOLATED) return Optional.empty();
+
+        final Filter[] f = filters;
+        for(int i=0; i<roots.size(); i++) {
+            final Path p = probe(f, i, n);
+            if(p!=null) return Optional.of(new Resource(n, p, null));
+        }
+        for(Attached a : attached) {
+            final Path p = a.find(n);
+            if(p!=null) return Optional.of(new Resource(n, p, null));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Find every file of a name, such as config files to merge.
+     *
+     * @param name  relative name
+     *
+     * @return  files in preferred order, the in-memory file first
+     */
+    public List<Resource> findAll(String name) {
+        final String n = normalize(name);
+        final byte[] data = memory.get(n);
+        if(data==HIDDEN) return Collections.emptyList();
+
+        final List<Resource> all = new ArrayList<>();
+        if(data!=null) all.add(new Resource(n, null, data));
+        if(mode==Mode.ISOLATED) return all;
+
+        final Filter[] f = filters;
+        for(int i=0; i<roots.size(); i++) {
+            final Path p = probe(f, i, n);
+            if(p!=null) all.add(new Resource(n, p, null));
+        }
+        for(Attached a : attached) {
+            final Path p = a.find(n);
+            if(p!=null) all.add(new Resource(n, p, null));
+        }
+        return all;
+    }
+
+    /**
+     * Filter lookups in the roots, replacing any previous filters. Each root
+     * is scanned now, and the budget is shared among the roots by the number
+     * of files below them. A root that can not be scanned completely is left
+     * unfiltered.
+     *
+     * @param budgetBytes  memory for the filters of all roots, in bytes, or 0
+     *                     to stop filtering
+     *
+     * @return  this lookup
+     */
+    public XdgLookup filter(int budgetBytes) {
+        if(budgetBytes<0) throw new IllegalArgumentException("budgetBytes < 0");
+        if(budgetBytes==0) {
+            filters = null;
+            budget = 0;
+            return this;
+        }
+
+        final List<Set<String>> names = new ArrayList<>(roots.size());
+        long total = 0;
+        for(Path root : roots) {
+            final Set<String> set = scan(root);
+            names.add(set);
+            if(set!=null) total += set.size();
+        }
+
+        final Filter[] f = new Filter[roots.size()];
+        final long bits = budgetBytes * 8L;
+        for(int i=0; i<f.length; i++) {
+            final Set<String> set = names.get(i);
+            if(set==null) continue;
+            final int n = set.size();
+            f[i] = new Filter(total==0?bits/f.length:bits*n/total, n);
+            for(String name : set) f[i].add(name);
+        }
+
+        filterLookups.reset();
+        filterSkips.reset();
+        filterFalsePositives.reset();
+        budget = budgetBytes;
+        filters = f;
+        return this;
+    }
+
+    /**
+     * Add a name to the filters, after creating a file of that name in a
+     * root. Has no effect if lookups are not filtered.
+     *
+     * @param name  relative name
+     */
+    public void invalidate(String name) {
+        final String n = normalize(name);
+        final Filter[] f = filters;
+        if(f==null) return;
+        for(Filter filter : f) {
+            if(filter!=null) filter.add(n);
+        }
+    }
+
+    /**
+     * Rescan the roots into new filters with the same budget, after files
+     * were created or removed. Has no effect if lookups are not filtered.
+     */
+    public void invalidate() {
+        final int b = budget;
+        if(b>0) filter(b);
+    }
+
+    /** Statistics of filtered lookups. */
+    public static final class FilterStats {
+
+        /**
+         * Get the number of root probes that consulted a filter.
+         *
+         * @return  filtered probes
+         */
+        public long lookups() { return lookups; }
+
+        /**
+         * Get the number of root probes skipped because a filter ruled the
+         * name out.
+         *
+         * @return  skipped probes
+         */
+        public long skipped() { return skipped; }
+
+        /**
+         * Get the number of root probes a filter let through that found no
+         * file.
+         *
+         * @return  false positives
+         */
+        public long falsePositives() { return falsePositives; }
+
+        /**
+         * Get the observed false positive rate: the fraction of probes for
+         * missing files that a filter let through.
+         *
+         * @return  false positive rate, or 0 if no probe missed
+         */
+        public double falsePositiveRate() {
+            final long misses = skipped + falsePositives;
+            return misses==0?0.0:(double)falsePositives / misses;
+        }
+
+        /**
+         * Get the false positive rate expected from the size and contents of
+         * the filters, averaged over the roots.
+         *
+         * @return  expected false positive rate
+         */
+        public double expectedFalsePositiveRate() { return expected; }
+
+        /**
+         * Get the memory used by the filters.
+         *
+         * @return  bytes used
+         */
+        public long bytes() { return bytes; }
+
+        /**
+         * Get the number of roots left unfiltered because they could not be
+         * scanned completely.
+         *
+         * @return  unfiltered roots
+         */
+        public int unfiltered() { return unfiltered; }
+
+        @Override
+        public String toString() {
+            return String.format("lookups=%d skipped=%d falsePositives=%d rate=%.4f expected=%.4f bytes=%d unfiltered=%d",
+                                 lookups, skipped, falsePositives, falsePositiveRate(), expected, bytes, unfiltered);
+        }
+
+        private final long lookups;
+        private final long skipped;
+        private final long falsePositives;
+        private final double expected;
+        private final long bytes;
+        private final int unfiltered;
+
+        private FilterStats(long lookups, long skipped, long falsePositives, double expected, long bytes,
+                            int unfiltered) {
+            this.lookups = lookups;
+            this.skipped = skipped;
+            this.falsePositives = falsePositives;
+            this.expected = expected;
+            this.bytes = bytes;
+            this.unfiltered = unfiltered;
+        }
+    }
+
+    /**
+     * Get statistics of filtered lookups since the filters were built.
+     *
+     * @return  statistics, or empty if lookups are not filtered
+     */
+    public Optional<FilterStats> filterStats() {
+        final Filter[] f = filters;
+        if(f==null) return Optional.empty();
+        double expected = 0;
+        long bytes = 0;
+        int unfiltered = 0;
+        for(Filter filter : f) {
+            if(filter==null) {
+                unfiltered++;
+                continue;
+            }
+            expected += filter.expectedFalsePositiveRate();
+            bytes += filter.bytes();
+        }
+        final int n = f.length - unfiltered;
+        return Optional.of(new FilterStats(filterLookups.sum(), filterSkips.sum(),
+                filterFalsePositives.sum(), n==0?0.0:expected / n, bytes, unfiltered));
+    }
+
+    /**
+     * Read the preferred file of a name.
+     *
+     * @param name  relative name
+     *
+     * @return  file contents, or empty if not found or hidden
+     *
+     * @throws IOException  if the file can not be read
+     */
+    public Optional<byte[]> read(String name) throws IOException {
+        final Optional<Resource> r = find(name);
+        return r.isPresent()?Optional.of(r.get().read()):Optional.empty();
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /**
+     * Normalize a relative name: {@code /} separated, without empty or
+     * {@code .} segments.
+     *
+     * @param name  relative name
+     *
+     * @return  normalized name
+     *
+     * @throws IllegalArgumentException  if the name is empty or contains
+     *                                   {@code ..}
+     */
+    static String normalize(String name) {
+        final StringBuilder sb = new StringBuilder(name.length());
+        for(String part : name.split("[/\\\\]")) {
+            if(part.isEmpty() || part.equals(".")) continue;
+            if(part.equals("..")) throw new IllegalArgumentException("invalid name: " + name);
+            if(sb.length()>0) sb.append('/');
+            sb.append(part);
+        }
+        if(sb.length()==0) throw new IllegalArgumentException("invalid name: " + name);
+        return sb.toString();
+    }
+
+    /**
+     * Get the relative name of a file below a root.
+     *
+     * @param root  root directory
+     * @param file  file below the root
+     *
+     * @return  {@code /} separated relative name
+     */
+    static String relative(Path root, Path file) {
+        final StringBuilder sb = new StringBuilder();
+        for(Path part : root.relativize(file)) {
+            if(sb.length()>0) sb.append('/');
+            sb.append(part.toString());
+        }
+        return sb.toString();
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    /** Marker for hidden files in the in-memory layer. */
+    private static final byte[] HIDDEN = new byte[0];
+
+    private final List<Path> roots;
+    private final Mode mode;
+    private final List<Attached> attached = new CopyOnWriteArrayList<>();
+
+    /**
+     * An attached root and the index of its files by relative name, or null
+     * if it could not be listed completely.
+     */
+    private static final class Attached {
+        private final Path root;
+        private final Map<String,Path> index;
+        private final FileSystem owned;
+
+        private Attached(Path root, Map<String,Path> index, FileSystem owned) {
+            this.root = root;
+            this.index = index;
+            this.owned = owned;
+        }
+
+        private Path find(String name) {
+            if(index!=null) return index.get(name);
+            final Path p = root.resolve(name);
+            return Files.isRegularFile(p)?p:null;
+        }
+    }
+
+    /** In-memory layer by normalized name. */
+    private final ConcurrentHashMap<String,byte[]> memory = new ConcurrentHashMap<>();
+
+    /** Fewest bits in a filter. */
+    private static final int MIN_FILTER_BITS = 64;
+
+    /** Filters of the roots, by index, or null if lookups are not filtered. */
+    private volatile Filter[] filters;
+    private volatile int budget;
+    private final LongAdder filterLookups = new LongAdder();
+    private final LongAdder filterSkips = new LongAdder();
+    private final LongAdder filterFalsePositives = new LongAdder();
+
+    /** Bloom filter of the relative names below a root. */
+    private static final class Filter {
+        private final AtomicLongArray words;
+        private final long bits;
+        private final int hashes;
+        private final LongAdder entries = new LongAdder();
+
+        private Filter(long bits, int expected) {
+            final long m = Math.max(MIN_FILTER_BITS, Math.min(bits, Integer.MAX_VALUE * 64L)) & ~63L;
+            this.words = new AtomicLongArray((int)(m >>> 6));
+            this.bits = m;
+            /* optimal k = m/n ln 2, bounded to keep probes cheap */
+            final double k = expected==0?1:(double)m / expected * Math.log(2);
+            this.hashes = (int)Math.max(1, Math.min(16, Math.round(k)));
+        }
+
+        private void add(String name) {
+            final int h1 = mix(name.hashCode());
+            final int h2 = mix(h1 ^ 0x9e3779b9) | 1;
+            for(int i=0; i<hashes; i++) {
+                final long bit = bit(h1, h2, i);
+                final int w = (int)(bit >>> 6);
+                final long mask = 1L << bit;
+                for(long old=words.get(w); (old & mask)==0; old=words.get(w)) {
+                    if(words.compareAndSet(w, old, old | mask)) break;
+                }
+            }
+            entries.increment();
+        }
+
+        private boolean mightContain(String name) {
+            final int h1 = mix(name.hashCode());
+            final int h2 = mix(h1 ^ 0x9e3779b9) | 1;
+            for(int i=0; i<hashes; i++) {
+                final long bit = bit(h1, h2, i);
+                if((words.get((int)(bit >>> 6)) & (1L << bit))==0) return false;
+            }
+            return true;
+        }
+
+        private double expectedFalsePositiveRate() {
+            return Math.pow(1 - Math.exp(-(double)hashes * entries.sum() / bits), hashes);
+        }
+
+        private long bytes() { return bits / 8; }
+
+        /** Bit of the i-th hash, by double hashing. */
+        private long bit(int h1, int h2, int i) {
+            return ((h1 & 0xffffffffL) + i * (h2 & 0xffffffffL)) % bits;
+        }
+
+        /** Murmur3 finalizer, spreading String.hashCode() over all bits. */
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+
+    /** Return the named file in a root if it exists, consulting its filter. */
+    private Path probe(Filter[] f, int i, String name) {
+        final Filter filter = f==null?null:f[i];
+        if(filter!=null) {
+            filterLookups.increment();
+            if(!filter.mightContain(name)) {
+                filterSkips.increment();
+                return null;
+            }
+        }
+        final Path p = roots.get(i).resolve(name);
+        if(Files.isRegularFile(p)) return p;
+        if(filter!=null) filterFalsePositives.increment();
+        return null;
+    }
+
+    /**
+     * List the relative names of the files below a root, or null if the root
+     * can not be listed completely.
+     */
+    private static Set<String> scan(Path root) {
+        if(!Files.isDirectory(root)) return Collections.emptySet();
+        try {
+            return files(root, root).keySet();
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    /** Index the files below a directory and append it to the attached roots. */
+    private XdgLookup attach(Path base, String dir, FileSystem owned) throws IOException {
+        final Path root = dir.isEmpty()?base:base.resolve(normalize(dir));
+        if(!Files.isDirectory(root)) throw new NotDirectoryException(root.toString());
+
+        Map<String,Path> index;
+        try {
+            index = Collections.unmodifiableMap(files(root, root));
+        } catch(IOException e) {
+            /* an incomplete index would hide files, so look them up instead */
+            index = null;
+        }
+        attached.add(new Attached(root, index, owned));
+        return this;
+    }
+
+    /**
+     * List the regular files below a directory of a root by relative name,
+     * following symbolic links.
+     *
+     * @throws IOException  if a directory can not be listed, or links form a
+     *                      loop
+     */
+    private static Map<String,Path> files(Path root, Path base) throws IOException {
+        final Map<String,Path> files = new HashMap<>();
+        Files.walkFileTree(base, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                           new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(attrs.isRegularFile()) files.put(relative(root, file), file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                /* removed while listing */
+                if(e instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+                throw e;
+            }
+        });
+        return files;
+    }
+
+}
@@ -18,12 +18,13 @@
 package org.tuxfoo.xdgpaths;
 
 import java.io.File;
+import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -42,6 +43,12 @@ import java.util.stream.Collectors;
  * to the defaults defined in the specification if neither the system property
  * nor environment variable is set.
  *
+ * Instances are safe for use by any number of threads. The base directories
+ * are resolved when an instance is created and never change, the returned
+ * search path lists are unmodifiable, and the only mutable state, the cached
+ * contents of {@code user-dirs.dirs}, is replaced atomically as a whole. Any
+ * caching added to this class must keep these guarantees.
+ *
  * @see <a href="http://standards.freedesktop.org/basedir-spec/basedir-spec-0.7.html">
  * http://standards.freedesktop.org/basedir-spec/basedir-spec-0.7.html</a>
  */
@@ -54,6 +61,27 @@ public final class XdgPaths {
      */
     public static XdgPaths getInstance() { return INSTANCE; }
 
+    /**
+     * Get an instance with the same base directory settings as this one,
+     * with paths resolved against another file system, such as an in-memory
+     * or zip file system.
+     *
+     * @param fileSystem  file system to resolve paths against
+     *
+     * @return  XdgPaths instance bound to the file system
+     */
+    public XdgPaths withFileSystem(FileSystem fileSystem) {
+        if(fileSystem==fs) return this;
+        return new XdgPaths(fileSystem, sys, env);
+    }
+
+    /**
+     * Get the file system the paths of this instance belong to.
+     *
+     * @return  file system, the default file system unless bound to another
+     */
+    public FileSystem fileSystem() { return fs; }
+
     /**
      * Get a path relative to the user home directory by joining the given path
      * components into a path and resolving it against the user home directory,
@@ -148,6 +176,45 @@ public final class XdgPaths {
         else return Optional.of(resolve(runtime.get(), parts));
     }
 
+    /**
+     * Get an optional path relative to a well known user directory, such as
+     * the download or documents directory, by joining the given path
+     * components into a path and resolving it against the user directory, or
+     * returning a path to the user directory itself if no path components are
+     * provided.
+     *
+     * <p>
+     * User directories are defined in the {@code user-dirs.dirs} file in the
+     * user specific config directory, as maintained by xdg-user-dirs. The file
+     * is parsed on first use and cached, and is only parsed again when its
+     * modification time changes. The name may be given as the variable name
+     * used in the file, such as {@code XDG_DOWNLOAD_DIR}, or as the short
+     * name, such as {@code DOWNLOAD} or {@code download}. This method will
+     * return an {@link java.util.Optional} Path with a null value if the user
+     * directory is not defined.
+     *
+     * @param name   user directory name
+     * @param parts  path components to resolve against the user directory
+     *
+     * @return  optional path relative to the user directory
+     */
+    public Optional<Path> userdir(String name, String... parts) {
+        final Optional<Path> dir = userdirs.get(name);
+        if(!dir.isPresent()) return dir;
+        else return Optional.of(resolve(dir.get(), parts));
+    }
+
+    /**
+     * Get all well known user directories defined in the {@code
+     * user-dirs.dirs} file in the user specific config directory.
+     *
+     * @return  unmodifiable map of variable name, such as {@code
+     *          XDG_DOWNLOAD_DIR}, to user directory
+     *
+     * @see #userdir(String, String...)
+     */
+    public Map<String,Path> userdirs() { return userdirs.all(); }
+
     /**
      * Get a list of paths relative to the config directories in preferred
      * order by joining the given path components into a path and resolving it
@@ -264,39 +331,39 @@ public final class XdgPaths {
 
             if(first.startsWith("%cache")) {
                 /* single element list relative to cache */
-                parts[0] = first.replaceFirst("^%cache".concat(SEP).concat("?"), "");
+                parts[0] = first.replaceFirst("^%cache".concat(sep).concat("?"), "");
                 return Arrays.asList(cache(parts));
             } else if(first.startsWith("%config")) {
                 /* list relative to config */
-                parts[0] = first.replaceFirst("^%config".concat(SEP).concat("?"), "");
+                parts[0] = first.replaceFirst("^%config".concat(sep).concat("?"), "");
                 return config(parts);
             } else if(first.startsWith("%data")) {
                 /* list relative to data */
-                parts[0] = first.replaceFirst("^%data".concat(SEP).concat("?"), "");
+                parts[0] = first.replaceFirst("^%data".concat(sep).concat("?"), "");
                 return data(parts);
             } else if(first.startsWith("%home")) {
                 /* single element list relative to home */
-                parts[0] = first.replaceFirst("^%home".concat(SEP).concat("?"), "");
+                parts[0] = first.replaceFirst("^%home".concat(sep).concat("?"), "");
                 return Arrays.asList(home(parts));
             } else if(first.startsWith("%runtime")) {
                 /* single element list relative to runtime, or empty list */
-                parts[0] = first.replaceFirst("^%runtime".concat(SEP).concat("?"), "");
+                parts[0] = first.replaceFirst("^%runtime".concat(sep).concat("?"), "");
                 Optional<Path> rtpath = runtime(parts);
                 if(rtpath.isPresent()) return Arrays.asList(rtpath.get());
                 else return Collections.emptyList();
             } else if(first.startsWith("%userconfig")) {
                 /* single element list relative to userconfig */
-                parts[0] = first.replaceFirst("^%userconfig".concat(SEP).concat("?"), "");
+                parts[0] = first.replaceFirst("^%userconfig".concat(sep).concat("?"), "");
                 return Arrays.asList(userconfig(parts));
             } else if(first.startsWith("%userdata")) {
                 /* single element list relative to userdata */
-                parts[0] = first.replaceFirst("^%userdata".concat(SEP).concat("?"), "");
+                parts[0] = first.replaceFirst("^%userdata".concat(sep).concat("?"), "");
                 return Arrays.asList(userdata(parts));
             }
         }
 
         /* single element list with path as-is */
-        return Arrays.asList(Paths.get(first, more));
+        return Arrays.asList(fs.getPath(first, more));
     }
 
 
@@ -350,56 +417,78 @@ public final class XdgPaths {
      * @param env  environment variable map
      */
     XdgPaths(Properties sys, Map<String,String> env) {
+        this(FileSystems.getDefault(), sys, env);
+    }
+
+    /**
+     * Construct XdgPaths instance resolving paths against a file system from
+     * a set of properties and environment variable map.
+     *
+     * @param fs   file system
+     * @param sys  system properties
+     * @param env  environment variable map
+     */
+    XdgPaths(FileSystem fs, Properties sys, Map<String,String> env) {
+        this.fs = fs;
+        this.sep = fs.getSeparator();
+
+        /* keep the settings to rebind to another file system */
+        this.sys = new Properties();
+        this.env = new HashMap<>();
+        for(String key : SETTINGS) {
+            if(sys.containsKey(key)) this.sys.setProperty(key, sys.getProperty(key));
+            if(env.containsKey(key)) this.env.put(key, env.get(key));
+        }
 
         this.home = /* use user.home system property if set */
                     (sys.containsKey("user.home")?
-                    Paths.get(sys.getProperty("user.home")):
+                    fs.getPath(sys.getProperty("user.home")):
 
                     /* otherwise use HOME environment variable */
-                    Paths.get(env.getOrDefault("HOME", "")));
+                    fs.getPath(env.getOrDefault("HOME", "")));
 
 
         this.cache = /* use XDG_CACHE_HOME system property if set */
                     (sys.containsKey(XDG_CACHE_HOME)?
-                    Paths.get(sys.getProperty(XDG_CACHE_HOME)):
+                    fs.getPath(sys.getProperty(XDG_CACHE_HOME)):
 
                     /* use XDG_CACHE_HOME environment variable if set */
                     (env.containsKey(XDG_CACHE_HOME)?
-                    Paths.get(env.get(XDG_CACHE_HOME)):
+                    fs.getPath(env.get(XDG_CACHE_HOME)):
 
                     /* otherwise use default */
                     this.home.resolve(".cache")));
 
         this.userconfig = /* use XDG_CONFIG_HOME system property if set */
                     (sys.containsKey(XDG_CONFIG_HOME)?
-                    Paths.get(sys.getProperty(XDG_CONFIG_HOME)):
+                    fs.getPath(sys.getProperty(XDG_CONFIG_HOME)):
 
                     /* use XDG_CONFIG_HOME environment variable if set */
                     (env.containsKey(XDG_CONFIG_HOME)?
-                    Paths.get(env.get(XDG_CONFIG_HOME)):
+                    fs.getPath(env.get(XDG_CONFIG_HOME)):
 
                     /* otherwise use default */
                     this.home.resolve(".config")));
 
         this.userdata = /* use XDG_DATA_HOME system property if set */
                     (sys.containsKey(XDG_DATA_HOME)?
-                    Paths.get(sys.getProperty(XDG_DATA_HOME)):
+                    fs.getPath(sys.getProperty(XDG_DATA_HOME)):
 
                     /* use XDG_DATA_HOME environment variable if set */
                     (env.containsKey(XDG_DATA_HOME)?
-                    Paths.get(env.get(XDG_DATA_HOME)):
+                    fs.getPath(env.get(XDG_DATA_HOME)):
 
                     /* otherwise use default */
-                    this.home.resolve(Paths.get(".local", "share"))));
+                    this.home.resolve(fs.getPath(".local", "share"))));
 
         this.runtime = Optional.ofNullable(
                     /* use XDG_RUNTIME_DIR system property if set */
                     (sys.containsKey(XDG_RUNTIME_DIR)?
-                    Paths.get(sys.getProperty(XDG_RUNTIME_DIR)):
+                    fs.getPath(sys.getProperty(XDG_RUNTIME_DIR)):
 
                     /* use XDG_RUNTIME_DIR environment variable if set */
                     (env.containsKey(XDG_RUNTIME_DIR)?
-                    Paths.get(env.get(XDG_RUNTIME_DIR)):
+                    fs.getPath(env.get(XDG_RUNTIME_DIR)):
 
                     /* otherwise use null */
                     null)));
@@ -416,7 +505,7 @@ public final class XdgPaths {
                     /* otherwise use default */
                     Arrays.asList(
                         this.userconfig,
-                        Paths.get(SEP, "etc", "xdg")))));
+                        fs.getPath(sep, "etc", "xdg")))));
 
         this.data = Collections.unmodifiableList(
                     /* use XDG_DATA_DIRS system property if set */
@@ -430,17 +519,33 @@ public final class XdgPaths {
                     /* otherwise use default */
                     Arrays.asList(
                         this.userdata,
-                        Paths.get(SEP, "usr", "local", "share"),
-                        Paths.get(SEP, "usr", "share")))));
+                        fs.getPath(sep, "usr", "local", "share"),
+                        fs.getPath(sep, "usr", "share")))));
+
+        this.userdirs = new UserDirs(this.userconfig.resolve("user-dirs.dirs"), this.home);
     }
 
     /* private --------------------------------------------------------------*/
-    private static final String SEP = FileSystems.getDefault().getSeparator();
+    /** System properties and environment variables the paths depend on. */
+    private static final String[] SETTINGS = {
+        "user.home", "HOME", XDG_CACHE_HOME, XDG_CONFIG_HOME, XDG_DATA_HOME,
+        XDG_RUNTIME_DIR, XDG_CONFIG_DIRS, XDG_DATA_DIRS
+    };
 
     /** default singleton instance */
     private static final XdgPaths INSTANCE = new XdgPaths(System.getProperties(),
                                                           System.getenv());
 
+    /** File system the paths belong to. */
+    private final FileSystem fs;
+
+    /** Name separator of the file system. */
+    private final String sep;
+
+    /** Settings this instance was created from. */
+    private final Properties sys;
+    private final Map<String,String> env;
+
     /** Path to user home directory. */
     private final Path home;
 
@@ -462,6 +567,9 @@ public final class XdgPaths {
     /** List of additional data directories. */
     private final List<Path> data;
 
+    /** Cached user directories from user-dirs.dirs. */
+    private final UserDirs userdirs;
+
     /**
      * Convert zero or more path components to a path and resolve
      * against a base path if not null.
@@ -477,12 +585,12 @@ public final class XdgPaths {
 
         /* convert p to a path */
         Path other = null;
-        if(p.length==1) other = Paths.get(p[0]);
-        else if(p.length==2) other = Paths.get(p[0], p[1]);
-        else if(p.length==3) other = Paths.get(p[0], p[1], p[2]);
-        else if(p.length==4) other = Paths.get(p[0], p[1], p[2], p[3]);
-        else if(p.length==5) other = Paths.get(p[0], p[1], p[2], p[3], p[4]);
-        else other = Paths.get(p[0], Arrays.copyOfRange(p, 1, p.length));
+        if(p.length==1) other = fs.getPath(p[0]);
+        else if(p.length==2) other = fs.getPath(p[0], p[1]);
+        else if(p.length==3) other = fs.getPath(p[0], p[1], p[2]);
+        else if(p.length==4) other = fs.getPath(p[0], p[1], p[2], p[3]);
+        else if(p.length==5) other = fs.getPath(p[0], p[1], p[2], p[3], p[4]);
+        else other = fs.getPath(p[0], Arrays.copyOfRange(p, 1, p.length));
 
         /* return other if b is null or other is absolute */
         if(b==null || other.isAbsolute()) return other;
@@ -508,7 +616,7 @@ public final class XdgPaths {
         ArrayList<Path> list = new ArrayList<>(parts.length+1);
         list.add(userPath);
 
-        for(String part : parts) list.add(Paths.get(part));
+        for(String part : parts) list.add(fs.getPath(part));
         return list;
     }
 
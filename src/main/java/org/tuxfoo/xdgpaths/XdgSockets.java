@@ -0,0 +1,521 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.BindException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Unix domain socket endpoints for an application, placed in the user
+ * specific runtime directory as the XDG Base Directory Specification intends.
+ *
+ * A server {@link #bind(String) binds} a named endpoint, which creates the
+ * application's runtime directory readable only by the user, replaces a
+ * stale socket left behind by a process that exited without cleaning up, and
+ * restricts the socket to the user. Closing the endpoint removes the socket.
+ * Clients connect through a {@link Pool} that keeps idle connections for
+ * reuse and discards those whose server has gone away.
+ *
+ * Unix domain socket channels require Java 16 or later; they are looked up
+ * at runtime so this library still runs on older versions, where {@link
+ * #isSupported()} returns false and binding or connecting fails.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public final class XdgSockets {
+
+    /**
+     * Check whether this JVM supports Unix domain socket channels.
+     *
+     * @return  true if endpoints can be bound and connected
+     */
+    public static boolean isSupported() {
+        return UNIX!=null && ADDRESS_OF!=null && SERVER_OPEN!=null && CLIENT_OPEN!=null;
+    }
+
+    /**
+     * Create socket endpoints for an application, placed in {@code
+     * runtime(app)}.
+     *
+     * @param paths  XdgPaths instance
+     * @param app    application name
+     */
+    public XdgSockets(XdgPaths paths, String app) {
+        this(paths.runtime(app), new XdgLocks(paths, app));
+    }
+
+    /**
+     * Get the path of a named socket.
+     *
+     * @param name  socket name
+     *
+     * @return  socket path, or empty if the runtime directory is not set
+     */
+    public Optional<Path> path(String name) {
+        validate(name);
+        return root.map(r->r.resolve(name));
+    }
+
+    /**
+     * Bind a named server endpoint. An existing socket that no longer accepts
+     * connections is replaced.
+     *
+     * @param name  socket name
+     *
+     * @return  bound endpoint, to be closed to remove the socket
+     *
+     * @throws BindException  if another process is listening on the socket
+     * @throws FileAlreadyExistsException  if a file that is not a socket
+     *                                     exists at the socket path
+     * @throws IOException  if the runtime directory is not set, or the
+     *                      socket can not be bound
+     */
+    public Endpoint bind(String name) throws IOException {
+        final Path file = require(name);
+        directory(file.getParent());
+
+        /* serialize binders so two servers replacing the same stale socket
+         * do not delete each other's fresh one */
+        final XdgLocks.Lock lock = locks.lock(name.concat(".bind"));
+        try {
+            final Optional<BasicFileAttributes> existing = attributes(file);
+            if(existing.isPresent()) {
+                if(!existing.get().isOther()) throw new FileAlreadyExistsException(file.toString());
+                if(alive(file)) throw new BindException("socket in use: " + file);
+                Files.deleteIfExists(file);
+            }
+
+            final ServerSocketChannel ch = (ServerSocketChannel)invoke(SERVER_OPEN, UNIX);
+            try {
+                ch.bind(address(file));
+                restrict(file, OWNER_SOCKET);
+                return new Endpoint(file, ch, key(file));
+            } catch(IOException | RuntimeException e) {
+                ch.close();
+                throw e;
+            }
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Connect a new channel to a named socket. Prefer a {@link Pool} for
+     * repeated requests.
+     *
+     * @param name  socket name
+     *
+     * @return  connected blocking channel
+     *
+     * @throws IOException  if the runtime directory is not set, or the
+     *                      socket can not be connected
+     */
+    public SocketChannel connect(String name) throws IOException {
+        return open(require(name));
+    }
+
+    /**
+     * Create a connection pool for a named socket.
+     *
+     * @param name     socket name
+     * @param maxIdle  maximum number of idle connections kept
+     *
+     * @return  connection pool
+     *
+     * @throws IOException  if the runtime directory is not set
+     */
+    public Pool pool(String name, int maxIdle) throws IOException {
+        if(maxIdle<0) throw new IllegalArgumentException("maxIdle < 0");
+        return new Pool(require(name), maxIdle);
+    }
+
+    /** A bound server socket, removed from the runtime directory on close. */
+    public static final class Endpoint implements Closeable {
+
+        /**
+         * Get the socket path.
+         *
+         * @return  socket path
+         */
+        public Path path() { return path; }
+
+        /**
+         * Get the bound server channel.
+         *
+         * @return  server channel
+         */
+        public ServerSocketChannel channel() { return channel; }
+
+        /**
+         * Accept a connection, blocking if the channel is in blocking mode.
+         *
+         * @return  accepted channel, or null if the channel is non-blocking
+         *          and no connection is pending
+         *
+         * @throws IOException  if the connection can not be accepted
+         */
+        public SocketChannel accept() throws IOException { return channel.accept(); }
+
+        /**
+         * Close the server channel and remove the socket, unless it has
+         * already been replaced by another server.
+         *
+         * @throws IOException  if the channel can not be closed or the socket
+         *                      can not be removed
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                /* inode numbers are reused, so a matching key alone does not
+                 * prove the socket is still ours */
+                final Object current = key(path);
+                if(current!=null && (key==null || key.equals(current)) && !alive(path)) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+
+        private final Path path;
+        private final ServerSocketChannel channel;
+        private final Object key;
+
+        private Endpoint(Path path, ServerSocketChannel channel, Object key) {
+            this.path = path;
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Idle client connections to one socket, reused most recently released
+     * first. A connection is discarded rather than reused if the socket file
+     * has been replaced since it was connected, if the server has closed it,
+     * or if unread data is waiting on it.
+     */
+    public static final class Pool implements Closeable {
+
+        /**
+         * Get the socket path.
+         *
+         * @return  socket path
+         */
+        public Path path() { return path; }
+
+        /**
+         * Take an idle connection, or connect a new one.
+         *
+         * @return  connected blocking channel, to be passed to {@link
+         *          #release(SocketChannel)} when done
+         *
+         * @throws IOException  if a new connection can not be made
+         */
+        public SocketChannel acquire() throws IOException {
+            final Object current = key(path);
+            while(true) {
+                final Idle idle;
+                synchronized(this) {
+                    if(closed) throw new IOException("pool closed: " + path);
+                    idle = this.idle.pollFirst();
+                    if(idle==null) break;
+                }
+                if(idle.key!=null && idle.key.equals(current) && healthy(idle.channel)) {
+                    synchronized(this) {
+                        leased.put(idle.channel, idle.key);
+                    }
+                    return idle.channel;
+                }
+                closeQuietly(idle.channel);
+            }
+
+            final SocketChannel ch = open(path);
+            synchronized(this) {
+                if(closed) {
+                    ch.close();
+                    throw new IOException("pool closed: " + path);
+                }
+                leased.put(ch, key(path));
+            }
+            return ch;
+        }
+
+        /**
+         * Return a connection to the pool. Closed or non-blocking channels,
+         * and channels beyond the idle limit, are closed instead.
+         *
+         * @param channel  channel obtained from {@link #acquire()}
+         */
+        public void release(SocketChannel channel) {
+            final Object key;
+            synchronized(this) {
+                if(!leased.containsKey(channel)) {
+                    throw new IllegalArgumentException("channel not leased from this pool");
+                }
+                key = leased.remove(channel);
+                if(!closed && channel.isOpen() && channel.isBlocking() && idle.size()<maxIdle) {
+                    idle.addFirst(new Idle(channel, key));
+                    return;
+                }
+            }
+            closeQuietly(channel);
+        }
+
+        /**
+         * Get the number of idle connections.
+         *
+         * @return  idle connections
+         */
+        public synchronized int idle() { return idle.size(); }
+
+        /**
+         * Close the idle connections. Leased connections are closed when
+         * released.
+         */
+        @Override
+        public void close() {
+            final ArrayDeque<Idle> drained;
+            synchronized(this) {
+                closed = true;
+                drained = new ArrayDeque<>(idle);
+                idle.clear();
+            }
+            for(Idle i : drained) closeQuietly(i.channel);
+        }
+
+        private final Path path;
+        private final int maxIdle;
+        private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+        private final Map<SocketChannel,Object> leased = new IdentityHashMap<>();
+        private boolean closed;
+
+        private Pool(Path path, int maxIdle) {
+            this.path = path;
+            this.maxIdle = maxIdle;
+        }
+    }
+
+
+    /* package private ------------------------------------------------------*/
+    /**
+     * Create socket endpoints in a directory.
+     *
+     * @param root   socket directory, or empty if not available
+     * @param locks  locks used to serialize binding
+     */
+    XdgSockets(Optional<Path> root, XdgLocks locks) {
+        this.root = root;
+        this.locks = locks;
+    }
+
+    /**
+     * Check whether a connection is still usable: open, not closed by the
+     * peer, and with no unread data.
+     *
+     * @param ch  blocking channel
+     *
+     * @return  true if the channel can be reused
+     */
+    static boolean healthy(SocketChannel ch) {
+        if(!ch.isOpen() || !ch.isConnected()) return false;
+        try {
+            ch.configureBlocking(false);
+            try {
+                return ch.read(ByteBuffer.allocate(1))==0;
+            } finally {
+                ch.configureBlocking(true);
+            }
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+
+    /* private --------------------------------------------------------------*/
+    private static final Set<PosixFilePermission> OWNER_DIRECTORY =
+            PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_SOCKET =
+            PosixFilePermissions.fromString("rw-------");
+
+    /* Java 16 API, looked up so the library still loads on Java 8 */
+    private static final ProtocolFamily UNIX = unixFamily();
+    private static final Method ADDRESS_OF =
+            method("java.net.UnixDomainSocketAddress", "of", Path.class);
+    private static final Method SERVER_OPEN =
+            method("java.nio.channels.ServerSocketChannel", "open", ProtocolFamily.class);
+    private static final Method CLIENT_OPEN =
+            method("java.nio.channels.SocketChannel", "open", ProtocolFamily.class);
+
+    private final Optional<Path> root;
+    private final XdgLocks locks;
+
+    /** An idle pooled connection and the socket file it was connected to. */
+    private static final class Idle {
+        private final SocketChannel channel;
+        private final Object key;
+
+        private Idle(SocketChannel channel, Object key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private static ProtocolFamily unixFamily() {
+        for(StandardProtocolFamily f : StandardProtocolFamily.values()) {
+            if(f.name().equals("UNIX")) return f;
+        }
+        return null;
+    }
+
+    private static Method method(String cls, String name, Class<?>... types) {
+        try {
+            return Class.forName(cls).getMethod(name, types);
+        } catch(ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method m, Object... args) throws IOException {
+        if(!isSupported()) {
+            throw new UnsupportedOperationException("unix domain sockets require Java 16");
+        }
+        try {
+            return m.invoke(null, args);
+        } catch(InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException)cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if(cause instanceof Error) throw (Error)cause;
+            throw new IOException(cause);
+        } catch(IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static SocketAddress address(Path file) throws IOException {
+        return (SocketAddress)invoke(ADDRESS_OF, file);
+    }
+
+    private static SocketChannel open(Path file) throws IOException {
+        final SocketChannel ch = (SocketChannel)invoke(CLIENT_OPEN, UNIX);
+        try {
+            ch.connect(address(file));
+            return ch;
+        } catch(IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /** Check whether a server is accepting connections on a socket. */
+    private static boolean alive(Path file) throws IOException {
+        try {
+            open(file).close();
+            return true;
+        } catch(IOException e) {
+            /* connection refused: no process is listening */
+            return false;
+        }
+    }
+
+    private static void validate(String name) {
+        if(name.isEmpty() || name.indexOf('/')>=0 || name.indexOf('\\')>=0 || name.startsWith(".")) {
+            throw new IllegalArgumentException("invalid socket name: " + name);
+        }
+    }
+
+    private Path require(String name) throws IOException {
+        final Optional<Path> path = path(name);
+        if(!path.isPresent()) throw new IOException("runtime directory is not set");
+        return path.get();
+    }
+
+    /** Create the socket directory, accessible only by the user. */
+    private static void directory(Path dir) throws IOException {
+        if(!Files.isDirectory(dir)) {
+            if(posix(dir.getParent())) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(OWNER_DIRECTORY));
+            } else {
+                Files.createDirectories(dir);
+            }
+        }
+        restrict(dir, OWNER_DIRECTORY);
+    }
+
+    private static void restrict(Path file, Set<PosixFilePermission> perms) throws IOException {
+        if(posix(file)) Files.setPosixFilePermissions(file, perms);
+    }
+
+    private static boolean posix(Path file) {
+        return file!=null && file.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static Optional<BasicFileAttributes> attributes(Path file) throws IOException {
+        try {
+            return Optional.of(Files.readAttributes(file, BasicFileAttributes.class,
+                                                    LinkOption.NOFOLLOW_LINKS));
+        } catch(NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Identity of the socket file, which changes when a server rebinds.
+     *
+     * @return  file key, or null if the socket does not exist
+     */
+    private static Object key(Path file) {
+        try {
+            return attributes(file).map(a->a.fileKey()!=null?a.fileKey():a.lastModifiedTime())
+                                   .orElse(null);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch(IOException e) {
+            /* discarding */
+        }
+    }
+
+}
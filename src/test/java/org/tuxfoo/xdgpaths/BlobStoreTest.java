@@ -0,0 +1,152 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlobStoreTest {
+
+    /* SHA-256 of "hello" */
+    private static final String HELLO =
+            "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private BlobStore store;
+
+    @Before
+    public void setUp() {
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toString());
+        store = new BlobStore(new XdgPaths(props, new HashMap<>()), "app", "blobs");
+    }
+
+    @Test
+    public void testLayout() throws IOException {
+        assertEquals(tmp.getRoot().toPath().resolve(".cache/app/blobs"), store.root());
+        assertEquals(HELLO, store.put(bytes("hello")));
+        assertEquals(store.root().resolve("2c/f2/" + HELLO), store.find(HELLO).get());
+        assertTrue(store.contains(HELLO));
+        assertArrayEquals(bytes("hello"), Files.readAllBytes(store.path(HELLO)));
+    }
+
+    @Test
+    public void testDeduplication() throws IOException {
+        String a = store.put(bytes("hello"));
+        long modified = Files.getLastModifiedTime(store.path(a)).toMillis();
+        Files.setLastModifiedTime(store.path(a), FileTime.fromMillis(1000));
+
+        assertEquals(a, store.put(new ByteArrayInputStream(bytes("hello"))));
+        assertEquals(a, store.put(bytes("hello")));
+        assertEquals(1000, Files.getLastModifiedTime(store.path(a)).toMillis());
+        assertTrue(modified>1000);
+
+        /* no temporary files left behind */
+        try(Stream<Path> files = Files.list(store.root().resolve("tmp"))) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testReads() throws IOException {
+        String key = store.put(new ByteArrayInputStream(bytes("hello")));
+        assertEquals(HELLO, key);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(5, store.transferTo(key, Channels.newChannel(out)));
+        assertArrayEquals(bytes("hello"), out.toByteArray());
+
+        MappedByteBuffer buf = store.map(key);
+        byte[] b = new byte[buf.remaining()];
+        buf.get(b);
+        assertArrayEquals(bytes("hello"), b);
+
+        assertTrue(store.delete(key));
+        assertFalse(store.contains(key));
+        assertFalse(store.find(key).isPresent());
+    }
+
+    @Test(expected=NoSuchFileException.class)
+    public void testMissing() throws IOException {
+        store.map(HELLO);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidKey() {
+        store.path("../../etc/passwd");
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final byte[] data = new byte[1<<20];
+        for(int i=0; i<data.length; i++) data[i] = (byte)i;
+
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Set<Future<String>> futures = new HashSet<>();
+            for(int i=0; i<threads; i++) {
+                futures.add(pool.submit((Callable<String>)()->{
+                    start.await();
+                    return store.put(data);
+                }));
+            }
+            start.countDown();
+
+            Set<String> keys = new HashSet<>();
+            for(Future<String> f : futures) keys.add(f.get());
+            assertEquals(1, keys.size());
+            assertArrayEquals(data, Files.readAllBytes(store.path(keys.iterator().next())));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static byte[] bytes(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+}
@@ -0,0 +1,150 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConfigWatcherTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path user;
+    private Path system;
+    private ConfigWatcher watcher;
+    private final AtomicInteger parses = new AtomicInteger();
+    private final BlockingQueue<String> reloads = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws IOException {
+        user = tmp.getRoot().toPath().resolve("home/.config");
+        system = tmp.getRoot().toPath().resolve("etc/xdg");
+        Files.createDirectories(system.resolve("app"));
+        Files.write(system.resolve("app/app.conf"), bytes("system"));
+
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toPath().resolve("home").toString());
+        HashMap<String,String> env = new HashMap<>();
+        env.put(XdgPaths.XDG_CONFIG_DIRS, system.toString());
+        watcher = new ConfigWatcher(new XdgPaths(props, env), 200);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        watcher.close();
+    }
+
+    @Test
+    public void testShadowingAndFallback() throws Exception {
+        ConfigWatcher.Watch<String> watch = watch();
+        assertEquals("system", watch.value().get());
+        assertEquals(system.resolve("app/app.conf"), watch.source().get());
+
+        /* the user directory does not exist yet */
+        Files.createDirectories(user.resolve("app"));
+        Files.write(user.resolve("app/app.conf"), bytes("user"));
+        assertEquals("user", next());
+        assertEquals(user.resolve("app/app.conf"), watch.source().get());
+
+        Files.delete(user.resolve("app/app.conf"));
+        assertEquals("system", next());
+
+        Files.delete(system.resolve("app/app.conf"));
+        assertEquals("<none>", next());
+        assertFalse(watch.value().isPresent());
+    }
+
+    @Test
+    public void testBurstCoalesced() throws Exception {
+        ConfigWatcher.Watch<String> watch = watch();
+        assertEquals(1, parses.get());
+
+        Path file = system.resolve("app/app.conf");
+        for(int i=0; i<10; i++) {
+            Files.write(file, bytes("step " + i));
+            Thread.sleep(10);
+        }
+        assertEquals("step 9", next());
+        assertNull(reloads.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(2, parses.get());
+        assertEquals("step 9", watch.value().get());
+    }
+
+    @Test
+    public void testParseFailureKeepsValue() throws Exception {
+        ConfigWatcher.Watch<String> watch = watch();
+        Path file = system.resolve("app/app.conf");
+        Files.write(file, bytes("bad"));
+        assertNull(reloads.poll(1, TimeUnit.SECONDS));
+        assertEquals("system", watch.value().get());
+        assertTrue(watch.error().isPresent());
+
+        Files.write(file, bytes("good"));
+        assertEquals("good", next());
+        assertFalse(watch.error().isPresent());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        ConfigWatcher.Watch<String> watch = watch();
+        watch.close();
+        Files.write(system.resolve("app/app.conf"), bytes("changed"));
+        assertNull(reloads.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals("system", watch.value().get());
+    }
+
+    private ConfigWatcher.Watch<String> watch() throws IOException {
+        ConfigWatcher.Watch<String> watch = watcher.watch(file->{
+            parses.incrementAndGet();
+            String s = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            if(s.equals("bad")) throw new IOException("bad config");
+            return s;
+        }, "app", "app.conf");
+        watch.addListener((Optional<Path> source, Optional<String> value)->reloads.add(value.orElse("<none>")));
+        return watch;
+    }
+
+    private String next() throws InterruptedException {
+        String s = reloads.poll(10, TimeUnit.SECONDS);
+        assertTrue("no reload", s!=null);
+        return s;
+    }
+
+    private static byte[] bytes(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+}
@@ -0,0 +1,167 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DesktopEntriesTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path user;
+    private Path system;
+    private DesktopEntries entries;
+
+    @Before
+    public void setUp() throws IOException {
+        Path root = tmp.getRoot().toPath();
+        user = root.resolve("data").resolve("applications");
+        system = root.resolve("sys").resolve("applications");
+
+        Properties props = new Properties();
+        props.setProperty("user.home", root.toString());
+        HashMap<String,String> env = new HashMap<>();
+        env.put(XdgPaths.XDG_DATA_HOME, root.resolve("data").toString());
+        env.put(XdgPaths.XDG_DATA_DIRS, root.resolve("sys").toString());
+        entries = new DesktopEntries(new XdgPaths(props, env));
+
+        write(system.resolve("editor.desktop"), "Editor", "Utility;TextEditor;", "text/plain;");
+        write(system.resolve("viewer.desktop"), "Viewer", "Graphics;", "image/png;text/plain;");
+        write(system.resolve("kde").resolve("tool.desktop"), "Tool", "Utility;", "");
+    }
+
+    @Test
+    public void testRefreshAndQueries() throws IOException {
+        assertEquals(set("editor.desktop", "viewer.desktop", "kde-tool.desktop"),
+                     entries.refresh());
+
+        assertEquals(3, entries.all().size());
+        assertEquals(Arrays.asList("editor.desktop", "viewer.desktop"),
+                     ids(entries.byMimeType("text/plain")));
+        assertEquals(Arrays.asList("editor.desktop", "kde-tool.desktop"),
+                     ids(entries.byCategory("Utility")));
+        assertTrue(entries.byCategory("Game").isEmpty());
+
+        /* nothing changed */
+        assertTrue(entries.refresh().isEmpty());
+    }
+
+    @Test
+    public void testShadowingAndHidden() throws IOException {
+        entries.refresh();
+
+        write(user.resolve("editor.desktop"), "My Editor", "Development;", "text/x-java;");
+        assertEquals(set("editor.desktop"), entries.refresh());
+        assertEquals("My Editor", entries.get("editor.desktop").get().name());
+        assertEquals(user.resolve("editor.desktop"), entries.get("editor.desktop").get().path());
+        assertEquals(Arrays.asList("viewer.desktop"), ids(entries.byMimeType("text/plain")));
+        assertEquals(Arrays.asList("editor.desktop"), ids(entries.byCategory("Development")));
+
+        /* hidden in user dir hides system entry */
+        Files.write(user.resolve("viewer.desktop"),
+                    "[Desktop Entry]\nType=Application\nHidden=true\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(set("viewer.desktop"), entries.update(user.resolve("viewer.desktop")));
+        assertFalse(entries.get("viewer.desktop").isPresent());
+        assertTrue(entries.byMimeType("text/plain").isEmpty());
+
+        /* removing user copies restores system entries */
+        Files.delete(user.resolve("editor.desktop"));
+        Files.delete(user.resolve("viewer.desktop"));
+        assertEquals(set("editor.desktop", "viewer.desktop"), entries.refresh());
+        assertEquals("Editor", entries.get("editor.desktop").get().name());
+        assertEquals(Arrays.asList("editor.desktop", "viewer.desktop"),
+                     ids(entries.byMimeType("text/plain")));
+    }
+
+    @Test
+    public void testLinkedEntries() throws IOException {
+        /* exported entries, as flatpak installs them */
+        Path exports = tmp.getRoot().toPath().resolve("flatpak");
+        write(exports.resolve("org.example.App.desktop"), "App", "Game;", "");
+        Files.createDirectories(user);
+        Files.createSymbolicLink(user.resolve("org.example.App.desktop"),
+                                 exports.resolve("org.example.App.desktop"));
+        Files.createSymbolicLink(user.resolve("linked"), exports);
+
+        assertEquals(set("editor.desktop", "viewer.desktop", "kde-tool.desktop",
+                         "org.example.App.desktop", "linked-org.example.App.desktop"),
+                     entries.refresh());
+        assertEquals(user.resolve("org.example.App.desktop"),
+                     entries.get("org.example.App.desktop").get().path());
+
+        /* a full refresh and an update agree */
+        assertTrue(entries.update(user.resolve("org.example.App.desktop")).isEmpty());
+        assertTrue(entries.refresh().isEmpty());
+    }
+
+    @Test
+    public void testLocalized() throws IOException {
+        Files.write(system.resolve("loc.desktop"), ("[Desktop Entry]\nType=Application\n"
+                + "Name=Files\nName[de]=Dateien\nName[sr@latin]=Datoteke\n"
+                + "Name[pt_BR]=Arquivos\n[Desktop Action new]\nName=Ignored\n")
+                .getBytes(StandardCharsets.UTF_8));
+        entries.refresh();
+
+        DesktopEntries.DesktopEntry e = entries.get("loc.desktop").get();
+        assertEquals("Files", e.name());
+        assertEquals("Dateien", e.get("Name", Locale.GERMANY).get());
+        assertEquals("Arquivos", e.get("Name", new Locale("pt", "BR")).get());
+        assertEquals("Datoteke", e.get("Name", new Locale("sr", "RS", "latin")).get());
+        assertEquals("Files", e.get("Name", Locale.FRENCH).get());
+    }
+
+    private static void write(Path file, String name, String categories, String mime)
+            throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, ("[Desktop Entry]\nType=Application\nName=" + name
+                + "\nCategories=" + categories + "\nMimeType=" + mime + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Set<String> set(String... ids) {
+        Set<String> set = new TreeSet<>();
+        Collections.addAll(set, ids);
+        return set;
+    }
+
+    private static List<String> ids(List<DesktopEntries.DesktopEntry> list) {
+        return list.stream().map(DesktopEntries.DesktopEntry::id).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IconThemesTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path user;
+    private Path system;
+    private XdgPaths paths;
+
+    @Before
+    public void setUp() throws IOException {
+        Path root = tmp.getRoot().toPath();
+        user = root.resolve("data").resolve("icons");
+        system = root.resolve("sys").resolve("icons");
+
+        Properties props = new Properties();
+        props.setProperty("user.home", root.resolve("home").toString());
+        HashMap<String,String> env = new HashMap<>();
+        env.put(XdgPaths.XDG_DATA_HOME, root.resolve("data").toString());
+        env.put(XdgPaths.XDG_DATA_DIRS, root.resolve("sys").toString());
+        paths = new XdgPaths(props, env);
+
+        theme(system, "hicolor", "", "16x16/apps", "48x48/apps", "scalable/apps");
+        theme(system, "Base", "", "16x16/apps", "32x32/apps");
+        theme(system, "Child", "Base", "24x24/apps");
+
+        icon(system, "hicolor", "48x48/apps", "only-hicolor.png");
+        icon(system, "hicolor", "scalable/apps", "vector.svg");
+        icon(system, "Base", "16x16/apps", "app.png");
+        icon(system, "Base", "32x32/apps", "app.png");
+        icon(system, "Base", "16x16/apps", "base-only.png");
+        icon(system, "Child", "24x24/apps", "child.png");
+        icon(user, "Child", "24x24/apps", "app.png");
+        icon(root.resolve("sys").resolve("pixmaps"), null, null, "legacy.xpm");
+    }
+
+    @Test
+    public void testExactAndInherited() {
+        IconThemes icons = new IconThemes(paths);
+
+        /* exact match in the user copy of the theme */
+        assertEquals(user.resolve("Child/24x24/apps/app.png"),
+                     icons.lookup("app", 24, "Child").get());
+
+        /* a closer size in the theme wins over an exact size in its parent */
+        assertEquals(user.resolve("Child/24x24/apps/app.png"),
+                     icons.lookup("app", 16, "Child").get());
+
+        /* inherited theme */
+        assertEquals(system.resolve("Base/16x16/apps/base-only.png"),
+                     icons.lookup("base-only", 16, "Child").get());
+
+        /* closest size within the first theme that has the icon */
+        assertEquals(user.resolve("Child/24x24/apps/app.png"),
+                     icons.lookup("app", 64, "Child").get());
+        assertEquals(system.resolve("Base/32x32/apps/app.png"),
+                     icons.lookup("app", 64, "Base").get());
+    }
+
+    @Test
+    public void testFallbacks() {
+        IconThemes icons = new IconThemes(paths);
+
+        assertEquals(system.resolve("hicolor/48x48/apps/only-hicolor.png"),
+                     icons.lookup("only-hicolor", 48, "Child").get());
+        assertEquals(system.resolve("hicolor/scalable/apps/vector.svg"),
+                     icons.lookup("vector", 128, "NotInstalled").get());
+        assertEquals(system.getParent().resolve("pixmaps/legacy.xpm"),
+                     icons.lookup("legacy", 16, "Child").get());
+        assertFalse(icons.lookup("missing", 16, "Child").isPresent());
+    }
+
+    @Test
+    public void testLookupCacheAndInvalidate() throws IOException {
+        IconThemes icons = new IconThemes(paths);
+        assertFalse(icons.lookup("late", 24, "Child").isPresent());
+
+        icon(system, "Child", "24x24/apps", "late.png");
+        assertFalse(icons.lookup("late", 24, "Child").isPresent());
+
+        icons.invalidate();
+        assertEquals(system.resolve("Child/24x24/apps/late.png"),
+                     icons.lookup("late", 24, "Child").get());
+    }
+
+    @Test
+    public void testIconThemeCache() throws IOException {
+        /* the cache lists an icon that is not on disk, proving it is used */
+        Path dir = system.resolve("Base");
+        Path cache = dir.resolve("icon-theme.cache");
+        Files.write(cache, cache(Arrays.asList("16x16/apps", "32x32/apps"),
+                                 "cached-only", 1, IconThemes.FLAG_PNG));
+        Files.setLastModifiedTime(cache, FileTime.fromMillis(
+                Files.getLastModifiedTime(dir).toMillis()+1000));
+
+        IconThemes icons = new IconThemes(paths);
+        assertEquals(system.resolve("Base/32x32/apps/cached-only.png"),
+                     icons.lookup("cached-only", 32, "Base").get());
+        assertFalse(icons.lookup("app", 16, "Base").isPresent());
+
+        /* a stale cache is ignored in favour of scanning */
+        Files.setLastModifiedTime(cache, FileTime.fromMillis(0));
+        icons.invalidate();
+        assertFalse(icons.lookup("cached-only", 32, "Base").isPresent());
+        assertEquals(system.resolve("Base/16x16/apps/app.png"),
+                     icons.lookup("app", 16, "Base").get());
+    }
+
+    @Test
+    public void testCorruptIconThemeCache() throws IOException {
+        Path dir = system.resolve("Base");
+        Path cache = dir.resolve("icon-theme.cache");
+        byte[] valid = cache(Arrays.asList("16x16/apps", "32x32/apps"), "cached-only", 1, IconThemes.FLAG_PNG);
+
+        /* a name sharing the bucket of the cached icon walks its chain */
+        String other = "other";
+        for(int i=0; bucket(other)!=bucket("cached-only"); i++) other = "other" + i;
+
+        /* image count, image list offset and a chain pointing back on itself */
+        int[][] damage = { { 40, -1 }, { 40, 0x7fffffff }, { 36, 1 << 30 }, { 28, 28 } };
+        for(int[] d : damage) {
+            byte[] corrupt = valid.clone();
+            ByteBuffer.wrap(corrupt).putInt(d[0], d[1]);
+            Files.write(cache, corrupt);
+            Files.setLastModifiedTime(cache, FileTime.fromMillis(
+                    Files.getLastModifiedTime(dir).toMillis()+1000));
+
+            /* found corrupt at lookup time, the directories are scanned instead */
+            IconThemes icons = new IconThemes(paths, 0);
+            assertFalse(icons.lookup(other, 32, "Base").isPresent());
+            assertFalse(icons.lookup("cached-only", 32, "Base").isPresent());
+            assertEquals(system.resolve("Base/16x16/apps/app.png"),
+                         icons.lookup("app", 16, "Base").get());
+        }
+    }
+
+    private static void theme(Path base, String name, String inherits, String... dirs)
+            throws IOException {
+        StringBuilder sb = new StringBuilder("[Icon Theme]\nName=").append(name)
+                .append("\nInherits=").append(inherits)
+                .append("\nDirectories=").append(String.join(",", dirs)).append('\n');
+        for(String dir : dirs) {
+            sb.append('[').append(dir).append("]\n");
+            if(dir.startsWith("scalable")) {
+                sb.append("Size=48\nMinSize=8\nMaxSize=512\nType=Scalable\n");
+            } else {
+                sb.append("Size=").append(dir.substring(0, dir.indexOf('x')))
+                  .append("\nType=Fixed\n");
+            }
+        }
+        Files.createDirectories(base.resolve(name));
+        Files.write(base.resolve(name).resolve("index.theme"),
+                    sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void icon(Path base, String theme, String dir, String file)
+            throws IOException {
+        Path p = theme==null?base:base.resolve(theme).resolve(dir);
+        Files.createDirectories(p);
+        Files.write(p.resolve(file), new byte[] { 0 });
+    }
+
+    private static int bucket(String name) {
+        return Integer.remainderUnsigned(IconThemes.hash(name.getBytes(StandardCharsets.UTF_8)), 3);
+    }
+
+    /** Build an icon-theme.cache containing a single icon in one directory. */
+    private static byte[] cache(List<String> dirs, String icon, int dir, int flags)
+            throws IOException {
+        final int buckets = 3;
+        byte[] name = icon.getBytes(StandardCharsets.UTF_8);
+
+        /* layout: header, hash, icon, image list, dir list, strings */
+        int hash = 12;
+        int iconOff = hash + 4 + 4*buckets;
+        int images = iconOff + 12;
+        int list = images + 4 + 8;
+        int strings = list + 4 + 4*dirs.size();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(1);
+        out.writeShort(0);
+        out.writeInt(hash);
+        out.writeInt(list);
+
+        out.writeInt(buckets);
+        int bucket = Integer.remainderUnsigned(IconThemes.hash(name), buckets);
+        for(int i=0; i<buckets; i++) out.writeInt(i==bucket?iconOff:0xffffffff);
+
+        out.writeInt(0xffffffff);
+        out.writeInt(strings);
+        out.writeInt(images);
+
+        out.writeInt(1);
+        out.writeShort(dir);
+        out.writeShort(flags);
+        out.writeInt(0);
+
+        out.writeInt(dirs.size());
+        int off = strings + name.length + 1;
+        for(String d : dirs) {
+            out.writeInt(off);
+            off += d.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+
+        out.write(name);
+        out.write(0);
+        for(String d : dirs) {
+            out.write(d.getBytes(StandardCharsets.UTF_8));
+            out.write(0);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InventoryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths paths;
+
+    @Before
+    public void setUp() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toPath().resolve("home").toString());
+        paths = new XdgPaths(props, Collections.emptyMap());
+
+        write(paths.cache("app", "a"), 100, 1000);
+        write(paths.cache("app", "x", "y", "b"), 200, 3000);
+        write(paths.cache("app", "x", "c"), 300, 2000);
+        write(paths.cache("top"), 7, 5000);
+        write(paths.userconfig("app", "app.conf"), 10, 1000);
+        write(paths.userdata("other", "d", "e", "f"), 50, 1000);
+        Files.createDirectories(paths.userdata("empty"));
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        List<Inventory.Usage> reported = new CopyOnWriteArrayList<>();
+        List<Inventory.Usage> usage = Inventory.builder(paths).parallelism(2).build().scan(reported::add);
+        assertEquals(5, usage.size());
+        assertEquals(5, reported.size());
+
+        Inventory.Usage app = usage.get(0);
+        assertEquals(Inventory.Root.CACHE, app.root());
+        assertEquals("app", app.name());
+        assertEquals(paths.cache("app"), app.path());
+        assertEquals(600, app.bytes());
+        assertEquals(3, app.files());
+        assertEquals(FileTime.fromMillis(1000), app.oldest().get());
+        assertEquals(FileTime.fromMillis(3000), app.newest().get());
+
+        assertEquals("top", usage.get(1).name());
+        assertEquals(7, usage.get(1).bytes());
+        assertEquals(Inventory.Root.USERCONFIG, usage.get(2).root());
+        assertEquals(10, usage.get(2).bytes());
+        assertEquals("empty", usage.get(3).name());
+        assertEquals(0, usage.get(3).files());
+        assertFalse(usage.get(3).oldest().isPresent());
+        assertEquals(50, usage.get(4).bytes());
+
+        assertEquals(1, Inventory.builder(paths).roots(Inventory.Root.USERCONFIG).build().scan().size());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        settle();
+        Inventory inventory = Inventory.builder(paths).snapshot(true).build();
+        List<Inventory.Usage> first = inventory.scan();
+        assertEquals(8, inventory.listed());
+        assertEquals(0, inventory.reused());
+        assertTrue(Files.exists(inventory.snapshotPath()));
+
+        /* unchanged directories are reused, the snapshot's own directory is not */
+        List<Inventory.Usage> second = inventory.scan();
+        assertEquals(toString(first), toString(second));
+        assertEquals(1, inventory.listed());
+        assertEquals(8, inventory.reused());
+
+        /* a new file changes its directory and the totals */
+        write(paths.cache("app", "x", "y", "g"), 1000, 4000);
+        Files.setLastModifiedTime(paths.cache("app", "x", "y"), FileTime.fromMillis(20000));
+        List<Inventory.Usage> third = Inventory.builder(paths).snapshot(true).build().scan();
+        assertEquals(1600, third.get(0).bytes());
+        assertEquals(4, third.get(0).files());
+        assertEquals(FileTime.fromMillis(4000), third.get(0).newest().get());
+    }
+
+    @Test
+    public void testLinkedRoot() throws Exception {
+        /* a cache directory on another disk */
+        Path elsewhere = tmp.getRoot().toPath().resolve("elsewhere");
+        Files.move(paths.cache(), elsewhere);
+        Files.createSymbolicLink(paths.cache(), elsewhere);
+
+        List<Inventory.Usage> usage = Inventory.builder(paths).roots(Inventory.Root.CACHE).build().scan();
+        assertEquals(2, usage.size());
+        assertEquals(paths.cache("app"), usage.get(0).path());
+        assertEquals(600, usage.get(0).bytes());
+        assertEquals(7, usage.get(1).bytes());
+    }
+
+    @Test
+    public void testDamagedSnapshot() throws Exception {
+        Inventory inventory = Inventory.builder(paths).snapshot(true).build();
+        String expected = toString(inventory.scan());
+
+        /* subdirectory counts no scan could have written */
+        for(int count : new int[] { -1, Integer.MAX_VALUE }) {
+            Files.createDirectories(inventory.snapshotPath().getParent());
+            try(DataOutputStream out = new DataOutputStream(Files.newOutputStream(inventory.snapshotPath()))) {
+                out.writeInt(0x58444955);
+                out.writeInt(1);
+                out.writeInt(1);
+                out.writeUTF(paths.cache("app").toString());
+                for(int i=0; i<5; i++) out.writeLong(0);
+                out.writeInt(count);
+            }
+            assertEquals(expected, toString(inventory.scan()));
+            assertEquals(0, inventory.reused());
+        }
+    }
+
+    @Test
+    public void testUnreadable() throws Exception {
+        Path locked = paths.cache("app", "x", "y");
+        Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+        try {
+            /* permissions do not apply to root */
+            assumeFalse(Files.isReadable(locked));
+
+            Inventory inventory = Inventory.builder(paths).snapshot(true).build();
+            for(int i=0; i<2; i++) {
+                /* the locked subtree is left out again when the snapshot is reused */
+                List<Inventory.Usage> usage = inventory.scan();
+                assertEquals("app", usage.get(0).name());
+                assertEquals(400, usage.get(0).bytes());
+                assertEquals(2, usage.get(0).files());
+                assertEquals(1, usage.get(0).skipped());
+                assertEquals(0, usage.get(1).skipped());
+            }
+        } finally {
+            Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwx------"));
+        }
+    }
+
+    private static void write(Path file, int size, long mtime) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[size]);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(mtime));
+    }
+
+    /** Date every directory back so that snapshots may reuse it. */
+    private void settle() throws IOException {
+        for(Path root : new Path[] { paths.cache(), paths.userconfig(), paths.userdata() }) {
+            try(Stream<Path> stream = Files.walk(root)) {
+                for(Path p : stream.filter(Files::isDirectory).collect(Collectors.toList())) {
+                    Files.setLastModifiedTime(p, FileTime.fromMillis(10000));
+                }
+            }
+        }
+    }
+
+    private static String toString(List<Inventory.Usage> usage) {
+        return usage.stream().filter(u->!u.name().equals("xdgpaths")).map(u->u.toString() + " " + u.oldest() + " " + u.newest())
+                    .collect(Collectors.joining("\n"));
+    }
+
+}
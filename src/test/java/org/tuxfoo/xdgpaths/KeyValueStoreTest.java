@@ -0,0 +1,270 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class KeyValueStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths paths;
+
+    @Before
+    public void setUp() {
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toString());
+        paths = new XdgPaths(props, new HashMap<>());
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").build()) {
+            assertEquals(paths.userdata("app", "state"), store.root());
+            store.put("a", bytes("1"));
+            store.put("b", bytes("2"));
+            store.put("a", bytes("3"));
+            assertTrue(store.remove("b"));
+            assertFalse(store.remove("b"));
+            store.put("empty", new byte[0]);
+            assertArrayEquals(bytes("3"), store.get("a").get());
+            assertFalse(store.get("b").isPresent());
+        }
+
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").build()) {
+            assertEquals(2, store.size());
+            assertArrayEquals(bytes("3"), store.get("a").get());
+            assertArrayEquals(new byte[0], store.get("empty").get());
+            assertFalse(store.contains("b"));
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testSingleOpen() throws IOException {
+        final KeyValueStore store = KeyValueStore.builder(paths, "app", "state").build();
+        try {
+            KeyValueStore.builder(paths, "app", "state").build().close();
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").syncInterval(0).build()) {
+            store.put("a", bytes("1"));
+            store.put("b", bytes("22"));
+        }
+
+        /* cut the last record short, as a crash during the append would */
+        Path segment = segments(paths.userdata("app", "state"))[0];
+        try(FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size()-1);
+        }
+
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").build()) {
+            assertArrayEquals(bytes("1"), store.get("a").get());
+            assertFalse(store.contains("b"));
+            store.put("c", bytes("3"));
+        }
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").build()) {
+            assertEquals(2, store.size());
+            assertArrayEquals(bytes("3"), store.get("c").get());
+        }
+    }
+
+    @Test
+    public void testGarbageTail() throws IOException {
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").syncInterval(0).build()) {
+            store.put("a", bytes("1"));
+        }
+
+        /* a record header claiming lengths far beyond the segment */
+        Path segment = segments(paths.userdata("app", "state"))[0];
+        long size = Files.size(segment);
+        try(FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.wrap(ByteBuffer.allocate(16).putInt(0).putInt(0x7ffffff0)
+                                               .putInt(0x7ffffff0).putInt(0).array()));
+        }
+
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").build()) {
+            assertArrayEquals(bytes("1"), store.get("a").get());
+            assertEquals(1, store.size());
+        }
+        assertEquals(size, Files.size(segment));
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").build()) {
+            store.put("a", bytes("1"));
+            store.put("b", bytes("2"));
+            try(KeyValueStore.Snapshot snap = store.snapshot()) {
+                store.put("a", bytes("changed"));
+                store.remove("b");
+                store.put("c", bytes("3"));
+                store.compact();
+
+                assertArrayEquals(bytes("1"), snap.get("a").get());
+                assertArrayEquals(bytes("2"), snap.get("b").get());
+                assertFalse(snap.get("c").isPresent());
+                assertEquals(2, snap.keys().size());
+            }
+            assertArrayEquals(bytes("changed"), store.get("a").get());
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        Path root = paths.userdata("app", "state");
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state")
+                                               .segmentSize(1024).compactionRatio(1).build()) {
+            for(int i=0; i<1000; i++) store.put("k" + (i%10), bytes("value " + i));
+            store.remove("k0");
+            assertTrue(store.segments()>10);
+
+            store.compact();
+            assertEquals(2, store.segments());
+            assertEquals(2, segments(root).length);
+            assertEquals(store.liveBytes(), store.logBytes()-32);
+            assertFalse(store.contains("k0"));
+            assertArrayEquals(bytes("value 999"), store.get("k9").get());
+        }
+
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").build()) {
+            assertEquals(9, store.size());
+            assertFalse(store.contains("k0"));
+            assertArrayEquals(bytes("value 991"), store.get("k1").get());
+        }
+    }
+
+    @Test
+    public void testHotKey() throws Exception {
+        final KeyValueStore store = KeyValueStore.builder(paths, "app", "state")
+                                                 .segmentSize(8192).compactionRatio(0.3).build();
+        try {
+            for(int i=0; i<100; i++) store.put("k" + i, bytes("a value of thirty bytes " + i));
+            store.compact();
+            assertEquals(1, store.compactions());
+
+            /* garbage in the active segment is not reclaimed by compacting the sealed one */
+            for(int i=0; i<250; i++) store.put("hot", bytes(Integer.toString(i)));
+            assertTrue(store.logBytes()>=8192);
+            assertEquals(2, store.segments());
+
+            /* give a queued compaction time to run */
+            Thread.sleep(200);
+            assertEquals(1, store.compactions());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testInterruptedCompaction() throws IOException {
+        Path root = paths.userdata("app", "state");
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").segmentSize(64).build()) {
+            for(int i=0; i<20; i++) store.put("k" + (i%3), bytes("value " + i));
+            store.remove("k0");
+        }
+        Path oldest = segments(root)[0];
+        byte[] saved = Files.readAllBytes(oldest);
+
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").segmentSize(64).build()) {
+            store.compact();
+        }
+
+        /* put back an older segment, as if the crash came before its deletion */
+        assertFalse(Files.exists(oldest));
+        Files.write(oldest, saved);
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state").segmentSize(64).build()) {
+            assertFalse(Files.exists(oldest));
+            assertEquals(2, store.size());
+            assertFalse(store.contains("k0"));
+            assertArrayEquals(bytes("value 19"), store.get("k1").get());
+        }
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        try(KeyValueStore store = KeyValueStore.builder(paths, "app", "state")
+                                               .segmentSize(4096).syncInterval(1).build()) {
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            try {
+                Future<?> writer = pool.submit(()->{
+                    for(int i=0; i<20000; i++) store.put("k" + (i%50), bytes(Integer.toString(i)));
+                    return null;
+                });
+                Future<?>[] readers = new Future<?>[3];
+                for(int r=0; r<readers.length; r++) {
+                    readers[r] = pool.submit(()->{
+                        while(!writer.isDone()) {
+                            for(int k=0; k<50; k++) {
+                                /* values only ever grow for a key */
+                                byte[] v = store.get("k" + k).orElse(bytes("-1"));
+                                Integer.parseInt(new String(v, StandardCharsets.UTF_8));
+                            }
+                        }
+                        return null;
+                    });
+                }
+                writer.get();
+                for(Future<?> f : readers) f.get();
+            } finally {
+                pool.shutdown();
+            }
+
+            assertTrue(store.logBytes()<20000 * 16);
+            for(int k=0; k<50; k++) {
+                assertEquals(Integer.toString(19950+k), new String(store.get("k" + k).get(),
+                                                                   StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static Path[] segments(Path root) throws IOException {
+        try(Stream<Path> files = Files.list(root)) {
+            return files.filter(p->p.toString().endsWith(".log")).sorted().toArray(Path[]::new);
+        }
+    }
+
+    private static byte[] bytes(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+}
@@ -0,0 +1,140 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PrefetchTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths paths;
+    private Path user;
+    private Path system;
+
+    @Before
+    public void setUp() throws IOException {
+        Path root = tmp.getRoot().toPath();
+        user = root.resolve("home/.config/app");
+        system = root.resolve("etc/xdg/app");
+        Files.createDirectories(user);
+        Files.createDirectories(system);
+        Files.createDirectories(root.resolve("home/.local/share/app"));
+
+        Properties props = new Properties();
+        props.setProperty("user.home", root.resolve("home").toString());
+        HashMap<String,String> env = new HashMap<>();
+        env.put(XdgPaths.XDG_CONFIG_DIRS, root.resolve("etc/xdg").toString());
+        paths = new XdgPaths(props, env);
+
+        Files.write(user.resolve("a.conf"), bytes("user a"));
+        Files.write(system.resolve("a.conf"), bytes("system a"));
+        Files.write(system.resolve("b.conf"), bytes("system b"));
+        Files.write(root.resolve("home/.local/share/app/c.db"), bytes("data c"));
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        List<String> manifest = Arrays.asList("%config/app/a.conf", "%config/app/b.conf",
+                                              "%data/app/c.db", "%config/app/missing.conf");
+        Prefetch prefetch = Prefetch.start(paths, manifest);
+        prefetch.done().get();
+
+        assertEquals(user.resolve("a.conf"), prefetch.find("%config/app/a.conf").get());
+        assertEquals(system.resolve("b.conf"), prefetch.find("%config/app/b.conf").get());
+        assertFalse(prefetch.find("%config/app/missing.conf").isPresent());
+
+        assertTrue(prefetch.cached("%config/app/a.conf"));
+        assertArrayEquals(bytes("user a"), prefetch.read("%config/app/a.conf").get());
+        assertFalse(prefetch.cached("%config/app/a.conf"));
+        assertArrayEquals(bytes("data c"), prefetch.read("%data/app/c.db").get());
+        assertFalse(prefetch.read("%config/app/missing.conf").isPresent());
+
+        /* handed out once, then read from disk */
+        Files.write(user.resolve("a.conf"), bytes("changed"));
+        assertArrayEquals(bytes("changed"), prefetch.read("%config/app/a.conf").get());
+
+        /* not in the manifest */
+        assertArrayEquals(bytes("system b"), prefetch.read("%config/app/b.conf").get());
+        Files.write(system.resolve("d.conf"), bytes("system d"));
+        assertArrayEquals(bytes("system d"), prefetch.read("%config/app/d.conf").get());
+    }
+
+    @Test
+    public void testStaleContentsIgnored() throws Exception {
+        Prefetch prefetch = Prefetch.start(paths, Arrays.asList("%config/app/b.conf"));
+        prefetch.done().get();
+        Files.write(system.resolve("b.conf"), bytes("system B!"));
+        Files.setLastModifiedTime(system.resolve("b.conf"), FileTime.fromMillis(1000));
+        assertArrayEquals(bytes("system B!"), prefetch.read("%config/app/b.conf").get());
+    }
+
+    @Test
+    public void testRemovedSourceFallsBack() throws Exception {
+        Prefetch prefetch = Prefetch.start(paths, Arrays.asList("%config/app/a.conf"));
+        prefetch.done().get();
+        Files.delete(user.resolve("a.conf"));
+
+        /* the system file now applies, as it would without prefetching */
+        assertEquals(system.resolve("a.conf"), prefetch.find("%config/app/a.conf").get());
+        assertArrayEquals(bytes("system a"), prefetch.read("%config/app/a.conf").get());
+        Files.delete(system.resolve("a.conf"));
+        assertFalse(prefetch.read("%config/app/a.conf").isPresent());
+    }
+
+    @Test
+    public void testReadLimit() throws Exception {
+        byte[] big = new byte[4096];
+        Arrays.fill(big, (byte)'x');
+        Files.write(system.resolve("big.conf"), big);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Prefetch prefetch = Prefetch.start(paths, Arrays.asList("%config/app/big.conf"), 1024, pool);
+            prefetch.done().get();
+            assertFalse(prefetch.cached("%config/app/big.conf"));
+            assertEquals(system.resolve("big.conf"), prefetch.find("%config/app/big.conf").get());
+            assertArrayEquals(big, prefetch.read("%config/app/big.conf").get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static byte[] bytes(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+}
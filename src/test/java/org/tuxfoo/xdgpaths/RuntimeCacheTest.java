@@ -0,0 +1,144 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RuntimeCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths withRuntime;
+    private XdgPaths withoutRuntime;
+
+    @Before
+    public void setUp() {
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toString());
+        withoutRuntime = new XdgPaths(props, new HashMap<>());
+
+        HashMap<String,String> env = new HashMap<>();
+        env.put(XdgPaths.XDG_RUNTIME_DIR, tmp.getRoot().toPath().resolve("run").toString());
+        withRuntime = new XdgPaths(props, env);
+    }
+
+    @Test
+    public void testPlacement() throws IOException {
+        RuntimeCache cache = new RuntimeCache(withRuntime, "app", 100, 10,
+                                              RuntimeCache.Pressure.DEMOTE);
+        assertTrue(cache.hasRuntime());
+
+        assertEquals(withRuntime.runtime("app", "cache", "small").get(), cache.put("small", new byte[10]));
+        assertEquals(withRuntime.cache("app", "cache", "large"), cache.put("large", new byte[11]));
+        assertEquals(10, cache.runtimeBytes());
+
+        assertEquals(withRuntime.runtime("app", "cache", "small").get(), cache.find("small").get());
+        assertEquals(withRuntime.cache("app", "cache", "large"), cache.find("large").get());
+        assertArrayEquals(new byte[11], cache.get("large").get());
+        assertFalse(cache.find("missing").isPresent());
+
+        cache.remove("small");
+        assertEquals(0, cache.runtimeBytes());
+        assertFalse(cache.get("small").isPresent());
+    }
+
+    @Test
+    public void testDemoteAndPromote() throws IOException {
+        RuntimeCache cache = new RuntimeCache(withRuntime, "app", 20, 10,
+                                              RuntimeCache.Pressure.DEMOTE);
+        cache.put("a", new byte[] { 1 });
+        cache.put("b", new byte[10]);
+        cache.get("a");
+        cache.put("c", new byte[10]);
+
+        /* b was least recently used */
+        assertEquals(withRuntime.cache("app", "cache", "b"), cache.find("b").get());
+        assertFalse(Files.exists(withRuntime.runtime("app", "cache", "b").get()));
+        assertEquals(11, cache.runtimeBytes());
+
+        /* reading b promotes it, demoting a */
+        assertArrayEquals(new byte[10], cache.get("b").get());
+        assertEquals(withRuntime.runtime("app", "cache", "b").get(), cache.find("b").get());
+        assertEquals(withRuntime.cache("app", "cache", "a"), cache.find("a").get());
+        assertEquals(20, cache.runtimeBytes());
+    }
+
+    @Test
+    public void testDrop() throws IOException {
+        RuntimeCache cache = new RuntimeCache(withRuntime, "app", 10, 10,
+                                              RuntimeCache.Pressure.DROP);
+        cache.put("a", new byte[10]);
+        cache.put("b", new byte[10]);
+        assertFalse(cache.find("a").isPresent());
+        assertTrue(cache.find("b").isPresent());
+    }
+
+    @Test
+    public void testExistingEntriesCounted() throws IOException {
+        Path dir = withRuntime.runtime("app", "cache", "sub").get();
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("x"), new byte[7]);
+
+        RuntimeCache cache = new RuntimeCache(withRuntime, "app", 100, 10,
+                                              RuntimeCache.Pressure.DEMOTE);
+        assertEquals(7, cache.runtimeBytes());
+        assertEquals(dir.resolve("x"), cache.find("sub/x").get());
+    }
+
+    @Test
+    public void testOtherRuntimeFilesUntouched() throws IOException {
+        Path lock = withRuntime.runtime("app", "locks", "x.lock").get();
+        Path shm = withRuntime.runtime("app", "x.shm").get();
+        Files.createDirectories(lock.getParent());
+        Files.write(lock, new byte[0]);
+        Files.write(shm, new byte[64]);
+
+        RuntimeCache cache = new RuntimeCache(withRuntime, "app", 10, 10,
+                                              RuntimeCache.Pressure.DROP);
+        assertEquals(0, cache.runtimeBytes());
+        cache.put("a", new byte[10]);
+        cache.put("b", new byte[10]);
+        assertTrue(Files.exists(lock));
+        assertEquals(64, Files.size(shm));
+    }
+
+    @Test
+    public void testNoRuntime() throws IOException {
+        RuntimeCache cache = new RuntimeCache(withoutRuntime, "app", 100, 10,
+                                              RuntimeCache.Pressure.DEMOTE);
+        assertFalse(cache.hasRuntime());
+        assertEquals(withoutRuntime.cache("app", "cache", "a"), cache.put("a", new byte[1]));
+        assertArrayEquals(new byte[1], cache.get("a").get());
+        assertEquals(0, cache.runtimeBytes());
+    }
+}
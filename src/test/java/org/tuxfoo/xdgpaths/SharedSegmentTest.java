@@ -0,0 +1,126 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedSegmentTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths paths;
+
+    @Before
+    public void setUp() {
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toString());
+        HashMap<String,String> env = new HashMap<>();
+        env.put(XdgPaths.XDG_RUNTIME_DIR, tmp.getRoot().toPath().resolve("run").toString());
+        paths = new XdgPaths(props, env);
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        try(SharedSegment a = SharedSegment.open(paths, "app", "stats", 4);
+            SharedSegment b = SharedSegment.open(paths, "app", "stats", 4)) {
+            assertTrue(Files.exists(paths.runtime("app", "stats.shm").get()));
+            assertEquals(4, a.slots());
+
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            try {
+                Future<?>[] futures = new Future<?>[8];
+                for(int i=0; i<futures.length; i++) {
+                    final SharedSegment s = i%2==0?a:b;
+                    futures[i] = pool.submit(()->{
+                        for(int j=0; j<1000; j++) s.addAndGet(1, 1);
+                        return null;
+                    });
+                }
+                for(Future<?> f : futures) f.get();
+            } finally {
+                pool.shutdown();
+            }
+
+            assertEquals(8000, a.get(1));
+            assertEquals(8000, b.get(1));
+            assertEquals(0, a.get(0));
+
+            assertTrue(a.compareAndSet(0, 0, 42));
+            assertFalse(b.compareAndSet(0, 0, 43));
+            assertEquals(42, b.get(0));
+        }
+
+        /* values persist across opens */
+        try(SharedSegment c = SharedSegment.open(paths, "app", "stats", 4)) {
+            assertEquals(8000, c.get(1));
+        }
+    }
+
+    @Test
+    public void testLeases() throws Exception {
+        try(SharedSegment a = SharedSegment.open(paths, "app", "leases", 2);
+            SharedSegment b = SharedSegment.open(paths, "app", "leases", 2)) {
+            assertTrue(a.owner()!=b.owner());
+
+            assertTrue(a.tryLease(0, 60000));
+            assertFalse(b.tryLease(0, 60000));
+            assertTrue(a.tryLease(0, 60000));
+            assertFalse(b.releaseLease(0));
+
+            assertTrue(a.releaseLease(0));
+            assertTrue(b.tryLease(0, 0));
+
+            /* expired lease may be taken over */
+            Thread.sleep(5);
+            assertTrue(a.tryLease(0, 60000));
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testSlotMismatch() throws IOException {
+        final SharedSegment a = SharedSegment.open(paths, "app", "x", 2);
+        try {
+            SharedSegment.open(paths, "app", "x", 3).close();
+        } finally {
+            a.close();
+        }
+    }
+
+    @Test(expected=IndexOutOfBoundsException.class)
+    public void testSlotRange() throws IOException {
+        try(SharedSegment a = SharedSegment.open(paths, "app", "y", 2)) {
+            a.get(2);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThumbnailsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths paths;
+
+    @Before
+    public void setUp() {
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toPath().resolve("home").toString());
+        paths = new XdgPaths(props, Collections.emptyMap());
+    }
+
+    @Test
+    public void testName() {
+        assertEquals("c6ee772d9e49320e97ec29a7eb5b1697.png",
+                     Thumbnails.name(URI.create("file:///home/jens/photos/me.png")));
+
+        Thumbnails thumbs = Thumbnails.builder(paths).build();
+        assertEquals(paths.cache("thumbnails", "large", "c6ee772d9e49320e97ec29a7eb5b1697.png"),
+                     thumbs.path(URI.create("file:///home/jens/photos/me.png"), Thumbnails.Size.LARGE));
+    }
+
+    @Test
+    public void testGenerateOnce() throws Exception {
+        Thumbnails thumbs = Thumbnails.builder(paths).build();
+        URI uri = URI.create("file:///photos/a.jpg");
+        FileTime mtime = FileTime.from(1500000000L, TimeUnit.SECONDS);
+        AtomicInteger generated = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Path>> results = new ArrayList<>();
+            for(int i=0; i<8; i++) {
+                results.add(pool.submit(()->{
+                    start.await();
+                    return thumbs.get(uri, mtime, Thumbnails.Size.NORMAL, (u, s)->{
+                        generated.incrementAndGet();
+                        try {
+                            Thread.sleep(100);
+                        } catch(InterruptedException e) {
+                            throw new AssertionError(e);
+                        }
+                        return png();
+                    });
+                }));
+            }
+            start.countDown();
+            for(Future<Path> f : results) assertEquals(thumbs.path(uri, Thumbnails.Size.NORMAL), f.get());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, generated.get());
+
+        Path path = thumbs.path(uri, Thumbnails.Size.NORMAL);
+        Map<String,String> text = Thumbnails.readText(path);
+        assertEquals("file:///photos/a.jpg", text.get("Thumb::URI"));
+        assertEquals("1500000000", text.get("Thumb::MTime"));
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(path)));
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(path.getParent())));
+
+        /* cached while the original is unchanged, regenerated after */
+        thumbs.get(uri, mtime, Thumbnails.Size.NORMAL, (u, s)->{ throw new AssertionError(); });
+        FileTime changed = FileTime.from(1500000060L, TimeUnit.SECONDS);
+        assertFalse(thumbs.find(uri, changed, Thumbnails.Size.NORMAL).isPresent());
+        thumbs.get(uri, changed, Thumbnails.Size.NORMAL, (u, s)->{
+            generated.incrementAndGet();
+            return png();
+        });
+        assertEquals(2, generated.get());
+        assertTrue(thumbs.find(uri, changed, Thumbnails.Size.NORMAL).isPresent());
+        assertFalse(thumbs.find(URI.create("file:///photos/b.jpg"), changed, Thumbnails.Size.NORMAL).isPresent());
+
+        assertTrue(thumbs.remove(uri));
+        assertFalse(thumbs.find(uri, changed, Thumbnails.Size.NORMAL).isPresent());
+    }
+
+    @Test
+    public void testIndexBounded() throws Exception {
+        Thumbnails thumbs = Thumbnails.builder(paths).indexSize(4).build();
+        FileTime mtime = FileTime.from(1500000000L, TimeUnit.SECONDS);
+        for(int i=0; i<10; i++) {
+            URI uri = URI.create("file:///photos/" + i + ".jpg");
+            thumbs.put(uri, mtime, Thumbnails.Size.NORMAL, png());
+            assertTrue(thumbs.find(uri, mtime, Thumbnails.Size.NORMAL).isPresent());
+        }
+        assertEquals(4, thumbs.indexed());
+
+        /* evicted thumbnails are parsed again */
+        assertTrue(thumbs.find(URI.create("file:///photos/0.jpg"), mtime, Thumbnails.Size.NORMAL).isPresent());
+        assertTrue(thumbs.remove(URI.create("file:///photos/0.jpg")));
+        assertEquals(3, thumbs.indexed());
+    }
+
+    @Test
+    public void testText() throws Exception {
+        Map<String,String> text = Collections.singletonMap("Thumb::URI", "file:///new");
+        byte[] once = Thumbnails.withText(png(), text);
+        byte[] twice = Thumbnails.withText(once, text);
+        assertEquals(once.length, twice.length);
+
+        Path file = tmp.newFile("t.png").toPath();
+        Files.write(file, twice);
+        assertEquals(text, Thumbnails.readText(file));
+    }
+
+    @Test
+    public void testOversizedText() throws Exception {
+        Thumbnails thumbs = Thumbnails.builder(paths).build();
+        URI uri = URI.create("file:///photos/a.jpg");
+        FileTime mtime = FileTime.from(1500000000L, TimeUnit.SECONDS);
+        thumbs.put(uri, mtime, Thumbnails.Size.NORMAL, png());
+
+        /* a tEXt chunk claiming far more data than the file holds */
+        Path path = thumbs.path(uri, Thumbnails.Size.NORMAL);
+        byte[] png = Files.readAllBytes(path);
+        ByteBuffer.wrap(png).putInt(33, 0x7ffffff0);
+        Files.write(path, png);
+
+        try {
+            Thumbnails.readText(path);
+            throw new AssertionError("oversized chunk read");
+        } catch(IOException e) {
+            /* expected */
+        }
+        assertFalse(thumbs.find(uri, mtime, Thumbnails.Size.NORMAL).isPresent());
+    }
+
+    @Test(expected=IOException.class)
+    public void testNotPng() throws Exception {
+        Thumbnails.builder(paths).build().put(URI.create("file:///x"), FileTime.fromMillis(0),
+                Thumbnails.Size.NORMAL, "not a png".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+        Thumbnails thumbs = Thumbnails.builder(paths).maxAge(TimeUnit.DAYS.toMillis(1)).build();
+        long now = System.currentTimeMillis();
+        FileTime mtime = FileTime.fromMillis(now);
+        long size = 0;
+        for(int i=0; i<4; i++) {
+            URI uri = URI.create("file:///photos/" + i + ".jpg");
+            thumbs.put(uri, mtime, Thumbnails.Size.LARGE, png());
+            Path p = thumbs.path(uri, Thumbnails.Size.LARGE);
+            Files.setLastModifiedTime(p, FileTime.fromMillis(now - TimeUnit.HOURS.toMillis(i==0?48:i)));
+            size = Files.size(p);
+        }
+        assertEquals(1, thumbs.prune());
+        assertFalse(thumbs.find(URI.create("file:///photos/0.jpg"), mtime, Thumbnails.Size.LARGE).isPresent());
+
+        /* oldest first until within the size limit */
+        Thumbnails limited = Thumbnails.builder(paths).maxBytes(size + 1).build();
+        assertEquals(2, limited.prune());
+        assertTrue(limited.find(URI.create("file:///photos/1.jpg"), mtime, Thumbnails.Size.LARGE).isPresent());
+    }
+
+    @Test
+    public void testBackgroundPrune() throws Exception {
+        try(Thumbnails thumbs = Thumbnails.builder(paths).maxBytes(1).pruneInterval(20).build()) {
+            URI uri = URI.create("file:///photos/a.jpg");
+            thumbs.put(uri, FileTime.fromMillis(0), Thumbnails.Size.NORMAL, png());
+            Path p = thumbs.path(uri, Thumbnails.Size.NORMAL);
+            for(int i=0; i<100 && Files.exists(p); i++) Thread.sleep(20);
+            assertFalse(Files.exists(p));
+        }
+    }
+
+    /** A 1x1 grayscale PNG image. */
+    private static byte[] png() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+        chunk(out, "IHDR", ByteBuffer.allocate(13).putInt(1).putInt(1).put((byte)8).array());
+        chunk(out, "IDAT", new byte[] { 0x78, (byte)0x9c, 0x63, 0x60, 0x00, 0x00, 0x00, 0x02, 0x00, 0x01 });
+        chunk(out, "IEND", new byte[0]);
+        return out.toByteArray();
+    }
+
+    private static void chunk(ByteArrayOutputStream out, String type, byte[] data) throws IOException {
+        byte[] t = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data);
+        out.write(ByteBuffer.allocate(4).putInt(data.length).array());
+        out.write(t);
+        out.write(data);
+        out.write(ByteBuffer.allocate(4).putInt((int)crc.getValue()).array());
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TieredCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths paths;
+
+    @Before
+    public void setUp() {
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toString());
+        paths = new XdgPaths(props, new HashMap<>());
+    }
+
+    @Test
+    public void testTiers() throws IOException {
+        try(TieredCache cache = TieredCache.builder(paths, "app").build()) {
+            assertEquals(paths.cache("app"), cache.root());
+            assertFalse(cache.get("a").isPresent());
+
+            /* a file written by someone else is read from disk, then memory */
+            Files.createDirectories(paths.cache("app", "dir"));
+            Files.write(paths.cache("app", "dir", "b"), bytes("bee"));
+            assertEquals("bee", string(cache.get("dir/b").get()));
+            assertEquals("bee", string(cache.get("dir/b").get()));
+
+            cache.put("c", bytes("sea"));
+            assertArrayEquals(bytes("sea"), Files.readAllBytes(paths.cache("app", "c")));
+            assertEquals("sea", string(cache.get("c").get()));
+
+            TieredCache.Stats stats = cache.stats();
+            assertEquals(2, stats.memoryHits());
+            assertEquals(2, stats.memoryMisses());
+            assertEquals(1, stats.diskHits());
+            assertEquals(1, stats.diskMisses());
+            assertEquals(0.5, stats.memoryHitRatio(), 0.0);
+            assertEquals(2, stats.memoryEntries());
+            assertEquals(6, stats.memoryBytes());
+
+            /* values are read only views */
+            assertTrue(cache.get("c").get().isReadOnly());
+
+            cache.remove("c");
+            assertFalse(cache.get("c").isPresent());
+            assertFalse(Files.exists(paths.cache("app", "c")));
+        }
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        try(TieredCache cache = TieredCache.builder(paths, "app")
+                                           .memoryCapacity(10)
+                                           .eviction(TieredCache.Eviction.LRU)
+                                           .build()) {
+            cache.put("a", bytes("aaaa"));
+            cache.put("b", bytes("bbbb"));
+            cache.get("a");
+            cache.put("c", bytes("cccc"));
+
+            /* b was least recently used */
+            assertEquals(1, cache.stats().evictions());
+            assertEquals(8, cache.stats().memoryBytes());
+            long hits = cache.stats().memoryHits();
+            cache.get("a");
+            cache.get("c");
+            assertEquals(hits+2, cache.stats().memoryHits());
+            cache.get("b");
+            assertEquals(hits+2, cache.stats().memoryHits());
+        }
+    }
+
+    @Test
+    public void testSecondHitAdmission() throws IOException {
+        Files.createDirectories(paths.cache("app"));
+        Files.write(paths.cache("app", "x"), bytes("x"));
+
+        try(TieredCache cache = TieredCache.builder(paths, "app")
+                                           .admission(TieredCache.Admission.SECOND_HIT)
+                                           .build()) {
+            cache.get("x");
+            assertEquals(0, cache.stats().memoryEntries());
+            cache.get("x");
+            assertEquals(1, cache.stats().memoryEntries());
+            cache.get("x");
+            assertEquals(1, cache.stats().memoryHits());
+
+            /* invalidation forces a disk read */
+            Files.write(paths.cache("app", "x"), bytes("y"));
+            cache.invalidate("x");
+            assertEquals("y", string(cache.get("x").get()));
+        }
+    }
+
+    @Test
+    public void testWriteBehind() throws IOException {
+        try(TieredCache cache = TieredCache.builder(paths, "app")
+                                           .writeMode(TieredCache.WriteMode.WRITE_BEHIND)
+                                           .maxEntrySize(2)
+                                           .build()) {
+            /* too large for memory, served from the pending write */
+            cache.put("big", bytes("large value"));
+            assertEquals("large value", string(cache.get("big").get()));
+
+            cache.flush();
+            assertArrayEquals(bytes("large value"), Files.readAllBytes(paths.cache("app", "big")));
+            assertEquals(0, cache.stats().memoryEntries());
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidKey() throws IOException {
+        try(TieredCache cache = TieredCache.builder(paths, "app").build()) {
+            cache.get("../escape");
+        }
+    }
+
+    private static byte[] bytes(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+
+    private static String string(ByteBuffer buf) {
+        byte[] b = new byte[buf.remaining()];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UserDirsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path home;
+    private Path file;
+    private XdgPaths paths;
+
+    @Before
+    public void setUp() throws IOException {
+        home = tmp.getRoot().toPath();
+        file = home.resolve(".config").resolve("user-dirs.dirs");
+        Files.createDirectories(file.getParent());
+
+        Properties props = new Properties();
+        props.setProperty("user.home", home.toString());
+        paths = new XdgPaths(props, Collections.emptyMap());
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        write("# comment\n"
+            + "XDG_DESKTOP_DIR=\"$HOME/Desktop\"\n"
+            + "XDG_DOWNLOAD_DIR=\"$HOME/My \\\"Downloads\\\"\"\n"
+            + "XDG_TEMPLATES_DIR=\"$HOME\"\n"
+            + "XDG_MUSIC_DIR=\"/srv/music\"\n"
+            + "XDG_VIDEOS_DIR=relative\n", 1000);
+
+        assertEquals(home.resolve("Desktop"), paths.userdir("DESKTOP").get());
+        assertEquals(home.resolve("My \"Downloads\""), paths.userdir("download").get());
+        assertEquals(home, paths.userdir("XDG_TEMPLATES_DIR").get());
+        assertEquals("/srv/music/a/b", paths.userdir("music", "a", "b").get().toString());
+        assertFalse(paths.userdir("videos").isPresent());
+        assertEquals(4, paths.userdirs().size());
+    }
+
+    @Test
+    public void testMissingFile() {
+        assertFalse(paths.userdir("desktop").isPresent());
+        assertTrue(paths.userdirs().isEmpty());
+    }
+
+    @Test
+    public void testRefreshOnModification() throws IOException {
+        write("XDG_DESKTOP_DIR=\"$HOME/Desktop\"\n", 1000);
+        assertEquals(home.resolve("Desktop"), paths.userdir("desktop").get());
+
+        /* unchanged modification time keeps the cached copy */
+        write("XDG_DESKTOP_DIR=\"$HOME/Other\"\n", 1000);
+        assertEquals(home.resolve("Desktop"), paths.userdir("desktop").get());
+
+        write("XDG_DESKTOP_DIR=\"$HOME/Other\"\n", 2000);
+        assertEquals(home.resolve("Other"), paths.userdir("desktop").get());
+
+        Files.delete(file);
+        assertFalse(paths.userdir("desktop").isPresent());
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        write("XDG_DESKTOP_DIR=\"$HOME/Desktop\"\n", 1000);
+        final Path expected = home.resolve("Desktop");
+        final boolean[] ok = new boolean[8];
+
+        Thread[] threads = new Thread[ok.length];
+        for(int i=0; i<threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread(()->{
+                boolean all = true;
+                for(int j=0; j<1000; j++) all &= expected.equals(paths.userdir("desktop").orElse(null));
+                ok[n] = all;
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads) t.join();
+        for(boolean b : ok) assertTrue(b);
+    }
+
+    private void write(String contents, long modified) throws IOException {
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+    }
+}
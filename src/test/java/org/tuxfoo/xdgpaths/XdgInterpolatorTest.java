@@ -0,0 +1,107 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class XdgInterpolatorTest {
+    /* NOTE: as in XdgPathsTest, these tests assume forward slash separators */
+
+    private final XdgInterpolator env;
+    private final XdgInterpolator def;
+
+    public XdgInterpolatorTest() {
+        HashMap<String,String> map = new HashMap<>();
+        map.put("HOME", "/home/exdigi");
+        map.put(XdgPaths.XDG_CACHE_HOME, "/home/exdigi/cache");
+        map.put(XdgPaths.XDG_CONFIG_HOME, "/home/exdigi/config");
+        map.put(XdgPaths.XDG_DATA_HOME, "/home/exdigi/data");
+        map.put(XdgPaths.XDG_RUNTIME_DIR, "/runtime");
+        map.put(XdgPaths.XDG_CONFIG_DIRS, "/config1:/config2");
+        map.put(XdgPaths.XDG_DATA_DIRS, "/data1:/data2");
+        this.env = new XdgInterpolator(new XdgPaths(new Properties(), map));
+
+        Properties props = new Properties();
+        props.setProperty("user.home", "/home/exdigi");
+        this.def = new XdgInterpolator(new XdgPaths(props, Collections.emptyMap()));
+    }
+
+    @Test
+    public void testTokens() {
+        assertEquals("/home/exdigi/cache/myapp/tmp", env.expand("%cache/myapp/tmp"));
+        assertEquals("/home/exdigi/config/myapp", env.expand("%config/myapp"));
+        assertEquals("/home/exdigi/data/myapp/models", env.expand("%data/myapp/models"));
+        assertEquals("/home/exdigi", env.expand("%home"));
+        assertEquals("/runtime/myapp.sock", env.expand("%runtime/myapp.sock"));
+        assertEquals("/home/exdigi/config", env.expand("%userconfig"));
+        assertEquals("/home/exdigi/data/x", env.expand("%userdata/x"));
+
+        assertEquals("/home/exdigi/.cache/a", def.expand("%cache/a"));
+        assertEquals("%runtime/myapp.sock", def.expand("%runtime/myapp.sock"));
+    }
+
+    @Test
+    public void testText() {
+        assertEquals("tmp = /home/exdigi/cache/tmp\nmodels=/home/exdigi/data/m:/home/exdigi/config/m;",
+                     env.expand("tmp = %cache/tmp\nmodels=%data/m:%userconfig/m;"));
+        assertEquals("%cachedir %cache_x /home/exdigi/cache-x", env.expand("%cachedir %cache_x %cache-x"));
+        assertEquals("100% %unknown %", env.expand("100% %unknown %"));
+        assertEquals("%cache is /home/exdigi/cache", env.expand("%%cache is %cache"));
+        assertEquals("%%", env.expand("%%%%"));
+        assertEquals("", env.expand(""));
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<5000; i++) sb.append("line ").append(i).append(" %data/app/").append(i).append(" 5%% %home\n");
+        sb.append("%cache");
+        String text = sb.toString();
+        String expected = env.expand(text);
+
+        StringWriter out = new StringWriter();
+        env.expand(new StringReader(text), out);
+        assertEquals(expected, out.toString());
+
+        /* tokens split across reads */
+        out = new StringWriter();
+        env.expand(new Reader() {
+            private final StringReader in = new StringReader(text);
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return in.read(cbuf, off, Math.min(len, 3));
+            }
+
+            @Override
+            public void close() { }
+        }, out);
+        assertEquals(expected, out.toString());
+    }
+
+}
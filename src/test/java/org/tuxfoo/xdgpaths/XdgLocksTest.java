@@ -0,0 +1,175 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XdgLocksTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths paths;
+
+    @Before
+    public void setUp() {
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toString());
+        HashMap<String,String> env = new HashMap<>();
+        env.put(XdgPaths.XDG_RUNTIME_DIR, tmp.getRoot().toPath().resolve("run").toString());
+        paths = new XdgPaths(props, env);
+    }
+
+    @Test
+    public void testRoot() {
+        assertEquals(paths.runtime("app", "locks").get(), new XdgLocks(paths, "app").root());
+
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toString());
+        XdgPaths noRuntime = new XdgPaths(props, new HashMap<>());
+        assertEquals(noRuntime.cache("app", "locks"), new XdgLocks(noRuntime, "app").root());
+    }
+
+    @Test
+    public void testMutualExclusion() throws Exception {
+        final XdgLocks a = new XdgLocks(paths, "app");
+        final XdgLocks b = new XdgLocks(paths, "app");
+        final int[] counter = new int[1];
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            Future<?>[] futures = new Future<?>[8];
+            for(int i=0; i<futures.length; i++) {
+                final XdgLocks locks = i%2==0?a:b;
+                futures[i] = pool.submit(()->{
+                    for(int j=0; j<500; j++) {
+                        final XdgLocks.Lock lock = locks.lock("rebuild");
+                        try {
+                            counter[0]++;
+                        } finally {
+                            lock.close();
+                        }
+                    }
+                    return null;
+                });
+            }
+            for(Future<?> f : futures) f.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(4000, counter[0]);
+    }
+
+    @Test
+    public void testReentrantAndTryLock() throws Exception {
+        final XdgLocks locks = new XdgLocks(paths, "app");
+        final XdgLocks.Lock outer = locks.lock("x");
+        try {
+            final XdgLocks.Lock inner = locks.lock("x");
+            try {
+                Optional<XdgLocks.Lock> again = locks.tryLock("x");
+                assertTrue(again.isPresent());
+                again.get().close();
+            } finally {
+                inner.close();
+            }
+
+            /* another thread can not take it */
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            try {
+                assertFalse(pool.submit(()->{
+                    Optional<XdgLocks.Lock> l = locks.tryLock("x");
+                    if(l.isPresent()) l.get().close();
+                    return l.isPresent();
+                }).get());
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            outer.close();
+        }
+        try(XdgLocks.Lock again = locks.tryLock("x").get()) {
+            assertTrue(again!=null);
+        }
+    }
+
+    @Test
+    public void testUnrelatedNamesIndependent() throws Exception {
+        final XdgLocks locks = new XdgLocks(paths, "app");
+        final XdgLocks.Lock held = locks.lock("a");
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(pool.submit(()->{
+                for(int i=0; i<1000; i++) {
+                    Optional<XdgLocks.Lock> l = locks.tryLock("n" + i);
+                    if(!l.isPresent()) return false;
+                    l.get().close();
+                }
+                return true;
+            }).get());
+        } finally {
+            pool.shutdown();
+            held.close();
+        }
+    }
+
+    @Test
+    public void testSingleInstance() throws Exception {
+        final XdgLocks locks = new XdgLocks(paths, "app");
+        assertFalse(locks.singleInstanceOwner("daemon").isPresent());
+
+        Optional<XdgLocks.Lock> claim = locks.acquireSingleInstance("daemon");
+        assertTrue(claim.isPresent());
+        assertEquals(XdgLocks.pid(), locks.singleInstanceOwner("daemon").get());
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            assertFalse(pool.submit(()->locks.acquireSingleInstance("daemon").isPresent()).get());
+        } finally {
+            pool.shutdown();
+        }
+
+        claim.get().close();
+        final XdgLocks.Lock again = locks.acquireSingleInstance("daemon").get();
+        try {
+            assertEquals(XdgLocks.pid(), locks.singleInstanceOwner("daemon").get());
+        } finally {
+            again.close();
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidName() throws IOException {
+        new XdgLocks(paths, "app").lock("../escape");
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XdgLookupTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths paths;
+    private Path user;
+    private Path system;
+
+    @Before
+    public void setUp() throws IOException {
+        Path root = tmp.getRoot().toPath();
+        user = root.resolve("home/.config/app");
+        system = root.resolve("etc/xdg/app");
+        Files.createDirectories(user);
+        Files.createDirectories(system.resolve("sub"));
+
+        Properties props = new Properties();
+        props.setProperty("user.home", root.resolve("home").toString());
+        HashMap<String,String> env = new HashMap<>();
+        env.put(XdgPaths.XDG_CONFIG_DIRS, root.resolve("etc/xdg").toString());
+        paths = new XdgPaths(props, env);
+
+        Files.write(user.resolve("a.conf"), bytes("user a"));
+        Files.write(system.resolve("a.conf"), bytes("system a"));
+        Files.write(system.resolve("sub/b.conf"), bytes("system b"));
+    }
+
+    @Test
+    public void testOverlay() throws Exception {
+        XdgLookup lookup = XdgLookup.config(paths, XdgLookup.Mode.OVERLAY);
+        assertEquals(user.resolve("a.conf"), lookup.find("app/a.conf").get().path().get());
+        assertEquals(2, lookup.findAll("app/a.conf").size());
+        assertArrayEquals(bytes("system b"), lookup.read("app/sub/b.conf").get());
+
+        lookup.put("app/a.conf", bytes("memory a"));
+        XdgLookup.Resource r = lookup.find("./app//a.conf").get();
+        assertTrue(r.inMemory());
+        assertFalse(r.path().isPresent());
+        assertArrayEquals(bytes("memory a"), r.read());
+        List<XdgLookup.Resource> all = lookup.findAll("app/a.conf");
+        assertEquals(3, all.size());
+        assertTrue(all.get(0).inMemory());
+
+        lookup.hide("app/sub/b.conf");
+        assertFalse(lookup.find("app/sub/b.conf").isPresent());
+        assertTrue(lookup.findAll("app/sub/b.conf").isEmpty());
+        lookup.reset("app/sub/b.conf");
+        assertTrue(lookup.find("app/sub/b.conf").isPresent());
+
+        lookup.clear();
+        assertFalse(lookup.find("app/a.conf").get().inMemory());
+    }
+
+    @Test
+    public void testIsolated() throws Exception {
+        XdgLookup lookup = XdgLookup.config(paths, XdgLookup.Mode.ISOLATED);
+        assertFalse(lookup.find("app/a.conf").isPresent());
+
+        assertEquals(2, lookup.preload("app"));
+        Files.delete(user.resolve("a.conf"));
+        Files.delete(system.resolve("sub/b.conf"));
+
+        /* preferred root wins, and lookups no longer need the disk */
+        assertArrayEquals(bytes("user a"), lookup.read("app/a.conf").get());
+        assertArrayEquals(bytes("system b"), lookup.read("app/sub/b.conf").get());
+        assertEquals(1, lookup.findAll("app/a.conf").size());
+        assertFalse(lookup.find("app/missing.conf").isPresent());
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        XdgLookup lookup = XdgLookup.config(paths, XdgLookup.Mode.OVERLAY).filter(1024);
+        assertEquals(user.resolve("a.conf"), lookup.find("app/a.conf").get().path().get());
+        assertEquals(2, lookup.findAll("app/a.conf").size());
+        assertEquals(1, lookup.findAll("app/sub/b.conf").size());
+
+        for(int i=0; i<500; i++) assertFalse(lookup.find("app/missing" + i + ".conf").isPresent());
+        XdgLookup.FilterStats stats = lookup.filterStats().get();
+        assertTrue(stats.bytes() <= 1024 && stats.bytes() > 1000);
+        assertEquals(1005, stats.lookups());
+        assertEquals(1001, stats.skipped() + stats.falsePositives());
+        assertTrue(stats.toString(), stats.falsePositiveRate() < 0.05);
+        assertTrue(stats.expectedFalsePositiveRate() < 0.05);
+
+        /* files created after the scan need invalidation */
+        Files.write(user.resolve("new.conf"), bytes("user new"));
+        lookup.invalidate("app/new.conf");
+        assertArrayEquals(bytes("user new"), lookup.read("app/new.conf").get());
+        Files.write(system.resolve("other.conf"), bytes("system other"));
+        lookup.invalidate();
+        assertEquals(0, lookup.filterStats().get().lookups());
+        assertArrayEquals(bytes("system other"), lookup.read("app/other.conf").get());
+
+        lookup.filter(0);
+        assertFalse(lookup.filterStats().isPresent());
+        assertTrue(lookup.find("app/a.conf").isPresent());
+    }
+
+    @Test
+    public void testFilterLinks() throws Exception {
+        Path shared = tmp.getRoot().toPath().resolve("shared");
+        Files.createDirectories(shared);
+        Files.write(shared.resolve("s.conf"), bytes("shared s"));
+        Files.createSymbolicLink(user.resolve("linked"), shared);
+
+        XdgLookup lookup = XdgLookup.config(paths, XdgLookup.Mode.OVERLAY).filter(1024);
+        assertEquals(0, lookup.filterStats().get().unfiltered());
+        assertArrayEquals(bytes("shared s"), lookup.read("app/linked/s.conf").get());
+
+        /* a loop can not be scanned, so that root is probed directly */
+        Files.createSymbolicLink(shared.resolve("loop"), shared);
+        lookup.invalidate();
+        assertEquals(1, lookup.filterStats().get().unfiltered());
+        assertArrayEquals(bytes("shared s"), lookup.read("app/linked/loop/s.conf").get());
+        assertArrayEquals(bytes("user a"), lookup.read("app/a.conf").get());
+        assertFalse(lookup.find("app/missing.conf").isPresent());
+        assertEquals(1, lookup.filterStats().get().skipped());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidName() {
+        XdgLookup.config(paths, XdgLookup.Mode.OVERLAY).find("app/../../secret");
+    }
+
+    @Test
+    public void testFileSystem() throws Exception {
+        URI uri = URI.create("jar:" + tmp.getRoot().toPath().resolve("fs.zip").toUri());
+        try(FileSystem zip = FileSystems.newFileSystem(uri, Collections.singletonMap("create", "true"))) {
+            Properties props = new Properties();
+            props.setProperty("user.home", "/home/exdigi");
+            XdgPaths bound = new XdgPaths(props, Collections.emptyMap()).withFileSystem(zip);
+
+            assertSame(zip, bound.fileSystem());
+            assertSame(bound, bound.withFileSystem(zip));
+            assertEquals(zip.getPath("/home/exdigi/.config/app"), bound.userconfig("app"));
+            assertSame(zip, bound.get("%config/app/a.conf").get(0).getFileSystem());
+
+            Path file = bound.userconfig("app").resolve("a.conf");
+            Files.createDirectories(file.getParent());
+            Files.write(file, bytes("zip a"));
+
+            XdgLookup lookup = XdgLookup.config(bound, XdgLookup.Mode.OVERLAY);
+            assertEquals(file, lookup.find("app/a.conf").get().path().get());
+            assertArrayEquals(bytes("zip a"), lookup.read("app/a.conf").get());
+        }
+    }
+
+    @Test
+    public void testAttachArchive() throws Exception {
+        Path zip = tmp.getRoot().toPath().resolve("defaults.jar");
+        try(ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            entry(out, "defaults/app/a.conf", "jar a");
+            entry(out, "defaults/app/d.conf", "jar d");
+            entry(out, "other/app/e.conf", "jar e");
+        }
+
+        try(XdgLookup lookup = XdgLookup.config(paths, XdgLookup.Mode.OVERLAY).attach(zip, "defaults")) {
+            assertEquals(1, lookup.attached().size());
+            assertEquals(user.resolve("a.conf"), lookup.find("app/a.conf").get().path().get());
+            assertArrayEquals(bytes("jar d"), lookup.read("app/d.conf").get());
+            assertFalse(lookup.find("app/e.conf").isPresent());
+
+            List<XdgLookup.Resource> all = lookup.findAll("app/a.conf");
+            assertEquals(3, all.size());
+            assertArrayEquals(bytes("jar a"), all.get(2).read());
+
+            /* the disk is preferred over the archive when preloading */
+            XdgLookup isolated = XdgLookup.config(paths, XdgLookup.Mode.ISOLATED).attach(zip, "defaults");
+            assertEquals(3, isolated.preload("app"));
+            assertArrayEquals(bytes("user a"), isolated.read("app/a.conf").get());
+            assertArrayEquals(bytes("jar d"), isolated.read("app/d.conf").get());
+            isolated.close();
+        }
+    }
+
+    @Test
+    public void testAttachClasspath() throws Exception {
+        Path dir = tmp.getRoot().toPath().resolve("classes");
+        Files.createDirectories(dir.resolve("org/example/defaults/app"));
+        Files.write(dir.resolve("org/example/defaults/app/d.conf"), bytes("classes d"));
+        Path zip = tmp.getRoot().toPath().resolve("lib.jar");
+        try(ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            /* directory entries, as written by jar and build tools */
+            out.putNextEntry(new ZipEntry("org/example/jar/"));
+            out.closeEntry();
+            entry(out, "org/example/jar/app/f.conf", "jar f");
+        }
+
+        try(URLClassLoader loader = new URLClassLoader(new URL[] { dir.toUri().toURL(), zip.toUri().toURL() }, null);
+            XdgLookup lookup = XdgLookup.data(paths, XdgLookup.Mode.OVERLAY)) {
+            lookup.attach(loader, "org/example/defaults").attach(loader, "org/example/jar/");
+            assertEquals(2, lookup.attached().size());
+            assertArrayEquals(bytes("classes d"), lookup.read("app/d.conf").get());
+            assertArrayEquals(bytes("jar f"), lookup.read("app/f.conf").get());
+            assertFalse(lookup.find("app/missing.conf").isPresent());
+        }
+    }
+
+    @Test
+    public void testAttachLinks() throws Exception {
+        Path root = tmp.getRoot().toPath();
+        Path shared = root.resolve("shared");
+        Files.createDirectories(shared);
+        Files.write(shared.resolve("s.conf"), bytes("shared s"));
+        Path dir = root.resolve("defaults");
+        Files.createDirectories(dir.resolve("app"));
+        Files.createSymbolicLink(dir.resolve("app/linked"), shared);
+
+        try(XdgLookup lookup = XdgLookup.data(paths, XdgLookup.Mode.OVERLAY).attach(dir, "")) {
+            assertArrayEquals(bytes("shared s"), lookup.read("app/linked/s.conf").get());
+        }
+
+        /* a loop can not be indexed, files are looked up directly instead */
+        Files.createSymbolicLink(shared.resolve("loop"), shared);
+        try(XdgLookup lookup = XdgLookup.data(paths, XdgLookup.Mode.OVERLAY).attach(dir, "")) {
+            assertArrayEquals(bytes("shared s"), lookup.read("app/linked/loop/s.conf").get());
+            assertFalse(lookup.find("app/missing.conf").isPresent());
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testAttachMissing() throws Exception {
+        XdgLookup.data(paths, XdgLookup.Mode.OVERLAY).attach(getClass().getClassLoader(), "no/such/dir");
+    }
+
+    private static void entry(ZipOutputStream out, String name, String contents) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(bytes(contents));
+        out.closeEntry();
+    }
+
+    private static byte[] bytes(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+
+}
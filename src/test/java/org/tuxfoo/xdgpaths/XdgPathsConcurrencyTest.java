@@ -0,0 +1,223 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Hammers a shared XdgPaths instance from many threads, checking that every
+ * result matches the single threaded result, and reports throughput from one
+ * thread up to twice the number of processors.
+ *
+ * Each measurement runs for 200 milliseconds by default; set the {@code
+ * xdgpaths.stress.millis} system property to run longer.
+ */
+public class XdgPathsConcurrencyTest {
+
+    private static final long MILLIS = Long.getLong("xdgpaths.stress.millis", 200);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths paths;
+    private final List<Supplier<Object>> calls = new ArrayList<>();
+    private final List<Object> expected = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Path home = tmp.getRoot().toPath();
+        Properties props = new Properties();
+        props.setProperty("user.home", home.toString());
+        HashMap<String,String> env = new HashMap<>();
+        env.put(XdgPaths.XDG_RUNTIME_DIR, "/run/user/1000");
+        env.put(XdgPaths.XDG_CONFIG_DIRS, "/etc/xdg:/opt/xdg");
+        env.put(XdgPaths.XDG_DATA_DIRS, "/usr/local/share:/usr/share:/opt/share");
+        paths = new XdgPaths(props, env);
+        writeUserDirs("Downloads", "Music");
+
+        /* a mix of argument shapes for every lookup */
+        String[][] parts = {
+            {}, { "app" }, { "app", "app.conf" }, { "a/b", "c" }, { "/abs", "x" }, { "", "y" }
+        };
+        for(String[] p : parts) {
+            calls.add(()->paths.home(p));
+            calls.add(()->paths.cache(p));
+            calls.add(()->paths.userconfig(p));
+            calls.add(()->paths.userdata(p));
+            calls.add(()->paths.runtime(p));
+            calls.add(()->paths.config(p));
+            calls.add(()->paths.data(p));
+        }
+        String[] tokens = {
+            "%cache", "%config", "%data", "%home", "%runtime", "%userconfig", "%userdata", "plain"
+        };
+        for(String t : tokens) {
+            calls.add(()->paths.get(t));
+            calls.add(()->paths.get(t + "/app", "file"));
+            calls.add(()->paths.get(t, "app", "file"));
+        }
+        calls.add(()->paths.userdir("documents"));
+        calls.add(()->paths.userdir("XDG_MUSIC_DIR", "album"));
+
+        for(Supplier<Object> c : calls) expected.add(c.get());
+    }
+
+    @Test
+    public void testDeterministic() throws Exception {
+        int max = Math.max(4, Runtime.getRuntime().availableProcessors()*2);
+        hammer(1); /* warm up */
+        System.out.println("XdgPaths lookups, " + MILLIS + " ms per run");
+        double single = 0;
+        for(int threads=1; threads<=max; threads*=2) {
+            long ops = hammer(threads);
+            double rate = ops * 1000.0 / MILLIS;
+            if(threads==1) single = rate;
+            System.out.println(String.format("  %3d threads: %,14.0f ops/s  (%.2fx)",
+                                             threads, rate, rate/single));
+        }
+    }
+
+    @Test
+    public void testSharedListsUnmodifiable() {
+        for(List<Path> list : Arrays.asList(paths.config(), paths.data())) {
+            try {
+                list.clear();
+                assertTrue("search path modifiable", false);
+            } catch(UnsupportedOperationException e) {
+                /* expected */
+            }
+        }
+        try {
+            paths.userdirs().clear();
+            assertTrue("user dirs modifiable", false);
+        } catch(UnsupportedOperationException e) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void testUserDirsConsistent() throws Exception {
+        Map<String,Path> a = paths.userdirs();
+        writeUserDirs("Incoming", "Audio");
+        Files.setLastModifiedTime(tmp.getRoot().toPath().resolve(".config/user-dirs.dirs"),
+                                  FileTime.fromMillis(1000));
+        Map<String,Path> b = paths.userdirs();
+        assertEquals(tmp.getRoot().toPath().resolve("Audio"), b.get("XDG_MUSIC_DIR"));
+
+        /* readers only ever see one whole version while it is rewritten */
+        final AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        try {
+            Future<?> writer = pool.submit(()->{
+                for(int i=0; i<200; i++) {
+                    if(i%2==0) writeUserDirs("Downloads", "Music");
+                    else writeUserDirs("Incoming", "Audio");
+                    Files.setLastModifiedTime(tmp.getRoot().toPath().resolve(".config/user-dirs.dirs"),
+                                              FileTime.fromMillis(i%2==0?2000:1000));
+                }
+                stop.set(true);
+                return null;
+            });
+            List<Future<?>> readers = new ArrayList<>();
+            for(int r=0; r<4; r++) {
+                readers.add(pool.submit(()->{
+                    while(!stop.get()) {
+                        Map<String,Path> m = paths.userdirs();
+                        assertTrue("torn user dirs " + m, m.equals(a) || m.equals(b));
+                    }
+                    return null;
+                }));
+            }
+            writer.get();
+            for(Future<?> f : readers) f.get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Run random lookups on a number of threads, returning the operation count. */
+    private long hammer(int threads) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for(int t=0; t<threads; t++) {
+                futures.add(pool.submit((Callable<Long>)()->{
+                    start.await();
+                    final ThreadLocalRandom random = ThreadLocalRandom.current();
+                    final long end = System.nanoTime() + MILLIS*1000000L;
+                    long ops = 0;
+                    while(System.nanoTime()<end) {
+                        for(int i=0; i<64; i++) {
+                            int c = random.nextInt(calls.size());
+                            Object result = calls.get(c).get();
+                            if(!expected.get(c).equals(result)) {
+                                throw new AssertionError("call " + c + " returned " + result
+                                                         + ", expected " + expected.get(c));
+                            }
+                        }
+                        ops += 64;
+                    }
+                    return ops;
+                }));
+            }
+            long total = 0;
+            for(Future<Long> f : futures) total += f.get();
+            return total;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void writeUserDirs(String download, String music) throws Exception {
+        Path dir = tmp.getRoot().toPath().resolve(".config");
+        Files.createDirectories(dir);
+        Path next = Files.createTempFile(dir, "user-dirs", ".tmp");
+        Files.write(next, ("XDG_DOWNLOAD_DIR=\"$HOME/" + download + "\"\n"
+                           + "XDG_MUSIC_DIR=\"$HOME/" + music + "\"\n"
+                           + "XDG_DOCUMENTS_DIR=\"$HOME/Documents\"\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(next, dir.resolve("user-dirs.dirs"), StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+}
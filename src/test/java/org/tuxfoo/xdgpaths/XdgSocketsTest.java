@@ -0,0 +1,196 @@
+/*
+ * xdgpaths
+ *
+ * Copyright 2016 Casey Harkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.tuxfoo.xdgpaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XdgSocketsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private XdgPaths paths;
+    private XdgSockets sockets;
+
+    @Before
+    public void setUp() {
+        assumeTrue(XdgSockets.isSupported());
+
+        /* keep the socket path well under the sun_path limit */
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toString());
+        HashMap<String,String> env = new HashMap<>();
+        env.put(XdgPaths.XDG_RUNTIME_DIR, tmp.getRoot().toPath().resolve("r").toString());
+        paths = new XdgPaths(props, env);
+        sockets = new XdgSockets(paths, "app");
+    }
+
+    @Test
+    public void testBindAndCleanup() throws IOException {
+        Path file;
+        try(XdgSockets.Endpoint server = sockets.bind("ctl")) {
+            file = server.path();
+            assertEquals(paths.runtime("app", "ctl").get(), file);
+            assertTrue(Files.exists(file));
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+            assertEquals("rwx------", PosixFilePermissions.toString(
+                    Files.getPosixFilePermissions(file.getParent())));
+
+            try {
+                sockets.bind("ctl");
+                assertTrue("bound twice", false);
+            } catch(BindException e) {
+                /* expected */
+            }
+        }
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void testStaleSocketReplaced() throws IOException {
+        XdgSockets.Endpoint stale = sockets.bind("ctl");
+        stale.channel().close(); /* process died without removing the socket */
+        assertTrue(Files.exists(stale.path()));
+
+        try(XdgSockets.Endpoint server = sockets.bind("ctl")) {
+            assertTrue(server.channel().isOpen());
+
+            /* the stale endpoint must not remove its successor */
+            stale.close();
+            assertTrue(Files.exists(server.path()));
+        }
+    }
+
+    @Test(expected=FileAlreadyExistsException.class)
+    public void testRegularFileNotReplaced() throws IOException {
+        Path file = sockets.path("ctl").get();
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[] { 1 });
+        sockets.bind("ctl");
+    }
+
+    @Test
+    public void testPool() throws Exception {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try(XdgSockets.Endpoint server = sockets.bind("echo");
+            XdgSockets.Pool clients = sockets.pool("echo", 2)) {
+            pool.submit(()->{
+                /* echo one byte per request, hang up on a zero byte */
+                while(true) {
+                    SocketChannel ch = server.accept();
+                    pool.submit(()->{
+                        ByteBuffer b = ByteBuffer.allocate(1);
+                        while(ch.read(b)>0) {
+                            b.flip();
+                            if(b.get(0)==0) break;
+                            ch.write(b);
+                            b.clear();
+                        }
+                        ch.close();
+                        return null;
+                    });
+                }
+            });
+
+            SocketChannel a = clients.acquire();
+            assertEquals(7, echo(a, 7));
+            clients.release(a);
+            assertEquals(1, clients.idle());
+
+            SocketChannel b = clients.acquire();
+            assertSame(a, b);
+            assertEquals(0, clients.idle());
+
+            /* server hangs up; the idle connection is detected as stale */
+            b.write(ByteBuffer.wrap(new byte[] { 0 }));
+            clients.release(b);
+            while(a.isOpen() && XdgSockets.healthy(a)) Thread.sleep(1);
+            SocketChannel c = clients.acquire();
+            assertNotSame(a, c);
+            assertFalse(a.isOpen());
+            assertEquals(9, echo(c, 9));
+            clients.release(c);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPoolDiscardsStale() throws Exception {
+        try(XdgSockets.Pool clients = sockets.pool("echo", 2)) {
+            SocketChannel first;
+            try(XdgSockets.Endpoint server = sockets.bind("echo")) {
+                first = clients.acquire();
+                SocketChannel accepted = server.accept();
+                clients.release(first);
+                accepted.close();
+            }
+            assertEquals(1, clients.idle());
+
+            /* a new server, with an idle connection to the old one pooled */
+            try(XdgSockets.Endpoint server = sockets.bind("echo")) {
+                SocketChannel second = clients.acquire();
+                assertNotSame(first, second);
+                assertFalse(first.isOpen());
+                server.accept().close();
+                second.close();
+                clients.release(second);
+                assertEquals(0, clients.idle());
+            }
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testNoRuntime() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("user.home", tmp.getRoot().toString());
+        new XdgSockets(new XdgPaths(props, new HashMap<>()), "app").bind("ctl");
+    }
+
+    private static int echo(SocketChannel ch, int value) throws IOException {
+        ch.write(ByteBuffer.wrap(new byte[] { (byte)value }));
+        ByteBuffer b = ByteBuffer.allocate(1);
+        while(b.hasRemaining()) {
+            if(ch.read(b)<0) throw new IOException("eof");
+        }
+        return b.get(0);
+    }
+}